@@ -0,0 +1,118 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes the pages of getCommitsBetween and getChangesets requests from how stash answers them. A full page
+ * that came back well within plugin.fedmsg.pageLimit.targetMillis grows the next one by a quarter, a page
+ * slower than the target halves it, and the size always stays between plugin.fedmsg.pageLimit.min and
+ * plugin.fedmsg.pageLimit.max. Imports get large pages this way while a repository whose history makes git
+ * slow gets small ones. plugin.fedmsg.pageLimit is where every size starts.
+ *
+ * The current sizes and average latencies are exported over JMX as com.cray.stash:type=AdaptivePageSizes.
+ */
+public class AdaptivePageSizes implements AdaptivePageSizesMBean, DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final PageSizer commitsBetween;
+    private final PageSizer changesets;
+    private ObjectName objectName;
+
+    public AdaptivePageSizes(ApplicationPropertiesService appService) {
+        PluginProperties properties = new PluginProperties(appService);
+        int min = Math.max(1, properties.getInt("plugin.fedmsg.pageLimit.min", 25));
+        int max = Math.max(min, properties.getInt("plugin.fedmsg.pageLimit.max", 1000));
+        int initial = Math.min(max, Math.max(min, properties.getInt("plugin.fedmsg.pageLimit", 250)));
+        long targetMillis = properties.getLong("plugin.fedmsg.pageLimit.targetMillis", 1000);
+
+        commitsBetween = new PageSizer(initial, min, max, targetMillis);
+        changesets = new PageSizer(initial, min, max, targetMillis);
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("com.cray.stash:type=AdaptivePageSizes");
+            if (server.isRegistered(objectName)) {
+                // left behind by an earlier version of the plugin
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (Exception e) {
+            LOGGER.error("Failed to export the page sizes over JMX", e);
+            objectName = null;
+        }
+    }
+
+    public PageSizer getCommitsBetween() {return commitsBetween;}
+
+    public PageSizer getChangesets() {return changesets;}
+
+    @Override
+    public int getCommitsBetweenPageSize() {return commitsBetween.get();}
+
+    @Override
+    public long getCommitsBetweenLatencyMillis() {return commitsBetween.getLatencyMillis();}
+
+    @Override
+    public int getChangesetsPageSize() {return changesets.get();}
+
+    @Override
+    public long getChangesetsLatencyMillis() {return changesets.getLatencyMillis();}
+
+    @Override
+    public void destroy() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOGGER.error("Failed to remove the page sizes from JMX", e);
+            }
+        }
+    }
+
+    /*
+    * The page size of one type of request.
+    */
+    public static class PageSizer {
+        private final int min;
+        private final int max;
+        private final long targetNanos;
+        private volatile int size;
+        private volatile long latencyNanos;
+
+        PageSizer(int initial, int min, int max, long targetMillis) {
+            this.size = initial;
+            this.min = min;
+            this.max = max;
+            this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        }
+
+        public int get() {
+            return size;
+        }
+
+        /*
+        * Records a request of the given page size, started at startNanos, that returned that many values.
+        */
+        public synchronized void record(long startNanos, int requested, int returned) {
+            long latency = System.nanoTime() - startNanos;
+            latencyNanos = latencyNanos == 0 ? latency : (latencyNanos * 7 + latency) / 8;
+            if (latency > targetNanos) {
+                size = Math.max(min, requested / 2);
+            } else if (returned >= requested && latency < targetNanos / 2) {
+                size = Math.min(max, Math.max(size, requested + Math.max(1, requested / 4)));
+            }
+        }
+
+        long getLatencyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.cray.stash;
+
+/**
+ * What AdaptivePageSizes exports over JMX, as com.cray.stash:type=AdaptivePageSizes.
+ */
+public interface AdaptivePageSizesMBean {
+
+    int getCommitsBetweenPageSize();
+
+    long getCommitsBetweenLatencyMillis();
+
+    int getChangesetsPageSize();
+
+    long getChangesetsLatencyMillis();
+}
@@ -0,0 +1,88 @@
+package com.cray.stash;
+
+/**
+ * The state of a single backfill request. The cursor is the start of the next page of commits to publish,
+ * so a cancelled or failed job can be resumed, or resubmitted with the cursor, without repeating pages.
+ */
+public class BackfillJob {
+
+    public enum State { QUEUED, RUNNING, PAUSED, DONE, CANCELLED, FAILED }
+
+    private final String id;
+    private final String projectKey;
+    private final String repositorySlug;
+    private final String refId;
+    private final String fromHash;
+    private final boolean followOwnership;
+    private volatile String toHash;
+    private volatile int cursor;
+    private volatile int published;
+    private volatile State state = State.QUEUED;
+    private volatile String error;
+    private final long created = System.currentTimeMillis();
+    private volatile long updated = created;
+
+    public BackfillJob(String id, String projectKey, String repositorySlug, String refId, String fromHash, String toHash, int cursor,
+                       boolean followOwnership) {
+        this.id = id;
+        this.followOwnership = followOwnership;
+        this.projectKey = projectKey;
+        this.repositorySlug = repositorySlug;
+        this.refId = refId;
+        this.fromHash = fromHash;
+        this.toHash = toHash;
+        this.cursor = cursor;
+    }
+
+    public String getId() {return id;}
+
+    public String getProjectKey() {return projectKey;}
+
+    public String getRepositorySlug() {return repositorySlug;}
+
+    public String getRefId() {return refId;}
+
+    public String getFromHash() {return fromHash;}
+
+    public String getToHash() {return toHash;}
+
+    /*
+    * Admin jobs only run on the node that owns the repository. Jobs that complete work of a local event stay on
+    * the node that saw the event.
+    */
+    public boolean isFollowOwnership() {return followOwnership;}
+
+    public int getCursor() {return cursor;}
+
+    public int getPublished() {return published;}
+
+    public State getState() {return state;}
+
+    public String getError() {return error;}
+
+    public long getUpdated() {return updated;}
+
+    public boolean isFinished() {
+        return state == State.DONE || state == State.CANCELLED || state == State.FAILED;
+    }
+
+    void setToHash(String toHash) {
+        this.toHash = toHash;
+    }
+
+    void advance(int nextCursor, int sent) {
+        this.cursor = nextCursor;
+        this.published += sent;
+        this.updated = System.currentTimeMillis();
+    }
+
+    void setState(State state) {
+        this.state = state;
+        this.updated = System.currentTimeMillis();
+    }
+
+    void fail(String error) {
+        this.error = error;
+        setState(State.FAILED);
+    }
+}
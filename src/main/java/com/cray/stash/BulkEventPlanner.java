@@ -0,0 +1,250 @@
+package com.cray.stash;
+
+import com.atlassian.stash.commit.Commit;
+import com.atlassian.stash.commit.CommitService;
+import com.atlassian.stash.commit.CommitsBetweenRequest;
+import com.atlassian.stash.commit.MinimalCommit;
+import com.atlassian.stash.repository.Branch;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryBranchesRequest;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageUtils;
+import com.atlassian.stash.util.UncheckedOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the new commits of many ref changes at once, for events like git push --mirror that change hundreds of
+ * refs. Walking each ref on its own lists the branches and the commits between once per ref; the planner lists
+ * the branches once, asks for the commits reachable from any of the new tips but from none of the untouched
+ * branches or old tips in one walk, and then hands each commit to the first ref, in event order, it is
+ * reachable from. A commit reachable from several refs is only published once.
+ */
+public class BulkEventPlanner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private static final String NULL_HASH = "0000000000000000000000000000000000000000";
+    private final RefService refService;
+    private final CommitService commitService;
+    private final SecurityService security;
+    private final StashCircuitBreakers breakers;
+    private final PublishedCommitIndex publishedIndex;
+    private final SlowEventRecorder recorder;
+    private final ForkOrigins forkOrigins;
+    private final AdaptivePageSizes pageSizes;
+    private final int maxCommits;
+    private final int threshold;
+
+    public BulkEventPlanner(RefService refService, CommitService commitService, SecurityService security,
+                            ApplicationPropertiesService appService, StashCircuitBreakers breakers,
+                            PublishedCommitIndex publishedIndex, SlowEventRecorder recorder, ForkOrigins forkOrigins,
+                            AdaptivePageSizes pageSizes) {
+        this.security = security;
+        this.pageSizes = pageSizes;
+        this.forkOrigins = forkOrigins;
+        this.refService = refService;
+        this.commitService = commitService;
+        this.breakers = breakers;
+        this.publishedIndex = publishedIndex;
+        this.recorder = recorder;
+
+        PluginProperties properties = new PluginProperties(appService);
+        maxCommits = properties.getInt("plugin.fedmsg.bulk.maxCommits", 10000);
+        threshold = properties.getInt("plugin.fedmsg.bulk.planRefs", 5);
+    }
+
+    /*
+    * Whether an event with this many ref changes that carry commits is worth planning as a whole.
+    */
+    public boolean shouldPlan(int refChanges) {
+        return refChanges >= threshold;
+    }
+
+    /*
+    * Returns the unpublished commits of each ref change, newest first like getCommitsBetween, or null if stash
+    * is too slow to list commits right now.
+    */
+    public Map<RefChange, List<Commit>> plan(Repository repo, List<RefChange> refChanges) {
+        if (!breakers.getCommitsBetween().allowRequest()) {
+            return null;
+        }
+
+        Set<String> changed = new HashSet<String>();
+        Set<String> includes = new HashSet<String>();
+        Set<String> excludes = new HashSet<String>();
+        boolean creations = false;
+        for (RefChange refChange : refChanges) {
+            changed.add(refChange.getRefId());
+            includes.add(refChange.getToHash());
+            if (!refChange.getFromHash().contains(NULL_HASH)) {
+                excludes.add(refChange.getFromHash());
+            } else {
+                creations = true;
+            }
+        }
+        Set<String> others = findOtherBranches(repo, changed);
+        if (others == null && creations) {
+            // a new branch has no old tip, without the other branches its whole history would be walked
+            return null;
+        }
+        if (others != null) {
+            excludes.addAll(others);
+        }
+
+        Map<String, Commit> commits = findCommits(repo, includes, excludes);
+        if (commits == null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Map<RefChange, List<Commit>> planned = assign(repo, refChanges, commits);
+        recorder.stage("plan", start);
+        return planned;
+    }
+
+    /*
+    * The ids of all branches the event didn't touch, or null if stash is too slow to list them. Then only the
+    * old tips are excluded and the published commit index has to catch the rest.
+    */
+    private Set<String> findOtherBranches(Repository repo, Set<String> changed) {
+        Set<String> others = new HashSet<String>();
+        if (!breakers.getBranches().allowRequest()) {
+            return null;
+        }
+        final RepositoryBranchesRequest branchesRequest = new RepositoryBranchesRequest.Builder(repo).build();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            PageRequest request = PageUtils.newRequest(0, 1000);
+            while (request != null) {
+                final PageRequest pageRequest = request;
+                Page<Branch> branches = security.withPermission(Permission.ADMIN, "Listing branches").call(new UncheckedOperation<Page<Branch>>() {
+                    @Override
+                    public Page<Branch> perform() {
+                        return refService.getBranches(branchesRequest, pageRequest);
+                    }
+                });
+                for (Branch branch : branches.getValues()) {
+                    if (!changed.contains(branch.getId())) {
+                        others.add(branch.getId());
+                    }
+                }
+                request = branches.getIsLastPage() ? null : branches.getNextPageRequest();
+            }
+            success = true;
+        } catch (Exception e) {
+            LOGGER.error("An error occurred while finding all the branches in a repo", e);
+        } finally {
+            breakers.getBranches().record(start, success);
+            recorder.stage("getExcludes", start);
+        }
+        return success ? others : null;
+    }
+
+    /*
+    * The union of the new commits by id, in the order stash returns them.
+    */
+    private Map<String, Commit> findCommits(Repository repo, Set<String> includes, Set<String> excludes) {
+        CommitsBetweenRequest.Builder commitsRequest = new CommitsBetweenRequest.Builder(repo);
+        commitsRequest.include(includes);
+        Repository origin = forkOrigins.getOrigin(repo);
+        if (origin != null) {
+            commitsRequest.secondaryRepository(origin);
+            excludes.addAll(forkOrigins.getTips(origin));
+        }
+        if (!excludes.isEmpty()) {
+            commitsRequest.exclude(excludes);
+        }
+        final CommitsBetweenRequest request = commitsRequest.build();
+
+        Map<String, Commit> commits = new LinkedHashMap<String, Commit>();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            PageRequest pageRequest = PageUtils.newRequest(0, pageSizes.getCommitsBetween().get());
+            while (pageRequest != null) {
+                long pageStart = System.nanoTime();
+                final PageRequest current = pageRequest;
+                Page<Commit> page = security.withPermission(Permission.ADMIN, "Listing new commits").call(new UncheckedOperation<Page<Commit>>() {
+                    @Override
+                    public Page<Commit> perform() {
+                        return commitService.getCommitsBetween(request, current);
+                    }
+                });
+                pageSizes.getCommitsBetween().record(pageStart, pageRequest.getLimit(), page.getSize());
+                for (Commit commit : page.getValues()) {
+                    commits.put(commit.getId(), commit);
+                }
+                if (page.getIsLastPage()) {
+                    pageRequest = null;
+                } else if (commits.size() >= maxCommits) {
+                    LOGGER.error("The ref changes of {}/{} add more than {} commits, only the newest are published.",
+                            new Object[]{repo.getProject().getKey(), repo.getSlug(), maxCommits});
+                    pageRequest = null;
+                } else {
+                    // the next page gets whatever size the last one earned
+                    pageRequest = PageUtils.newRequest(page.getNextPageRequest().getStart(), pageSizes.getCommitsBetween().get());
+                }
+            }
+            success = true;
+        } catch (Exception e) {
+            LOGGER.error("Failed to get the commits of a bulk event", e);
+        } finally {
+            breakers.getCommitsBetween().record(start, success);
+            recorder.stage("getCommitsBetween", start);
+        }
+        return success ? commits : null;
+    }
+
+    private Map<RefChange, List<Commit>> assign(Repository repo, List<RefChange> refChanges, Map<String, Commit> commits) {
+        Map<String, RefChange> owners = new HashMap<String, RefChange>(commits.size() * 2);
+        Deque<String> walk = new ArrayDeque<String>();
+        for (RefChange refChange : refChanges) {
+            walk.push(refChange.getToHash());
+            while (!walk.isEmpty()) {
+                String id = walk.pop();
+                Commit commit = commits.get(id);
+                if (commit == null || owners.containsKey(id)) {
+                    continue;
+                }
+                owners.put(id, refChange);
+                for (MinimalCommit parent : commit.getParents()) {
+                    walk.push(parent.getId());
+                }
+            }
+        }
+
+        Map<RefChange, List<Commit>> planned = new LinkedHashMap<RefChange, List<Commit>>();
+        for (RefChange refChange : refChanges) {
+            planned.put(refChange, new ArrayList<Commit>());
+        }
+        int skipped = 0;
+        for (Commit commit : commits.values()) {
+            if (publishedIndex.isPublished(repo, commit.getId())) {
+                skipped++;
+            } else if (owners.containsKey(commit.getId())) {
+                planned.get(owners.get(commit.getId())).add(commit);
+            }
+        }
+        LOGGER.info("Planned {} new commits over {} ref changes of {}/{}, {} were already published.",
+                new Object[]{commits.size() - skipped, refChanges.size(), repo.getProject().getKey(), repo.getSlug(), skipped});
+        recorder.commits(commits.size() - skipped);
+        return planned;
+    }
+}
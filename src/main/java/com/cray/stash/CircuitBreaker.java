@@ -0,0 +1,88 @@
+package com.cray.stash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A latency and error based circuit breaker around one kind of stash call. A call counts as bad if it failed
+ * or took longer than the latency threshold; after enough bad calls in a row the breaker opens and callers skip
+ * the call entirely. Once the open period has passed a single trial call is let through: if it is good the
+ * breaker closes again, otherwise it stays open for another period.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final String name;
+    private final long latencyNanos;
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int consecutiveBad;
+    private long openUntil;
+    private boolean trialInFlight;
+    private long trips;
+
+    public CircuitBreaker(String name, long latencyMillis, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+    }
+
+    public String getName() {return name;}
+
+    public synchronized State getState() {return state;}
+
+    public synchronized long getTrips() {return trips;}
+
+    /*
+    * Returns true if the call may be made. Every call that is allowed must be followed by a record().
+    */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.HALF_OPEN && !trialInFlight) {
+            trialInFlight = true;
+            return true;
+        }
+        return false;
+    }
+
+    /*
+    * Records the outcome of a call that started at startNanos (a System.nanoTime()).
+    */
+    public synchronized void record(long startNanos, boolean success) {
+        boolean bad = !success || System.nanoTime() - startNanos > latencyNanos;
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            if (bad) {
+                open();
+            } else {
+                LOGGER.info("Circuit breaker {} closed, stash calls are back to normal.", name);
+                state = State.CLOSED;
+                consecutiveBad = 0;
+            }
+        } else if (!bad) {
+            consecutiveBad = 0;
+        } else if (++consecutiveBad >= failureThreshold && state == State.CLOSED) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + openMillis;
+        trips++;
+        LOGGER.error("Circuit breaker {} opened after {} slow or failed calls, skipping them for {}ms.",
+                new Object[]{name, consecutiveBad, openMillis});
+    }
+}
@@ -0,0 +1,229 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.repository.SimpleRefChange;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.UncheckedOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands live ref changes to the node that owns their repository, so a repository is published by one node no
+ * matter which node the push landed on. Every node has an inbox directory under plugin.fedmsg.cluster.handoffDir,
+ * by default ${stash.home}/shared/data/fedmsg/handoff, which the nodes of a Data Center cluster share. A hand-off
+ * is one properties file, written next to the inbox and renamed into it, and the owner picks its inbox up every
+ * plugin.fedmsg.cluster.handoffPollMillis, oldest file first.
+ *
+ * The inboxes of nodes that left the cluster are adopted by the new owners of their repositories, so nothing
+ * handed to a node that went down is lost.
+ */
+public class ClusterHandoff implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final RepositoryService repoService;
+    private final SecurityService security;
+    private final ClusterShardRouter shardRouter;
+    private final File directory;
+    private final long pollMillis;
+    private final AtomicLong counter = new AtomicLong();
+    private final Thread poller;
+    private volatile Receiver receiver;
+    private volatile boolean running = true;
+
+    /**
+     * Whoever processes the ref changes handed to this node.
+     */
+    public interface Receiver {
+        void receive(Repository repo, List<RefChange> refChanges, int refChangesInEvent);
+    }
+
+    public ClusterHandoff(RepositoryService repoService, SecurityService security, ApplicationPropertiesService appService,
+                          ClusterShardRouter shardRouter) {
+        this.repoService = repoService;
+        this.security = security;
+        this.shardRouter = shardRouter;
+
+        PluginProperties properties = new PluginProperties(appService);
+        String configured = properties.getString("plugin.fedmsg.cluster.handoffDir", null);
+        directory = configured != null ? new File(configured) : new File(properties.getHomeDir(), "shared/data/fedmsg/handoff");
+        pollMillis = properties.getLong("plugin.fedmsg.cluster.handoffPollMillis", 1000);
+
+        poller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "fedmsg-handoff");
+        poller.setDaemon(true);
+        if (pollMillis > 0) {
+            poller.start();
+        }
+    }
+
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /*
+    * Queues the ref changes for their owner. Returns false if they couldn't be written, the caller should then
+    * publish them itself.
+    */
+    public boolean handOff(String owner, Repository repo, List<RefChange> refChanges, int refChangesInEvent) {
+        Properties handoff = new Properties();
+        handoff.setProperty("repository", Integer.toString(repo.getId()));
+        handoff.setProperty("refChangesInEvent", Integer.toString(refChangesInEvent));
+        handoff.setProperty("count", Integer.toString(refChanges.size()));
+        for (int i = 0; i < refChanges.size(); i++) {
+            RefChange refChange = refChanges.get(i);
+            handoff.setProperty("refId." + i, refChange.getRefId());
+            handoff.setProperty("fromHash." + i, refChange.getFromHash());
+            handoff.setProperty("toHash." + i, refChange.getToHash());
+            handoff.setProperty("type." + i, refChange.getType().name());
+        }
+
+        File inbox = new File(directory, owner);
+        // the timestamp first, so the owner reads hand-offs in the order they were made
+        String name = String.format("%013d-%s-%010d", System.currentTimeMillis(), shardRouter.getLocalNodeId(), counter.incrementAndGet());
+        File tmp = new File(directory, name + ".tmp");
+        try {
+            if (!inbox.isDirectory() && !inbox.mkdirs()) {
+                throw new IOException("Could not create " + inbox);
+            }
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                handoff.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(new File(inbox, name + ".properties"))) {
+                throw new IOException("Could not move " + tmp + " into " + inbox);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Failed to hand {} ref changes of {}/{} off to node {}", new Object[]{refChanges.size(),
+                    repo.getProject().getKey(), repo.getSlug(), owner, e});
+            tmp.delete();
+            return false;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        poller.interrupt();
+    }
+
+    private void work() {
+        while (running) {
+            try {
+                Thread.sleep(pollMillis);
+                poll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                LOGGER.error("Unexpected exception while reading handed off ref changes", e);
+            }
+        }
+    }
+
+    /*
+    * Delivers the local inbox, and whatever this node now owns in the inboxes of nodes that left.
+    */
+    void poll() {
+        Receiver current = receiver;
+        File[] inboxes = directory.listFiles();
+        if (current == null || inboxes == null) {
+            return;
+        }
+        String localNodeId = shardRouter.getLocalNodeId();
+        for (File inbox : inboxes) {
+            if (inbox.getName().equals(localNodeId)) {
+                deliver(current, inbox, false);
+            } else if (inbox.isDirectory() && !shardRouter.isLive(inbox.getName())) {
+                deliver(current, inbox, true);
+            }
+        }
+    }
+
+    private void deliver(Receiver current, File inbox, boolean adopting) {
+        File[] handoffs = inbox.listFiles();
+        if (handoffs == null) {
+            return;
+        }
+        Arrays.sort(handoffs);
+        for (File handoff : handoffs) {
+            if (!handoff.getName().endsWith(".properties")) {
+                continue;
+            }
+            Properties stored = new Properties();
+            try {
+                InputStream in = new FileInputStream(handoff);
+                try {
+                    stored.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to read the hand-off {}", handoff, e);
+                continue;
+            }
+
+            final int repositoryId;
+            try {
+                repositoryId = Integer.parseInt(stored.getProperty("repository"));
+            } catch (NumberFormatException e) {
+                LOGGER.error("The hand-off {} is corrupt, dropping it.", handoff);
+                handoff.delete();
+                continue;
+            }
+            if (adopting && !shardRouter.isLocallyOwned(repositoryId)) {
+                continue;
+            }
+            // claim it first, another node adopting the same inbox may be reading it too
+            if (!handoff.delete()) {
+                continue;
+            }
+            Repository repo = security.withPermission(Permission.ADMIN, "Publishing handed off ref changes").call(new UncheckedOperation<Repository>() {
+                @Override
+                public Repository perform() {
+                    return repoService.getById(repositoryId);
+                }
+            });
+            if (repo == null) {
+                LOGGER.info("Repository {} was deleted before its handed off ref changes were published.", repositoryId);
+                continue;
+            }
+
+            int count = Integer.parseInt(stored.getProperty("count"));
+            List<RefChange> refChanges = new ArrayList<RefChange>(count);
+            for (int i = 0; i < count; i++) {
+                refChanges.add(new SimpleRefChange.Builder()
+                        .refId(stored.getProperty("refId." + i))
+                        .fromHash(stored.getProperty("fromHash." + i))
+                        .toHash(stored.getProperty("toHash." + i))
+                        .type(RefChangeType.valueOf(stored.getProperty("type." + i)))
+                        .build());
+            }
+            current.receive(repo, refChanges, Integer.parseInt(stored.getProperty("refChangesInEvent")));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Assigns every repository to one live node with a consistent hash ring, so that background work for a
+ * repository (backfill, reconciliation) runs on exactly one node and is spread evenly over the cluster. Each
+ * node is placed on the ring plugin.fedmsg.cluster.virtualNodes times. When a node joins or leaves only the
+ * repositories next to its points move, the rest keep their owner.
+ *
+ * Membership is re-read at most once every plugin.fedmsg.cluster.refreshMillis, and the ring is rebuilt only
+ * when the set of live nodes actually changed.
+ */
+public class ClusterShardRouter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final NodeMembership membership;
+    private final int virtualNodes;
+    private final long refreshMillis;
+    private volatile Ring ring;
+
+    public ClusterShardRouter(NodeMembership membership, ApplicationPropertiesService appService) {
+        this(membership, new PluginProperties(appService).getInt("plugin.fedmsg.cluster.virtualNodes", 64),
+                new PluginProperties(appService).getLong("plugin.fedmsg.cluster.refreshMillis", 5000));
+    }
+
+    ClusterShardRouter(NodeMembership membership, int virtualNodes, long refreshMillis) {
+        this.membership = membership;
+        this.virtualNodes = virtualNodes;
+        this.refreshMillis = refreshMillis;
+    }
+
+    public String getLocalNodeId() {
+        return membership.getLocalNodeId();
+    }
+
+    public String getOwner(int repositoryId) {
+        Ring current = currentRing();
+        if (current.points.isEmpty()) {
+            return membership.getLocalNodeId();
+        }
+        Map.Entry<Long, String> owner = current.points.ceilingEntry(hash("repository-" + repositoryId));
+        return owner != null ? owner.getValue() : current.points.firstEntry().getValue();
+    }
+
+    public boolean isLocallyOwned(int repositoryId) {
+        return getOwner(repositoryId).equals(membership.getLocalNodeId());
+    }
+
+    public boolean isLive(String nodeId) {
+        return currentRing().nodes.contains(nodeId);
+    }
+
+    /*
+    * Goes up every time the live nodes change, which is the only time repositories change owner.
+    */
+    public long getEpoch() {
+        return currentRing().epoch;
+    }
+
+    private Ring currentRing() {
+        Ring current = ring;
+        long now = System.currentTimeMillis();
+        if (current != null && now - current.built < refreshMillis) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = ring;
+            if (current != null && now - current.built < refreshMillis) {
+                return current;
+            }
+            Set<String> nodes = new TreeSet<String>(membership.getLiveNodeIds());
+            if (current != null && current.nodes.equals(nodes)) {
+                current.built = now;
+                return current;
+            }
+
+            LOGGER.info("Cluster membership changed from {} to {}, rebalancing repositories.", current == null ? "none" : current.nodes, nodes);
+            TreeMap<Long, String> points = new TreeMap<Long, String>();
+            for (String node : nodes) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    points.put(hash(node + "#" + i), node);
+                }
+            }
+            ring = new Ring(nodes, points, now, current == null ? 1 : current.epoch + 1);
+            return ring;
+        }
+    }
+
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Ring {
+        private final Set<String> nodes;
+        private final TreeMap<Long, String> points;
+        private final long epoch;
+        private volatile long built;
+
+        Ring(Set<String> nodes, TreeMap<Long, String> points, long built, long epoch) {
+            this.nodes = nodes;
+            this.points = points;
+            this.built = built;
+            this.epoch = epoch;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.cray.stash;
+
+import com.atlassian.stash.commit.Commit;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Work the pipeline had to cut short while a circuit breaker was open: ref changes whose commits couldn't be
+ * listed at all, and commits that went out as partial messages without files or clone urls. The backfill
+ * service picks the work up once the breakers have closed again.
+ */
+public class DeferredEnrichment {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final BlockingQueue<Entry> queue;
+
+    public DeferredEnrichment(ApplicationPropertiesService appService) {
+        queue = new LinkedBlockingQueue<Entry>(new PluginProperties(appService).getInt("plugin.fedmsg.deferred.queueSize", 10000));
+    }
+
+    public void deferRefChange(Repository repo, RefChange refChange) {
+        offer(new Entry(repo, refChange, null));
+    }
+
+    /*
+    * Only the commit itself is kept, the backfill publishes exactly that commit again.
+    */
+    public void deferCommit(Repository repo, RefChange refChange, Commit commit) {
+        offer(new Entry(repo, refChange, commit.getId()));
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public List<Entry> drain(int max) {
+        List<Entry> entries = new ArrayList<Entry>();
+        queue.drainTo(entries, max);
+        return entries;
+    }
+
+    private void offer(Entry entry) {
+        if (!queue.offer(entry)) {
+            LOGGER.error("The deferred enrichment queue is full, {}/{} {} will not be completed.",
+                    new Object[]{entry.projectKey, entry.repositorySlug, entry.commitId == null ? entry.refChange.getRefId() : entry.commitId});
+        }
+    }
+
+    public static class Entry {
+        private final String projectKey;
+        private final String repositorySlug;
+        private final RefChange refChange;
+        private final String commitId;
+
+        Entry(Repository repo, RefChange refChange, String commitId) {
+            this.projectKey = repo.getProject().getKey();
+            this.repositorySlug = repo.getSlug();
+            this.refChange = refChange;
+            this.commitId = commitId;
+        }
+
+        public String getProjectKey() {return projectKey;}
+
+        public String getRepositorySlug() {return repositorySlug;}
+
+        public RefChange getRefChange() {return refChange;}
+
+        /*
+        * The commit that was published partially, or null if the whole ref change is outstanding.
+        */
+        public String getCommitId() {return commitId;}
+    }
+}
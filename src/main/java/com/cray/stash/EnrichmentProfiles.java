@@ -0,0 +1,101 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Picks how much each commit message is enriched, per repository. plugin.fedmsg.enrichment.full,
+ * plugin.fedmsg.enrichment.standard and plugin.fedmsg.enrichment.minimal are comma separated KEY/slug globs,
+ * checked in that order, and repositories matching none get plugin.fedmsg.enrichment.default, e.g.
+ *   plugin.fedmsg.enrichment.minimal=MIRROR/*
+ *   plugin.fedmsg.enrichment.full=MIRROR/kernel
+ */
+public class EnrichmentProfiles {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+
+    /*
+    * What a message carries besides the revision, author, timestamp, branch, project and repository, which
+    * come with the commit itself and cost no stash calls.
+    */
+    public enum Profile {
+        MINIMAL(false, false, false),
+        STANDARD(true, true, false),
+        FULL(true, true, true);
+
+        private final boolean comments;
+        private final boolean urls;
+        private final boolean files;
+
+        Profile(boolean comments, boolean urls, boolean files) {
+            this.comments = comments;
+            this.urls = urls;
+            this.files = files;
+        }
+
+        public boolean hasComments() {return comments;}
+
+        // one clone link lookup per repository and batch
+        public boolean hasUrls() {return urls;}
+
+        // one changeset lookup per commit
+        public boolean hasFiles() {return files;}
+    }
+
+    private final GlobMatcher full;
+    private final GlobMatcher standard;
+    private final GlobMatcher minimal;
+    private final Profile defaultProfile;
+    private final ConcurrentMap<Integer, Profile> byRepository = new ConcurrentHashMap<Integer, Profile>();
+
+    public EnrichmentProfiles(ApplicationPropertiesService appService) {
+        PluginProperties properties = new PluginProperties(appService);
+        full = new GlobMatcher(parse(properties.getString("plugin.fedmsg.enrichment.full", "")));
+        standard = new GlobMatcher(parse(properties.getString("plugin.fedmsg.enrichment.standard", "")));
+        minimal = new GlobMatcher(parse(properties.getString("plugin.fedmsg.enrichment.minimal", "")));
+
+        Profile profile = Profile.FULL;
+        String name = properties.getString("plugin.fedmsg.enrichment.default", "full");
+        try {
+            profile = Profile.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Unknown enrichment profile {}, using full.", name);
+        }
+        defaultProfile = profile;
+    }
+
+    public Profile getProfile(Repository repo) {
+        Profile profile = byRepository.get(repo.getId());
+        if (profile == null) {
+            String name = repo.getProject().getKey() + "/" + repo.getSlug();
+            if (full.matches(name)) {
+                profile = Profile.FULL;
+            } else if (standard.matches(name)) {
+                profile = Profile.STANDARD;
+            } else if (minimal.matches(name)) {
+                profile = Profile.MINIMAL;
+            } else {
+                profile = defaultProfile;
+            }
+            byRepository.put(repo.getId(), profile);
+        }
+        return profile;
+    }
+
+    private static List<String> parse(String globs) {
+        List<String> parsed = new ArrayList<String>();
+        for (String glob : globs.split(",")) {
+            if (!glob.trim().isEmpty()) {
+                parsed.add(glob.trim());
+            }
+        }
+        return parsed;
+    }
+}
@@ -1,33 +1,101 @@
 package com.cray.stash;
 
 import com.atlassian.stash.event.RepositoryRefsChangedEvent;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.Repository;
 import org.slf4j.Logger;
 import com.atlassian.event.api.EventListener;
 import org.slf4j.LoggerFactory;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class is the entry point of the plugin, where it all starts. It's responsible for watching all the events
  * that we care about.
  */
-public class EventFactory {
+public class EventFactory implements ClusterHandoff.Receiver {
 
     private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
     private SEPRefChangeEvent sepRefChangeEvent;
-    private ExecutorService executorService;
+    private PublishLanes publishLanes;
+    private PublishFilter publishFilter;
+    private RefOrderedExecutor refExecutor;
+    private ClusterShardRouter shardRouter;
+    private ClusterHandoff handoff;
 
-    public EventFactory(SEPRefChangeEvent sepRefChangeEvent, ExecutorService executorService){
+    public EventFactory(SEPRefChangeEvent sepRefChangeEvent, PublishLanes publishLanes, PublishFilter publishFilter,
+                        RefOrderedExecutor refExecutor, ClusterShardRouter shardRouter, ClusterHandoff handoff){
         this.sepRefChangeEvent = sepRefChangeEvent;
-        this.executorService = executorService;
+        this.shardRouter = shardRouter;
+        this.handoff = handoff;
+        handoff.setReceiver(this);
+        this.refExecutor = refExecutor;
+        this.publishLanes = publishLanes;
+        this.publishFilter = publishFilter;
     }
 
     @EventListener
     public void onRefChange(final RepositoryRefsChangedEvent event) {
         LOGGER.info("RefChange event occurred.");
-        executorService.submit(new Runnable() {
+        final Repository repo = event.getRepository();
+        if (!publishFilter.acceptsRepository(repo)) {
+            LOGGER.debug("Repository {}/{} is filtered out.", repo.getProject().getKey(), repo.getSlug());
+            return;
+        }
+
+        int size = event.getRefChanges().size();
+        List<RefChange> accepted = new ArrayList<RefChange>(size);
+        for (RefChange refChange : event.getRefChanges()) {
+            if (publishFilter.acceptsRef(refChange.getRefId())) {
+                accepted.add(refChange);
+            }
+        }
+        if (accepted.isEmpty()) {
+            return;
+        }
+
+        // the node that owns the repository publishes it, unless it can't be reached
+        String owner = shardRouter.getOwner(repo.getId());
+        if (!owner.equals(shardRouter.getLocalNodeId()) && handoff.handOff(owner, repo, accepted, size)) {
+            LOGGER.info("Handed {} ref changes of {}/{} off to node {}.", new Object[]{accepted.size(),
+                    repo.getProject().getKey(), repo.getSlug(), owner});
+            return;
+        }
+        receive(repo, accepted, size);
+    }
+
+    /*
+    * Queues ref changes of this node's own events, and the ones other nodes handed to it, which are published
+    * here even if ownership moved again since.
+    */
+    @Override
+    public void receive(Repository repo, List<RefChange> refChanges, int size) {
+        List<RefChange> interactive = new ArrayList<RefChange>(refChanges.size());
+        List<RefChange> bulk = new ArrayList<RefChange>(refChanges.size());
+        for (RefChange refChange : refChanges) {
+            if (publishLanes.classify(repo, refChange, size) == PublishLanes.Lane.BULK) {
+                bulk.add(refChange);
+            } else {
+                interactive.add(refChange);
+            }
+        }
+
+        // the ref changes of one push stay together, so commits several of them reach are published once;
+        // pushes to different branches still don't wait for each other
+        submit(PublishLanes.Lane.INTERACTIVE, repo, interactive);
+        submit(PublishLanes.Lane.BULK, repo, bulk);
+    }
+
+    private void submit(PublishLanes.Lane lane, final Repository repo, final List<RefChange> refChanges) {
+        if (refChanges.isEmpty()) {
+            return;
+        }
+        LOGGER.info("Queueing {} ref changes of {}/{} on the {} lane.", new Object[]{refChanges.size(),
+                repo.getProject().getKey(), repo.getSlug(), lane});
+        refExecutor.submit(lane, repo, refChanges, new Runnable() {
             @Override
             public void run() {
-                sepRefChangeEvent.connectRelayAndProcess(event);
+                sepRefChangeEvent.connectRelayAndProcess(repo, refChanges);
             }
         });
     }
@@ -0,0 +1,90 @@
+package com.cray.stash;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where the time of one processed event went. Stages are the stash and relay calls made while processing it,
+ * each summed over all the calls of that kind, in microseconds. The relay's connect and send stages are added
+ * by the sender threads when the event's messages are delivered, which can be after the event finished, so
+ * they aren't part of its total.
+ */
+public class EventTrace {
+
+    private final String repository;
+    private final int refChanges;
+    private final String thread;
+    private final long started;
+    private final transient long startNanos;
+    private long totalMicros;
+    private int commits;
+    private final Map<String, Long> stageMicros = new LinkedHashMap<String, Long>();
+    private final Map<String, Integer> stageCalls = new LinkedHashMap<String, Integer>();
+
+    public EventTrace(String repository, int refChanges) {
+        this.repository = repository;
+        this.refChanges = refChanges;
+        this.thread = Thread.currentThread().getName();
+        this.started = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    private EventTrace(EventTrace trace) {
+        this.repository = trace.repository;
+        this.refChanges = trace.refChanges;
+        this.thread = trace.thread;
+        this.started = trace.started;
+        this.startNanos = trace.startNanos;
+        this.totalMicros = trace.totalMicros;
+        this.commits = trace.commits;
+    }
+
+    public String getRepository() {return repository;}
+
+    public int getRefChanges() {return refChanges;}
+
+    public long getStarted() {return started;}
+
+    public long getTotalMicros() {return totalMicros;}
+
+    public int getCommits() {return commits;}
+
+    public synchronized Map<String, Long> getStageMicros() {return new LinkedHashMap<String, Long>(stageMicros);}
+
+    synchronized void addStage(String stage, long nanos) {
+        Long micros = stageMicros.get(stage);
+        Integer calls = stageCalls.get(stage);
+        stageMicros.put(stage, (micros == null ? 0 : micros) + nanos / 1000);
+        stageCalls.put(stage, (calls == null ? 0 : calls) + 1);
+    }
+
+    synchronized void addCommits(int count) {
+        commits += count;
+    }
+
+    void finish() {
+        totalMicros = (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /*
+    * A copy that sender threads don't add to any more, for serializing.
+    */
+    synchronized EventTrace snapshot() {
+        EventTrace copy = new EventTrace(this);
+        copy.stageMicros.putAll(stageMicros);
+        copy.stageCalls.putAll(stageCalls);
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(repository).append(" took ").append(totalMicros / 1000).append("ms for ").append(refChanges)
+                .append(" ref changes and ").append(commits).append(" commits on ").append(thread).append(":");
+        for (Map.Entry<String, Long> stage : stageMicros.entrySet()) {
+            sb.append(' ').append(stage.getKey()).append('=').append(stage.getValue() / 1000).append("ms/")
+                    .append(stageCalls.get(stage.getKey()));
+        }
+        return sb.toString();
+    }
+}
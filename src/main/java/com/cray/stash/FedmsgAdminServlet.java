@@ -0,0 +1,174 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionService;
+import com.google.gson.Gson;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Admin endpoint for the plugin, served at /plugins/servlet/fedmsg/admin. GET lists the backfill jobs, or with
+ * view=slow the slowest events recorded since startup, with view=breakers the stash circuit breakers and with
+ * view=heap the payload bytes in flight and whether the heap is under pressure. With
+ * view=audit it searches the message audit log:
+ *   view=audit&commit=sha[&limit=n]
+ *   view=audit&project=KEY&repository=slug[&from=millis][&to=millis][&limit=n]
+ * POST manages backfill jobs:
+ *   action=backfill&project=KEY&repository=slug&ref=master[&from=sha][&to=sha][&cursor=n]
+ *   action=pause|resume|cancel&job=id
+ * and, like the rest of the stash REST api, has to carry an X-Atlassian-Token: no-check header so a page on
+ * another site can't make an administrator's browser post it.
+ * In a cluster a backfill has to be submitted to the node that owns the repository, any other node answers
+ * 409 with the owner's node id.
+ */
+public class FedmsgAdminServlet extends HttpServlet {
+
+    private final SEPBackfill backfill;
+    private final PermissionService permissionService;
+    private final RepositoryService repoService;
+    private final ClusterShardRouter shardRouter;
+    private final SlowEventRecorder recorder;
+    private final StashCircuitBreakers breakers;
+    private final MessageAuditLog auditLog;
+    private final HeapPressureGuard heapGuard;
+    private final Gson gson = new Gson();
+
+    public FedmsgAdminServlet(SEPBackfill backfill, PermissionService permissionService, RepositoryService repoService,
+                              ClusterShardRouter shardRouter, SlowEventRecorder recorder, StashCircuitBreakers breakers,
+                              MessageAuditLog auditLog, HeapPressureGuard heapGuard) {
+        this.backfill = backfill;
+        this.heapGuard = heapGuard;
+        this.auditLog = auditLog;
+        this.permissionService = permissionService;
+        this.repoService = repoService;
+        this.shardRouter = shardRouter;
+        this.recorder = recorder;
+        this.breakers = breakers;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (!isAdmin(resp)) {
+            return;
+        }
+        if ("slow".equals(req.getParameter("view"))) {
+            writeJson(resp, recorder.getSlowest());
+        } else if ("breakers".equals(req.getParameter("view"))) {
+            writeJson(resp, breakers.getAll());
+        } else if ("heap".equals(req.getParameter("view"))) {
+            writeJson(resp, heapGuard.getStatus());
+        } else if ("audit".equals(req.getParameter("view"))) {
+            searchAudit(req, resp);
+        } else {
+            writeJson(resp, backfill.getJobs());
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (!isAdmin(resp)) {
+            return;
+        }
+        if (!"no-check".equals(req.getHeader("X-Atlassian-Token"))) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN, "XSRF check failed, send X-Atlassian-Token: no-check");
+            return;
+        }
+
+        String action = req.getParameter("action");
+        BackfillJob job;
+        if ("backfill".equals(action)) {
+            String project = req.getParameter("project");
+            String repository = req.getParameter("repository");
+            String ref = req.getParameter("ref");
+            if (project == null || repository == null || ref == null) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "project, repository and ref are required");
+                return;
+            }
+            Repository repo = repoService.getBySlug(project, repository);
+            if (repo == null) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such repository");
+                return;
+            }
+            if (!shardRouter.isLocallyOwned(repo.getId())) {
+                resp.setStatus(HttpServletResponse.SC_CONFLICT);
+                writeJson(resp, Collections.singletonMap("owner", shardRouter.getOwner(repo.getId())));
+                return;
+            }
+            int cursor = 0;
+            try {
+                if (req.getParameter("cursor") != null) {
+                    cursor = Integer.parseInt(req.getParameter("cursor"));
+                }
+            } catch (NumberFormatException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "cursor must be a number");
+                return;
+            }
+            job = backfill.submit(project, repository, ref, req.getParameter("from"), req.getParameter("to"), cursor);
+        } else if ("pause".equals(action)) {
+            job = backfill.pause(req.getParameter("job"));
+        } else if ("resume".equals(action)) {
+            job = backfill.resume(req.getParameter("job"));
+        } else if ("cancel".equals(action)) {
+            job = backfill.cancel(req.getParameter("job"));
+        } else {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown action: " + action);
+            return;
+        }
+
+        if (job == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such job");
+            return;
+        }
+        writeJson(resp, job);
+    }
+
+    private void searchAudit(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        long from;
+        long to;
+        int limit;
+        try {
+            from = req.getParameter("from") == null ? 0 : Long.parseLong(req.getParameter("from"));
+            to = req.getParameter("to") == null ? Long.MAX_VALUE : Long.parseLong(req.getParameter("to"));
+            limit = req.getParameter("limit") == null ? 1000 : Integer.parseInt(req.getParameter("limit"));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "from, to and limit must be numbers");
+            return;
+        }
+
+        if (req.getParameter("commit") != null) {
+            writeJson(resp, auditLog.findByCommit(req.getParameter("commit"), limit));
+            return;
+        }
+        String project = req.getParameter("project");
+        String repository = req.getParameter("repository");
+        if (project == null || repository == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "commit, or project and repository are required");
+            return;
+        }
+        Repository repo = repoService.getBySlug(project, repository);
+        if (repo == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such repository");
+            return;
+        }
+        writeJson(resp, auditLog.findByRepository(repo.getId(), from, to, limit));
+    }
+
+    private boolean isAdmin(HttpServletResponse resp) throws IOException {
+        if (!permissionService.hasGlobalPermission(Permission.ADMIN)) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN, "Only administrators may use this endpoint");
+            return false;
+        }
+        return true;
+    }
+
+    private void writeJson(HttpServletResponse resp, Object value) throws IOException {
+        resp.setContentType("application/json;charset=UTF-8");
+        resp.getWriter().write(gson.toJson(value));
+    }
+}
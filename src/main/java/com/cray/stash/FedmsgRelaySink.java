@@ -0,0 +1,89 @@
+package com.cray.stash;
+
+import org.fedoraproject.fedmsg.FedmsgConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Delivers messages to the fedmsg relay over one long lived connection. The fedmsg library owns the framing,
+ * so every message is still one FedmsgConnection.send; what a batch saves is the connection setup, which the
+ * relay used to pay per event. Each message is encoded by the payload codec of its topic. Connecting and
+ * sending are timed against the events the messages came from.
+ */
+public class FedmsgRelaySink implements MessageSink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final String endpoint;
+    private final PayloadCodecs codecs;
+    private FedmsgConnection connection;
+
+    public FedmsgRelaySink(String endpoint, PayloadCodecs codecs) {
+        this.endpoint = endpoint;
+        this.codecs = codecs;
+    }
+
+    @Override
+    public String getName() {return "relay";}
+
+    @Override
+    public int deliver(List<Message> batch) {
+        boolean connecting = connection == null;
+        long start = System.nanoTime();
+        FedmsgConnection relay = connect();
+        if (connecting) {
+            Set<EventTrace> traces = new LinkedHashSet<EventTrace>();
+            for (Message message : batch) {
+                if (message.getTrace() != null) {
+                    traces.add(message.getTrace());
+                }
+            }
+            for (EventTrace trace : traces) {
+                trace.addStage("connect", System.nanoTime() - start);
+            }
+        }
+        if (relay == null) {
+            return 0;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Message message = batch.get(i);
+            start = System.nanoTime();
+            boolean sent = message.sendMessage(relay, codecs.forTopic(message.getTopic()));
+            if (message.getTrace() != null) {
+                message.getTrace().addStage("send", System.nanoTime() - start);
+            }
+            if (!sent) {
+                return i;
+            }
+        }
+        return batch.size();
+    }
+
+    @Override
+    public void close() {
+        if (connection != null) {
+            try {
+                LOGGER.info("Disconnecting from relay.");
+                connection.disconnect();
+            } catch (Exception e) {
+                LOGGER.error("Error while disconnecting from the fedmsg relay", e);
+            }
+            connection = null;
+        }
+    }
+
+    private FedmsgConnection connect() {
+        if (connection == null) {
+            try {
+                LOGGER.info("Establishing connection to relay.");
+                connection = new FedmsgConnection(endpoint, 2000).connect();
+            } catch (Exception e) {
+                LOGGER.error("Failed to connect to relay", e);
+            }
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,65 @@
+package com.cray.stash;
+
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Appends every message to a local file as one line of JSON, {"topic", "i", "timestamp", "msg"}. The file is
+ * flushed once per batch and only ever appended to, so it can be tailed or shipped by other tools.
+ */
+public class FileSink implements MessageSink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final File file;
+    private final Gson gson = new Gson();
+    private OutputStream out;
+
+    public FileSink(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public String getName() {return "file";}
+
+    @Override
+    public int deliver(List<Message> batch) {
+        try {
+            if (out == null) {
+                File parent = file.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create " + parent);
+                }
+                out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+            }
+            for (Message message : batch) {
+                out.write(gson.toJson(message.toEnvelope()).getBytes("UTF-8"));
+                out.write('\n');
+            }
+            out.flush();
+            return batch.size();
+        } catch (IOException e) {
+            LOGGER.error("Failed to append messages to {}", file, e);
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.error("Failed to close {}", file, e);
+            }
+            out = null;
+        }
+    }
+}
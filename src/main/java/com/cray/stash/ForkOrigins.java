@@ -0,0 +1,111 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.Branch;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryBranchesRequest;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageUtils;
+import com.atlassian.stash.util.UncheckedOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lets pushes to a fork skip the commits it inherited from its origin. The branch tips of the origin are
+ * excluded when the new commits of a fork are listed, and the published commit index counts commits the
+ * origin already announced (see PublishedCommitIndex). Tips are cached for a minute per origin; a stale tip
+ * only means fewer excludes, which the index makes up for. plugin.fedmsg.forks.suppress turns it off.
+ */
+public class ForkOrigins {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private static final long TIPS_MILLIS = 60000;
+    private final RefService refService;
+    private final SecurityService security;
+    private final StashCircuitBreakers breakers;
+    private final SlowEventRecorder recorder;
+    private final boolean enabled;
+    private final Map<Integer, Tips> tips = new LinkedHashMap<Integer, Tips>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Tips> eldest) {
+            return size() > 256;
+        }
+    };
+
+    public ForkOrigins(RefService refService, SecurityService security, ApplicationPropertiesService appService,
+                       StashCircuitBreakers breakers, SlowEventRecorder recorder) {
+        this.refService = refService;
+        this.security = security;
+        this.breakers = breakers;
+        this.recorder = recorder;
+        enabled = new PluginProperties(appService).getBoolean("plugin.fedmsg.forks.suppress", true);
+    }
+
+    /*
+    * The repository the given one was forked from, or null if it isn't a fork.
+    */
+    public Repository getOrigin(Repository repo) {
+        return enabled && repo.isFork() ? repo.getOrigin() : null;
+    }
+
+    /*
+    * The commit ids at the tips of the origin's branches, at most a page of them.
+    */
+    public Set<String> getTips(final Repository origin) {
+        synchronized (tips) {
+            Tips cached = tips.get(origin.getId());
+            if (cached != null && System.currentTimeMillis() - cached.fetched < TIPS_MILLIS) {
+                return cached.commitIds;
+            }
+        }
+        if (!breakers.getBranches().allowRequest()) {
+            return Collections.emptySet();
+        }
+
+        Set<String> commitIds = new HashSet<String>();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Page<Branch> branches = security.withPermission(Permission.ADMIN, "Listing the branches of a fork origin").call(new UncheckedOperation<Page<Branch>>() {
+                @Override
+                public Page<Branch> perform() {
+                    return refService.getBranches(new RepositoryBranchesRequest.Builder(origin).build(), PageUtils.newRequest(0, 100));
+                }
+            });
+            for (Branch branch : branches.getValues()) {
+                commitIds.add(branch.getLatestCommit());
+            }
+            success = true;
+        } catch (Exception e) {
+            LOGGER.error("An error occurred while finding the branches of a fork origin", e);
+        } finally {
+            breakers.getBranches().record(start, success);
+            recorder.stage("originTips", start);
+        }
+
+        if (success) {
+            synchronized (tips) {
+                tips.put(origin.getId(), new Tips(commitIds));
+            }
+        }
+        return commitIds;
+    }
+
+    private static class Tips {
+        private final Set<String> commitIds;
+        private final long fetched = System.currentTimeMillis();
+
+        Tips(Set<String> commitIds) {
+            this.commitIds = commitIds;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.cray.stash;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a string against a fixed set of glob patterns ('*' matches anything, '?' one character). The set is
+ * compiled once: literal patterns go into a hash set, patterns whose only wildcard is a trailing '*' go into
+ * a prefix trie and anything else is folded into a single regular expression, so the common cases cost one
+ * hash lookup or one walk down the trie.
+ */
+public class GlobMatcher {
+
+    private final Set<String> exact = new HashSet<String>();
+    private final Node prefixes = new Node();
+    private boolean hasPrefixes;
+    private Pattern others;
+
+    public GlobMatcher(Collection<String> globs) {
+        StringBuilder regex = new StringBuilder();
+        for (String glob : globs) {
+            if (glob.isEmpty()) {
+                continue;
+            }
+            int star = glob.indexOf('*');
+            if (star < 0 && glob.indexOf('?') < 0) {
+                exact.add(glob);
+            } else if (star == glob.length() - 1 && glob.indexOf('?') < 0) {
+                addPrefix(glob.substring(0, star));
+            } else {
+                if (regex.length() > 0) {
+                    regex.append('|');
+                }
+                regex.append(toRegex(glob));
+            }
+        }
+        if (regex.length() > 0) {
+            others = Pattern.compile(regex.toString());
+        }
+    }
+
+    public boolean isEmpty() {
+        return exact.isEmpty() && !hasPrefixes && others == null;
+    }
+
+    public boolean matches(String value) {
+        if (value == null) {
+            return false;
+        }
+        if (exact.contains(value)) {
+            return true;
+        }
+        if (hasPrefixes) {
+            Node node = prefixes;
+            for (int i = 0; ; i++) {
+                if (node.terminal) {
+                    return true;
+                }
+                if (i == value.length()) {
+                    break;
+                }
+                node = node.children.get(value.charAt(i));
+                if (node == null) {
+                    break;
+                }
+            }
+        }
+        return others != null && others.matcher(value).matches();
+    }
+
+    private void addPrefix(String prefix) {
+        Node node = prefixes;
+        for (int i = 0; i < prefix.length(); i++) {
+            Node child = node.children.get(prefix.charAt(i));
+            if (child == null) {
+                child = new Node();
+                node.children.put(prefix.charAt(i), child);
+            }
+            node = child;
+        }
+        node.terminal = true;
+        hasPrefixes = true;
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder("(?:");
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return regex.append(')').toString();
+    }
+
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<Character, Node>(4);
+        private boolean terminal;
+    }
+}
@@ -0,0 +1,197 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the plugin from being the reason the Stash JVM runs out of heap. Two things are watched:
+ *
+ * The payloads in flight, from the moment messages are queued for the sinks until the primary sink is done
+ * with them, are held to plugin.fedmsg.heap.inFlightBytes. A publisher that would go over the budget waits for
+ * the sinks to catch up, at most plugin.fedmsg.heap.maxWaitMillis.
+ *
+ * The heap pools get a usage threshold at plugin.fedmsg.heap.threshold of their maximum, unless something else
+ * already set one. Once a pool crosses it the heap is under pressure until its usage after a collection is back
+ * below the threshold. Under pressure new events wait before they are processed, at most
+ * plugin.fedmsg.heap.maxPauseMillis, and commits are enriched plugin.fedmsg.heap.pressureChunkSize at a time
+ * instead of plugin.fedmsg.heap.chunkSize.
+ */
+public class HeapPressureGuard implements NotificationListener, DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final long budget;
+    private final long maxWaitMillis;
+    private final long maxPauseMillis;
+    private final int chunkSize;
+    private final int pressureChunkSize;
+    private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    private final List<MemoryPoolMXBean> thresholdsSet = new ArrayList<MemoryPoolMXBean>();
+    private final List<MemoryPoolMXBean> collectionThresholdsSet = new ArrayList<MemoryPoolMXBean>();
+    private final Object lock = new Object();
+    private long inFlight;
+    private long pressureEvents;
+    private volatile boolean pressure;
+
+    public HeapPressureGuard(ApplicationPropertiesService appService) {
+        PluginProperties properties = new PluginProperties(appService);
+        budget = properties.getLong("plugin.fedmsg.heap.inFlightBytes", 64L * 1024 * 1024);
+        maxWaitMillis = properties.getLong("plugin.fedmsg.heap.maxWaitMillis", 30000);
+        maxPauseMillis = properties.getLong("plugin.fedmsg.heap.maxPauseMillis", 60000);
+        chunkSize = Math.max(1, properties.getInt("plugin.fedmsg.heap.chunkSize", 100));
+        pressureChunkSize = Math.max(1, properties.getInt("plugin.fedmsg.heap.pressureChunkSize", 10));
+        double threshold = properties.getDouble("plugin.fedmsg.heap.threshold", 0.8);
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported() || max <= 0) {
+                continue;
+            }
+            pools.add(pool);
+            if (pool.getUsageThreshold() == 0) {
+                long bytes = (long) (max * threshold);
+                pool.setUsageThreshold(bytes);
+                if (pool.isCollectionUsageThresholdSupported() && pool.getCollectionUsageThreshold() == 0) {
+                    pool.setCollectionUsageThreshold(bytes);
+                    collectionThresholdsSet.add(pool);
+                }
+                thresholdsSet.add(pool);
+            } else {
+                LOGGER.info("Keeping the existing usage threshold of {} bytes on the {} heap pool.", pool.getUsageThreshold(), pool.getName());
+            }
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(notification.getType())
+                || MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            synchronized (lock) {
+                if (!pressure) {
+                    pressureEvents++;
+                    LOGGER.info("The heap is under pressure ({}), pausing new events and shrinking batches.", notification.getMessage());
+                }
+                pressure = true;
+            }
+        }
+    }
+
+    public boolean isUnderPressure() {
+        if (!pressure) {
+            return false;
+        }
+        for (MemoryPoolMXBean pool : pools) {
+            // the usage after the last collection, the current usage includes garbage
+            MemoryUsage usage = pool.getCollectionUsage() != null ? pool.getCollectionUsage() : pool.getUsage();
+            if (pool.getUsageThreshold() > 0 && usage.getUsed() >= pool.getUsageThreshold()) {
+                return true;
+            }
+        }
+        synchronized (lock) {
+            if (pressure) {
+                pressure = false;
+                LOGGER.info("The heap recovered, resuming.");
+                lock.notifyAll();
+            }
+        }
+        return false;
+    }
+
+    /*
+    * How many commits to enrich and send at once.
+    */
+    public int getChunkSize() {
+        return isUnderPressure() ? pressureChunkSize : chunkSize;
+    }
+
+    /*
+    * Waits until the heap is no longer under pressure, at most plugin.fedmsg.heap.maxPauseMillis.
+    */
+    public void awaitAdmission() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxPauseMillis;
+        synchronized (lock) {
+            while (isUnderPressure()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    LOGGER.info("The heap has been under pressure for {} ms, processing the event anyway.", maxPauseMillis);
+                    return;
+                }
+                // recovery only shows after a collection, which doesn't notify anyone, so check again every second
+                lock.wait(Math.min(remaining, 1000));
+            }
+        }
+    }
+
+    /*
+    * Reserves room for payloads about to be queued. Waits while that would go over the budget, unless nothing
+    * else is in flight, so a payload larger than the whole budget can still go out on its own.
+    */
+    public void acquire(long bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        synchronized (lock) {
+            while (inFlight > 0 && inFlight + bytes > budget) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    LOGGER.info("{} bytes of messages have been in flight for {} ms, queueing more anyway.", inFlight, maxWaitMillis);
+                    break;
+                }
+                lock.wait(remaining);
+            }
+            inFlight += bytes;
+        }
+    }
+
+    public void release(long bytes) {
+        synchronized (lock) {
+            inFlight = Math.max(0, inFlight - bytes);
+            lock.notifyAll();
+        }
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        synchronized (lock) {
+            status.put("inFlightBytes", inFlight);
+            status.put("pressureEvents", pressureEvents);
+        }
+        status.put("budgetBytes", budget);
+        status.put("underPressure", isUnderPressure());
+        status.put("chunkSize", getChunkSize());
+        return status;
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (ListenerNotFoundException e) {
+            LOGGER.error("The heap pressure listener was already removed", e);
+        }
+        for (MemoryPoolMXBean pool : thresholdsSet) {
+            pool.setUsageThreshold(0);
+        }
+        for (MemoryPoolMXBean pool : collectionThresholdsSet) {
+            pool.setCollectionUsageThreshold(0);
+        }
+        synchronized (lock) {
+            pressure = false;
+            lock.notifyAll();
+        }
+    }
+}
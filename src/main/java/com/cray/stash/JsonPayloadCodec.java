@@ -0,0 +1,37 @@
+package com.cray.stash;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The default codec. The relay gets the content as before with a schema_version field added, so existing
+ * subscribers keep working and new ones can tell layouts apart the way msgpack consumers do.
+ */
+public class JsonPayloadCodec implements PayloadCodec {
+
+    private final Gson gson = new Gson();
+
+    @Override
+    public String getName() {return "json";}
+
+    @Override
+    public String getContentType() {return "application/json";}
+
+    @Override
+    public byte[] encode(Map<String, Object> content) throws IOException {
+        return gson.toJson(toRelayBody(content)).getBytes("UTF-8");
+    }
+
+    /*
+    * A copy of the content with the schema version, the message itself is shared by all sinks.
+    */
+    @Override
+    public Map<String, Object> toRelayBody(Map<String, Object> content) {
+        Map<String, Object> body = new HashMap<String, Object>(content);
+        body.put("schema_version", PayloadCodecs.SCHEMA_VERSION);
+        return body;
+    }
+}
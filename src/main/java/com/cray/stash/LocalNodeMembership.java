@@ -0,0 +1,45 @@
+package com.cray.stash;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An in process stand-in for a cluster. Every node created against the same set of live nodes sees the others
+ * join and leave, so several routers in one JVM behave like the nodes of a real cluster.
+ */
+public class LocalNodeMembership implements NodeMembership {
+
+    private final String localNodeId;
+    private final Set<String> liveNodes;
+
+    public LocalNodeMembership(String localNodeId, Set<String> liveNodes) {
+        this.localNodeId = localNodeId;
+        this.liveNodes = liveNodes;
+        join();
+    }
+
+    public void join() {
+        synchronized (liveNodes) {
+            liveNodes.add(localNodeId);
+        }
+    }
+
+    public void leave() {
+        synchronized (liveNodes) {
+            liveNodes.remove(localNodeId);
+        }
+    }
+
+    @Override
+    public String getLocalNodeId() {
+        return localNodeId;
+    }
+
+    @Override
+    public Set<String> getLiveNodeIds() {
+        synchronized (liveNodes) {
+            return Collections.unmodifiableSet(new HashSet<String>(liveNodes));
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -13,6 +14,12 @@ public class Message {
 
     private HashMap<String, Object> content;
     private String topic;
+    private int repositoryId;
+    private String commitId;
+    private long sequence = 1;
+    private long estimatedBytes = -1;
+    private EventTrace trace;
+    private PendingTip pendingTip;
     private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
 
     public Message(Map<String, Object> content, String topic) {
@@ -20,27 +27,107 @@ public class Message {
         this.content = (HashMap)content;
     }
 
+    public Message(Map<String, Object> content, String topic, int repositoryId, String commitId) {
+        this(content, topic);
+        this.repositoryId = repositoryId;
+        this.commitId = commitId;
+    }
+
     public Map<String, Object> getMessage() {return content;}
 
     public String getTopic() {return topic;}
 
+    public int getRepositoryId() {return repositoryId;}
+
+    public String getCommitId() {return commitId;}
+
+    public long getSequence() {return sequence;}
+
+    public void setSequence(long sequence) {this.sequence = sequence;}
+
+    /*
+    * The trace of the event the message was published for, so the sink can add its delivery to it. Null for
+    * messages published outside of an event.
+    */
+    public EventTrace getTrace() {return trace;}
+
+    public void setTrace(EventTrace trace) {this.trace = trace;}
+
+    /*
+    * The tip of the ref the message was published for, recorded once the primary sink delivered it and the
+    * other messages of the push. Null for messages published outside of a push.
+    */
+    public PendingTip getPendingTip() {return pendingTip;}
+
+    public void setPendingTip(PendingTip pendingTip) {this.pendingTip = pendingTip;}
+
+    /*
+    * A rough size of the message on the heap, for the in-flight byte budget of the HeapPressureGuard.
+    */
+    public long getEstimatedBytes() {
+        if (estimatedBytes < 0) {
+            estimatedBytes = 64 + estimate(topic) + estimate(content);
+        }
+        return estimatedBytes;
+    }
+
+    private static long estimate(Object value) {
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        } else if (value instanceof Map) {
+            long bytes = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += 32 + estimate(entry.getKey()) + estimate(entry.getValue());
+            }
+            return bytes;
+        } else if (value instanceof Collection) {
+            long bytes = 24;
+            for (Object element : (Collection<?>) value) {
+                bytes += 8 + estimate(element);
+            }
+            return bytes;
+        }
+        return 16;
+    }
+
+    /*
+    * The message the way sinks other than the relay write it: topic, sequence, timestamp and content.
+    */
+    public Map<String, Object> toEnvelope() {
+        HashMap<String, Object> envelope = new HashMap<String, Object>(4);
+        envelope.put("topic", topic.toLowerCase());
+        envelope.put("i", sequence);
+        envelope.put("timestamp", System.currentTimeMillis() / 1000);
+        envelope.put("msg", content);
+        return envelope;
+    }
+
     /*
      * This is a helper method for all events, it simply sends the message to Fedmsg with
      * a specified topic and prepends an topic prefix, environment, and modname.
      */
-    public void sendMessage(FedmsgConnection connection) {
+    public boolean sendMessage(FedmsgConnection connection) {
+        return sendMessage(connection, null);
+    }
+
+    /*
+    * Sends the message with its content encoded by the given codec, or as is if the codec is null.
+    */
+    public boolean sendMessage(FedmsgConnection connection, PayloadCodec codec) {
         LOGGER.info("Sending fedmsg message...");
-        FedmsgMessage msg = new FedmsgMessage(
-                content,
-                topic.toLowerCase(),
-                (new java.util.Date()).getTime() / 1000,
-                1);
         try {
+            FedmsgMessage msg = new FedmsgMessage(
+                    codec == null ? content : codec.toRelayBody(content),
+                    topic.toLowerCase(),
+                    (new java.util.Date()).getTime() / 1000,
+                    sequence);
             connection.send(msg);
+            return true;
         } catch (IOException e) {
             LOGGER.error("IOException occurred when sending fedmsg message: {}\nError: {}", e.getMessage(), e);
         } catch (Exception e) {
             LOGGER.error("Exception occurred when sending fedmsg message: {}\nError: {}", e.getMessage(), e);
         }
+        return false;
     }
 }
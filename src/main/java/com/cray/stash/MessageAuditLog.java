@@ -0,0 +1,613 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only record of every message handed to a sink and what became of it, kept under
+ * ${stash.home}/data/fedmsg/audit, so a consumer's claim that it never saw a commit can be checked without
+ * grepping rotated logs.
+ *
+ * Records are appended to numbered segment files by a background thread, in batches of whatever arrived within
+ * plugin.fedmsg.audit.flushMillis, so publishing only pays for queueing them. A segment that reaches
+ * plugin.fedmsg.audit.segmentBytes is sealed: an index file is written next to it, holding its records sorted
+ * by commit id and sorted by repository and time, which is binary searched. The segment
+ * still being written is indexed in memory. Once all segments together exceed plugin.fedmsg.audit.maxBytes the
+ * oldest ones are deleted.
+ */
+public class MessageAuditLog implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private static final int MAGIC = 0x46444155;
+    private static final int INDEX_HEADER = 24;
+    private static final int COMMIT_ENTRY = 12;
+    private static final int REPOSITORY_ENTRY = 16;
+    private final File directory;
+    private final boolean enabled;
+    private final long segmentBytes;
+    private final long maxBytes;
+    private final long flushMillis;
+    private final BlockingQueue<Entry> pending;
+    private final TreeMap<Long, SealedSegment> sealed = new TreeMap<Long, SealedSegment>();
+    private final Thread writer;
+    private ActiveSegment active;
+    private long dropped;
+    private volatile boolean running = true;
+
+    public MessageAuditLog(ApplicationPropertiesService appService) {
+        PluginProperties properties = new PluginProperties(appService);
+        directory = new File(properties.getHomeDir(), "data/fedmsg/audit");
+        enabled = properties.getBoolean("plugin.fedmsg.audit.enabled", true);
+        segmentBytes = properties.getLong("plugin.fedmsg.audit.segmentBytes", 16L * 1024 * 1024);
+        maxBytes = properties.getLong("plugin.fedmsg.audit.maxBytes", 256L * 1024 * 1024);
+        flushMillis = properties.getLong("plugin.fedmsg.audit.flushMillis", 1000);
+        pending = new LinkedBlockingQueue<Entry>(properties.getInt("plugin.fedmsg.audit.queueSize", 10000));
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "fedmsg-audit");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        if (!enabled) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.error("Failed to create the audit directory {}", directory);
+        }
+        try {
+            open();
+            writer.start();
+        } catch (IOException e) {
+            LOGGER.error("Failed to open the audit log, messages won't be audited", e);
+            running = false;
+        }
+    }
+
+    /*
+    * Records the outcome of a batch handed to a sink, of which the first delivered messages made it.
+    */
+    public void record(List<Message> batch, String sink, int delivered) {
+        for (int i = 0; i < batch.size(); i++) {
+            record(batch.get(i), sink, i < delivered ? Entry.DELIVERED : Entry.FAILED);
+        }
+    }
+
+    public void record(Message message, String sink, String outcome) {
+        if (!enabled || !running) {
+            return;
+        }
+        if (!pending.offer(new Entry(message, sink, outcome))) {
+            synchronized (pending) {
+                if (dropped++ % 1000 == 0) {
+                    LOGGER.error("The audit queue is full, {} records dropped so far.", dropped);
+                }
+            }
+        }
+    }
+
+    /*
+    * The records of a commit, oldest first.
+    */
+    public synchronized List<Entry> findByCommit(String commitId, int limit) throws IOException {
+        List<Entry> found = new ArrayList<Entry>();
+        long key = PublishedCommitIndex.key(commitId);
+        for (SealedSegment segment : sealed.values()) {
+            segment.findByCommit(key, commitId, found, limit);
+        }
+        if (active != null) {
+            active.findByCommit(key, commitId, found, limit);
+        }
+        return found;
+    }
+
+    /*
+    * The records of a repository between two times in milliseconds, oldest first.
+    */
+    public synchronized List<Entry> findByRepository(int repositoryId, long from, long to, int limit) throws IOException {
+        List<Entry> found = new ArrayList<Entry>();
+        for (SealedSegment segment : sealed.values()) {
+            if (segment.maxTime >= from && segment.minTime <= to) {
+                segment.findByRepository(repositoryId, from, to, found, limit);
+            }
+        }
+        if (active != null) {
+            active.findByRepository(repositoryId, from, to, found, limit);
+        }
+        return found;
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (active != null) {
+                active.close();
+            }
+        }
+    }
+
+    private void work() {
+        List<Entry> batch = new ArrayList<Entry>();
+        while (running || !pending.isEmpty()) {
+            try {
+                Entry first = running ? pending.poll(1, TimeUnit.MINUTES) : pending.poll();
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                if (running) {
+                    try {
+                        Thread.sleep(flushMillis);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                pending.drainTo(batch);
+                append(batch);
+            } catch (InterruptedException e) {
+                // finish writing what is queued, then stop
+                running = false;
+            } catch (Exception e) {
+                LOGGER.error("Failed to write to the audit log", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /*
+    * Seals the active segment as soon as it is full, even half way through a batch, so a burst of records
+    * doesn't make one oversized segment that retention can only delete as a whole.
+    */
+    private synchronized void append(List<Entry> batch) throws IOException {
+        for (Entry entry : batch) {
+            active.append(entry);
+            if (active.size >= segmentBytes) {
+                long number = active.number;
+                active.close();
+                sealed.put(number, seal(active));
+                active = new ActiveSegment(number + 1);
+                enforceRetention();
+            }
+        }
+        active.flush();
+    }
+
+    /*
+    * Sealed segments have an index file. The newest segment without one is the active one; an older segment
+    * without one was being sealed during a crash and is sealed now.
+    */
+    private synchronized void open() throws IOException {
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.getName().matches("\\d+\\.log")) {
+                segments.put(Long.parseLong(file.getName().substring(0, file.getName().length() - 4)), file);
+            }
+        }
+        long last = segments.isEmpty() ? 0 : segments.lastKey();
+        for (Long number : segments.keySet()) {
+            SealedSegment segment = SealedSegment.open(directory, number);
+            if (segment != null) {
+                sealed.put(number, segment);
+            } else if (number != last) {
+                ActiveSegment recovered = new ActiveSegment(number);
+                recovered.close();
+                sealed.put(number, seal(recovered));
+            }
+        }
+        active = new ActiveSegment(sealed.containsKey(last) ? last + 1 : last);
+        enforceRetention();
+    }
+
+    private void enforceRetention() {
+        long total = active.size;
+        for (SealedSegment segment : sealed.values()) {
+            total += segment.bytes();
+        }
+        while (total > maxBytes && !sealed.isEmpty()) {
+            SealedSegment oldest = sealed.remove(sealed.firstKey());
+            total -= oldest.bytes();
+            oldest.delete();
+        }
+    }
+
+    /*
+    * Writes the index of a full segment: a header with the record count and time range, the records sorted by
+    * commit key, then sorted by repository and time. Written next to the index and renamed, so an index file
+    * is either complete or missing.
+    */
+    private SealedSegment seal(final ActiveSegment segment) throws IOException {
+        int count = segment.count;
+        Integer[] byCommit = new Integer[count];
+        Integer[] byRepository = new Integer[count];
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            byCommit[i] = i;
+            byRepository[i] = i;
+            minTime = Math.min(minTime, segment.times[i]);
+            maxTime = Math.max(maxTime, segment.times[i]);
+        }
+        Arrays.sort(byCommit, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareLongs(segment.keys[a], segment.keys[b]);
+            }
+        });
+        Arrays.sort(byRepository, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byId = compareLongs(segment.repositories[a], segment.repositories[b]);
+                return byId != 0 ? byId : compareLongs(segment.times[a], segment.times[b]);
+            }
+        });
+
+        File index = SealedSegment.indexFile(directory, segment.number);
+        File tmp = new File(index.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            out.writeLong(count == 0 ? 0 : minTime);
+            out.writeLong(count == 0 ? 0 : maxTime);
+            for (Integer i : byCommit) {
+                out.writeLong(segment.keys[i]);
+                out.writeInt(segment.offsets[i]);
+            }
+            for (Integer i : byRepository) {
+                out.writeInt(segment.repositories[i]);
+                out.writeLong(segment.times[i]);
+                out.writeInt(segment.offsets[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(index)) {
+            throw new IOException("Could not rename " + tmp + " to " + index);
+        }
+        SealedSegment opened = SealedSegment.open(directory, segment.number);
+        if (opened == null) {
+            throw new IOException("The index " + index + " just written can't be read");
+        }
+        return opened;
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static File segmentFile(File directory, long number) {
+        return new File(directory, number + ".log");
+    }
+
+    private static Entry read(RandomAccessFile file, long offset) throws IOException {
+        file.seek(offset);
+        Entry entry = new Entry();
+        entry.timestamp = file.readLong();
+        entry.repositoryId = file.readInt();
+        entry.sequence = file.readLong();
+        entry.topic = file.readUTF();
+        entry.commitId = file.readUTF();
+        entry.sink = file.readUTF();
+        entry.outcome = file.readUTF();
+        if (entry.commitId.isEmpty()) {
+            entry.commitId = null;
+        }
+        return entry;
+    }
+
+    /*
+    * One audit record. Gson writes the fields as they are.
+    */
+    public static class Entry {
+        public static final String DELIVERED = "delivered";
+        public static final String FAILED = "failed";
+        public static final String DROPPED = "dropped";
+
+        private long timestamp;
+        private int repositoryId;
+        private long sequence;
+        private String topic;
+        private String commitId;
+        private String sink;
+        private String outcome;
+
+        Entry() {
+        }
+
+        Entry(Message message, String sink, String outcome) {
+            timestamp = System.currentTimeMillis();
+            repositoryId = message.getRepositoryId();
+            sequence = message.getSequence();
+            topic = message.getTopic();
+            commitId = message.getCommitId();
+            this.sink = sink;
+            this.outcome = outcome;
+        }
+
+        public long getTimestamp() {return timestamp;}
+
+        public int getRepositoryId() {return repositoryId;}
+
+        public String getCommitId() {return commitId;}
+
+        public String getTopic() {return topic;}
+
+        public String getSink() {return sink;}
+
+        public String getOutcome() {return outcome;}
+    }
+
+    /*
+    * The segment being written, with its index in plain arrays. Reopening it rebuilds the index from the
+    * records and cuts off a record left half written by a crash.
+    */
+    private class ActiveSegment {
+        private final long number;
+        private final File file;
+        private OutputStream out;
+        private long size;
+        private int count;
+        private long[] keys = new long[1024];
+        private int[] repositories = new int[1024];
+        private long[] times = new long[1024];
+        private int[] offsets = new int[1024];
+
+        ActiveSegment(long number) throws IOException {
+            this.number = number;
+            file = segmentFile(directory, number);
+            if (file.isFile()) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    while (size < raf.length()) {
+                        try {
+                            Entry entry = read(raf, size);
+                            index(entry, (int) size);
+                            size = raf.getFilePointer();
+                        } catch (IOException e) {
+                            LOGGER.info("Cutting a partial record off the end of {}.", file);
+                            raf.setLength(size);
+                        }
+                    }
+                } finally {
+                    raf.close();
+                }
+            }
+            out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+        }
+
+        void append(Entry entry) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeLong(entry.timestamp);
+            record.writeInt(entry.repositoryId);
+            record.writeLong(entry.sequence);
+            record.writeUTF(entry.topic);
+            record.writeUTF(entry.commitId == null ? "" : entry.commitId);
+            record.writeUTF(entry.sink);
+            record.writeUTF(entry.outcome);
+            record.flush();
+            out.write(bytes.toByteArray());
+            index(entry, (int) size);
+            size += bytes.size();
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.error("Failed to close the audit segment {}", file, e);
+            }
+        }
+
+        void findByCommit(long key, String commitId, List<Entry> found, int limit) throws IOException {
+            RandomAccessFile raf = null;
+            try {
+                for (int i = 0; i < count && found.size() < limit; i++) {
+                    if (keys[i] == key) {
+                        raf = raf == null ? new RandomAccessFile(file, "r") : raf;
+                        Entry entry = read(raf, offsets[i]);
+                        if (commitId.equals(entry.commitId)) {
+                            found.add(entry);
+                        }
+                    }
+                }
+            } finally {
+                if (raf != null) {
+                    raf.close();
+                }
+            }
+        }
+
+        void findByRepository(int repositoryId, long from, long to, List<Entry> found, int limit) throws IOException {
+            RandomAccessFile raf = null;
+            try {
+                for (int i = 0; i < count && found.size() < limit; i++) {
+                    if (repositories[i] == repositoryId && times[i] >= from && times[i] <= to) {
+                        raf = raf == null ? new RandomAccessFile(file, "r") : raf;
+                        found.add(read(raf, offsets[i]));
+                    }
+                }
+            } finally {
+                if (raf != null) {
+                    raf.close();
+                }
+            }
+        }
+
+        private void index(Entry entry, int offset) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                repositories = Arrays.copyOf(repositories, count * 2);
+                times = Arrays.copyOf(times, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            keys[count] = entry.commitId == null ? 0 : PublishedCommitIndex.key(entry.commitId);
+            repositories[count] = entry.repositoryId;
+            times[count] = entry.timestamp;
+            offsets[count] = offset;
+            count++;
+        }
+    }
+
+    /*
+    * A full segment and its index. The index is binary searched with positioned reads, which the page cache
+    * keeps cheap, rather than mapped, so nothing keeps the files open once a query is done and retention can
+    * delete them on any platform.
+    */
+    private static class SealedSegment {
+        private final File file;
+        private final File indexFile;
+        private final int count;
+        private final long minTime;
+        private final long maxTime;
+
+        private SealedSegment(File file, File indexFile, int count, long minTime, long maxTime) {
+            this.file = file;
+            this.indexFile = indexFile;
+            this.count = count;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+        }
+
+        static File indexFile(File directory, long number) {
+            return new File(directory, number + ".idx");
+        }
+
+        /*
+        * Returns null if the segment has no complete index.
+        */
+        static SealedSegment open(File directory, long number) throws IOException {
+            File indexFile = indexFile(directory, number);
+            if (!indexFile.isFile() || indexFile.length() < INDEX_HEADER) {
+                return null;
+            }
+            RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+            try {
+                int magic = raf.readInt();
+                int count = raf.readInt();
+                long minTime = raf.readLong();
+                long maxTime = raf.readLong();
+                if (magic != MAGIC || raf.length() != INDEX_HEADER + (long) count * (COMMIT_ENTRY + REPOSITORY_ENTRY)) {
+                    LOGGER.error("The audit index {} is corrupt, rebuilding it.", indexFile);
+                    return null;
+                }
+                return new SealedSegment(segmentFile(directory, number), indexFile, count, minTime, maxTime);
+            } finally {
+                raf.close();
+            }
+        }
+
+        long bytes() {
+            return file.length() + indexFile.length();
+        }
+
+        void delete() {
+            if (!indexFile.delete() || !file.delete()) {
+                LOGGER.error("Failed to delete the audit segment {}", file);
+            }
+        }
+
+        void findByCommit(long key, String commitId, List<Entry> found, int limit) throws IOException {
+            RandomAccessFile commits = new RandomAccessFile(indexFile, "r");
+            RandomAccessFile raf = null;
+            try {
+                int low = 0;
+                int high = count;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    commits.seek(INDEX_HEADER + (long) mid * COMMIT_ENTRY);
+                    if (commits.readLong() < key) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                commits.seek(INDEX_HEADER + (long) low * COMMIT_ENTRY);
+                for (int i = low; i < count && found.size() < limit; i++) {
+                    if (commits.readLong() != key) {
+                        break;
+                    }
+                    int offset = commits.readInt();
+                    raf = raf == null ? new RandomAccessFile(file, "r") : raf;
+                    Entry entry = read(raf, offset);
+                    if (commitId.equals(entry.commitId)) {
+                        found.add(entry);
+                    }
+                }
+            } finally {
+                commits.close();
+                if (raf != null) {
+                    raf.close();
+                }
+            }
+        }
+
+        void findByRepository(int repositoryId, long from, long to, List<Entry> found, int limit) throws IOException {
+            RandomAccessFile repositories = new RandomAccessFile(indexFile, "r");
+            RandomAccessFile raf = null;
+            try {
+                long base = INDEX_HEADER + (long) count * COMMIT_ENTRY;
+                int low = 0;
+                int high = count;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    repositories.seek(base + (long) mid * REPOSITORY_ENTRY);
+                    int id = repositories.readInt();
+                    if (id < repositoryId || (id == repositoryId && repositories.readLong() < from)) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                repositories.seek(base + (long) low * REPOSITORY_ENTRY);
+                for (int i = low; i < count && found.size() < limit; i++) {
+                    if (repositories.readInt() != repositoryId || repositories.readLong() > to) {
+                        break;
+                    }
+                    int offset = repositories.readInt();
+                    raf = raf == null ? new RandomAccessFile(file, "r") : raf;
+                    found.add(read(raf, offset));
+                }
+            } finally {
+                repositories.close();
+                if (raf != null) {
+                    raf.close();
+                }
+            }
+        }
+    }
+}
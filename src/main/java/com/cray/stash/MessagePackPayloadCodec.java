@@ -0,0 +1,137 @@
+package com.cray.stash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes the content as MessagePack. Only the types commit messages are built from are supported: maps,
+ * collections, strings, booleans, numbers and null; anything else is written as its string.
+ *
+ * On the relay the encoded content is deflated and base64 encoded into an envelope
+ *   {"codec": "msgpack", "schema_version": 1, "encoding": "deflate+base64", "payload": "..."}
+ * since the relay only carries JSON. File lists and url maps deflate well enough that the envelope is still
+ * much smaller than the plain JSON body.
+ */
+public class MessagePackPayloadCodec implements PayloadCodec {
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    @Override
+    public String getName() {return "msgpack";}
+
+    @Override
+    public String getContentType() {return "application/x-msgpack";}
+
+    @Override
+    public byte[] encode(Map<String, Object> content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(out, content);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Map<String, Object> toRelayBody(Map<String, Object> content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DeflaterOutputStream deflated = new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED));
+        deflated.write(encode(content));
+        deflated.close();
+
+        HashMap<String, Object> envelope = new HashMap<String, Object>(4);
+        envelope.put("codec", getName());
+        envelope.put("schema_version", PayloadCodecs.SCHEMA_VERSION);
+        envelope.put("encoding", "deflate+base64");
+        envelope.put("payload", base64(bytes.toByteArray()));
+        return envelope;
+    }
+
+    private static void write(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(0xc0);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? 0xc3 : 0xc2);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(0xcb);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            writeLong(out, ((Number) value).longValue());
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writeHeader(out, map.size(), 0x80, 0xde, 0xdf);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                write(out, entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            writeHeader(out, values.size(), 0x90, 0xdc, 0xdd);
+            for (Object element : values) {
+                write(out, element);
+            }
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeLong(DataOutputStream out, long value) throws IOException {
+        if (value >= -32 && value < 128) {
+            out.writeByte((int) value);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            out.writeByte(0xd2);
+            out.writeInt((int) value);
+        } else {
+            out.writeByte(0xd3);
+            out.writeLong(value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes("UTF-8");
+        if (utf8.length < 32) {
+            out.writeByte(0xa0 | utf8.length);
+        } else if (utf8.length < 256) {
+            out.writeByte(0xd9);
+            out.writeByte(utf8.length);
+        } else if (utf8.length < 65536) {
+            out.writeByte(0xda);
+            out.writeShort(utf8.length);
+        } else {
+            out.writeByte(0xdb);
+            out.writeInt(utf8.length);
+        }
+        out.write(utf8);
+    }
+
+    private static void writeHeader(DataOutputStream out, int size, int fix, int size16, int size32) throws IOException {
+        if (size < 16) {
+            out.writeByte(fix | size);
+        } else if (size < 65536) {
+            out.writeByte(size16);
+            out.writeShort(size);
+        } else {
+            out.writeByte(size32);
+            out.writeInt(size);
+        }
+    }
+
+    private static String base64(byte[] bytes) {
+        StringBuilder out = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int remaining = bytes.length - i;
+            int chunk = (bytes[i] & 0xff) << 16
+                    | (remaining > 1 ? (bytes[i + 1] & 0xff) << 8 : 0)
+                    | (remaining > 2 ? bytes[i + 2] & 0xff : 0);
+            out.append(BASE64[chunk >>> 18 & 63]).append(BASE64[chunk >>> 12 & 63]);
+            out.append(remaining > 1 ? BASE64[chunk >>> 6 & 63] : '=');
+            out.append(remaining > 2 ? BASE64[chunk & 63] : '=');
+        }
+        return out.toString();
+    }
+}
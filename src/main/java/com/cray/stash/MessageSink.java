@@ -0,0 +1,22 @@
+package com.cray.stash;
+
+import java.util.List;
+
+/**
+ * Somewhere published messages are delivered to. The SinkDispatcher hands each sink batches of messages on
+ * sender threads of its own, so a sink may block while it delivers.
+ */
+public interface MessageSink {
+
+    String getName();
+
+    /*
+    * Delivers the batch in order and returns how many messages, from the start of the batch, were delivered.
+    */
+    int deliver(List<Message> batch);
+
+    /*
+    * Drops any open connection or file. Called when the sink is idle, before it is retried and on shutdown.
+    */
+    void close();
+}
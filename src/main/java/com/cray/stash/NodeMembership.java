@@ -0,0 +1,11 @@
+package com.cray.stash;
+
+import java.util.Set;
+
+/**
+ * The live nodes of the cluster this plugin runs in, as seen from the local node.
+ */
+public interface NodeMembership {
+    String getLocalNodeId();
+    Set<String> getLiveNodeIds();
+}
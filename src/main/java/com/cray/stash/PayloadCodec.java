@@ -0,0 +1,22 @@
+package com.cray.stash;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Turns the content of a message into what goes on the wire. The relay only carries JSON bodies, so a codec
+ * also says how its encoding is wrapped for the relay; sinks that carry raw bytes use encode directly.
+ */
+public interface PayloadCodec {
+
+    String getName();
+
+    String getContentType();
+
+    byte[] encode(Map<String, Object> content) throws IOException;
+
+    /*
+    * The body of the fedmsg message sent to the relay for this content.
+    */
+    Map<String, Object> toRelayBody(Map<String, Object> content) throws IOException;
+}
@@ -0,0 +1,93 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the payload codec of a topic. plugin.fedmsg.codec.topics is a comma separated list of prefix=codec
+ * entries, the longest matching prefix wins and other topics use plugin.fedmsg.codec.default, e.g.
+ *   plugin.fedmsg.codec.topics=com.cray.prod.stash.mirror.=msgpack
+ * Topics are matched in lower case, the way they are sent.
+ */
+public class PayloadCodecs {
+
+    /*
+    * The version of the content layout, bumped when fields are renamed or removed. JSON bodies carry it as a
+    * schema_version field and binary codecs in their envelope, so consumers can tell layouts apart.
+    */
+    public static final int SCHEMA_VERSION = 1;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final Map<String, PayloadCodec> codecs = new HashMap<String, PayloadCodec>();
+    private final List<String> prefixes = new ArrayList<String>();
+    private final List<PayloadCodec> prefixCodecs = new ArrayList<PayloadCodec>();
+    private final PayloadCodec defaultCodec;
+
+    public PayloadCodecs(ApplicationPropertiesService appService) {
+        register(new JsonPayloadCodec());
+        register(new MessagePackPayloadCodec());
+
+        PluginProperties properties = new PluginProperties(appService);
+        defaultCodec = lookup(properties.getString("plugin.fedmsg.codec.default", "json"), codecs.get("json"));
+
+        for (String entry : properties.getString("plugin.fedmsg.codec.topics", "").split(",")) {
+            int equals = entry.indexOf('=');
+            if (entry.trim().isEmpty()) {
+                continue;
+            } else if (equals < 0) {
+                LOGGER.error("Ignoring codec entry without a codec: {}", entry.trim());
+                continue;
+            }
+            PayloadCodec codec = lookup(entry.substring(equals + 1).trim(), null);
+            if (codec != null) {
+                add(entry.substring(0, equals).trim().toLowerCase(), codec);
+            }
+        }
+    }
+
+    public PayloadCodec forTopic(String topic) {
+        String lower = topic.toLowerCase();
+        for (int i = 0; i < prefixes.size(); i++) {
+            if (lower.startsWith(prefixes.get(i))) {
+                return prefixCodecs.get(i);
+            }
+        }
+        return defaultCodec;
+    }
+
+    /*
+    * The codec of that name, or JSON if there is none.
+    */
+    public PayloadCodec forName(String name) {
+        return lookup(name, codecs.get("json"));
+    }
+
+    private void register(PayloadCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    private PayloadCodec lookup(String name, PayloadCodec fallback) {
+        PayloadCodec codec = codecs.get(name.toLowerCase());
+        if (codec == null) {
+            LOGGER.error("Unknown payload codec {}, known codecs are {}.", name, codecs.keySet());
+            return fallback;
+        }
+        return codec;
+    }
+
+    // keeps the prefixes longest first so the first match is the longest
+    private void add(String prefix, PayloadCodec codec) {
+        int i = 0;
+        while (i < prefixes.size() && prefixes.get(i).length() >= prefix.length()) {
+            i++;
+        }
+        prefixes.add(i, prefix);
+        prefixCodecs.add(i, codec);
+    }
+}
@@ -0,0 +1,61 @@
+package com.cray.stash;
+
+/**
+ * The new tip of a ref, waiting for the messages published for it to be delivered. Every message holds it
+ * and the publisher holds it until it has queued the last one; once the primary sink delivered them all the
+ * tip is recorded in PublishedTips. If any of them is dropped the tip is left as it was, so the reconciliation
+ * sweep still sees the ref as moved and publishes it again, the published commit index skipping the commits
+ * that did get through.
+ */
+public class PendingTip {
+
+    private final PublishedTips publishedTips;
+    private final int repositoryId;
+    private final String refId;
+    private final String tip;
+    private int pending = 1;
+    private boolean failed;
+
+    public PendingTip(PublishedTips publishedTips, int repositoryId, String refId, String tip) {
+        this.publishedTips = publishedTips;
+        this.repositoryId = repositoryId;
+        this.refId = refId;
+        this.tip = tip;
+    }
+
+    /*
+    * Makes the tip wait for a message too.
+    */
+    public void attach(Message message) {
+        synchronized (this) {
+            pending++;
+        }
+        message.setPendingTip(this);
+    }
+
+    /*
+    * The publisher is done attaching messages. A tip without any is recorded right away.
+    */
+    public void seal() {
+        release(true);
+    }
+
+    public void delivered() {
+        release(true);
+    }
+
+    public void failed() {
+        release(false);
+    }
+
+    private void release(boolean success) {
+        boolean record;
+        synchronized (this) {
+            failed |= !success;
+            record = --pending == 0 && !failed;
+        }
+        if (record) {
+            publishedTips.record(repositoryId, refId, tip);
+        }
+    }
+}
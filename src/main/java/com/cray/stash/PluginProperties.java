@@ -0,0 +1,88 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.File;
+
+/**
+ * Small helper around the stash plugin properties so that every component reads its settings the same way:
+ * a missing or unparsable value falls back to the default and the fallback is logged.
+ */
+public class PluginProperties {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private ApplicationPropertiesService appService;
+
+    public PluginProperties(ApplicationPropertiesService appService) {
+        this.appService = appService;
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = getRaw(key);
+        if (value == null) {
+            LOGGER.info("The property {} was not set so it's set to {} by default.", key, defaultValue);
+            return defaultValue;
+        }
+        return value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getRaw(key);
+        if (value == null) {
+            LOGGER.info("The property {} was not set so it's set to {} by default.", key, defaultValue);
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOGGER.error("The property {} is not a number ({}) so it's set to {} by default.", new Object[]{key, value, defaultValue});
+            return defaultValue;
+        }
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = getRaw(key);
+        if (value == null) {
+            LOGGER.info("The property {} was not set so it's set to {} by default.", key, defaultValue);
+            return defaultValue;
+        }
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            LOGGER.error("The property {} is not a number ({}) so it's set to {} by default.", new Object[]{key, value, defaultValue});
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getRaw(key);
+        if (value == null) {
+            LOGGER.info("The property {} was not set so it's set to {} by default.", key, defaultValue);
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    public File getHomeDir() {
+        return appService.getHomeDir();
+    }
+
+    private String getRaw(String key) {
+        try {
+            String value = appService.getPluginProperty(key);
+            if (value != null && !value.trim().isEmpty()) {
+                return value.trim();
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to retrieve property {}", key, e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,91 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides what gets published before any stash API call is made. The rules come from
+ * plugin.fedmsg.filter.include and plugin.fedmsg.filter.exclude, comma separated lists of
+ * type:glob entries where the type is project (project key), repository (KEY/slug), ref (full ref id)
+ * or author (name or email address), e.g.
+ *   plugin.fedmsg.filter.exclude=repository:~*,ref:refs/pull-requests/*,author:*bot@cray.com
+ * A value is published if it matches no exclude rule and, when there are include rules of its type, at
+ * least one of those.
+ */
+public class PublishFilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final Rules projects;
+    private final Rules repositories;
+    private final Rules refs;
+    private final Rules authors;
+
+    public PublishFilter(ApplicationPropertiesService appService) {
+        PluginProperties properties = new PluginProperties(appService);
+        String include = properties.getString("plugin.fedmsg.filter.include", "");
+        String exclude = properties.getString("plugin.fedmsg.filter.exclude", "");
+
+        projects = new Rules("project", include, exclude);
+        repositories = new Rules("repository", include, exclude);
+        refs = new Rules("ref", include, exclude);
+        authors = new Rules("author", include, exclude);
+    }
+
+    public boolean acceptsRepository(Repository repo) {
+        return projects.accepts(repo.getProject().getKey())
+                && repositories.accepts(repo.getProject().getKey() + "/" + repo.getSlug());
+    }
+
+    public boolean acceptsRef(String refId) {
+        return refs.accepts(refId);
+    }
+
+    public boolean acceptsAuthor(String name, String emailAddress) {
+        if (authors.isEmpty()) {
+            return true;
+        }
+        if (authors.excludes.matches(name) || authors.excludes.matches(emailAddress)) {
+            return false;
+        }
+        return authors.includes.isEmpty() || authors.includes.matches(name) || authors.includes.matches(emailAddress);
+    }
+
+    private static class Rules {
+        private final GlobMatcher includes;
+        private final GlobMatcher excludes;
+
+        Rules(String type, String include, String exclude) {
+            includes = new GlobMatcher(parse(type, include));
+            excludes = new GlobMatcher(parse(type, exclude));
+        }
+
+        boolean isEmpty() {
+            return includes.isEmpty() && excludes.isEmpty();
+        }
+
+        boolean accepts(String value) {
+            return !excludes.matches(value) && (includes.isEmpty() || includes.matches(value));
+        }
+
+        private static List<String> parse(String type, String rules) {
+            List<String> globs = new ArrayList<String>();
+            for (String rule : rules.split(",")) {
+                rule = rule.trim();
+                int colon = rule.indexOf(':');
+                if (rule.isEmpty()) {
+                    continue;
+                } else if (colon < 0) {
+                    LOGGER.error("Ignoring filter rule without a type: {}", rule);
+                } else if (rule.substring(0, colon).trim().equals(type)) {
+                    globs.add(rule.substring(colon + 1).trim());
+                }
+            }
+            return globs;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps interactive pushes apart from bulk work. Each lane has its own worker threads and queue, so a mirror
+ * import that takes minutes only ever occupies the bulk workers and a one commit push never waits behind it.
+ * A ref change is bulk if its repository is listed in plugin.fedmsg.lanes.bulk.repositories (KEY/slug globs),
+ * if it creates a ref, or if it arrives in an event with at least plugin.fedmsg.lanes.bulk.refChanges ref
+ * changes. None of these need a stash call to decide.
+ */
+public class PublishLanes implements DisposableBean {
+
+    public enum Lane { INTERACTIVE, BULK }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final ThreadPoolExecutor interactive;
+    private final ThreadPoolExecutor bulk;
+    private final GlobMatcher bulkRepositories;
+    private final boolean creationIsBulk;
+    private final int bulkRefChanges;
+
+    public PublishLanes(ApplicationPropertiesService appService) {
+        PluginProperties properties = new PluginProperties(appService);
+        bulkRepositories = new GlobMatcher(Arrays.asList(properties.getString("plugin.fedmsg.lanes.bulk.repositories", "").split("\\s*,\\s*")));
+        creationIsBulk = properties.getBoolean("plugin.fedmsg.lanes.bulk.refCreation", true);
+        bulkRefChanges = properties.getInt("plugin.fedmsg.lanes.bulk.refChanges", 10);
+
+        interactive = newLane("interactive", properties.getInt("plugin.fedmsg.lanes.interactive.workers", 2),
+                properties.getInt("plugin.fedmsg.lanes.interactive.queueSize", 1000), Thread.NORM_PRIORITY);
+        bulk = newLane("bulk", properties.getInt("plugin.fedmsg.lanes.bulk.workers", 1),
+                properties.getInt("plugin.fedmsg.lanes.bulk.queueSize", 200), Thread.NORM_PRIORITY - 2);
+    }
+
+    public Lane classify(Repository repo, RefChange refChange, int refChangesInEvent) {
+        if (refChangesInEvent >= bulkRefChanges
+                || (creationIsBulk && refChange.getFromHash().contains("0000000000000000000000000000000000000000"))
+                || bulkRepositories.matches(repo.getProject().getKey() + "/" + repo.getSlug())) {
+            return Lane.BULK;
+        }
+        return Lane.INTERACTIVE;
+    }
+
+    /*
+    * Returns false if the lane was full and the task was dropped.
+    */
+    public boolean submit(Lane lane, Runnable task) {
+        try {
+            (lane == Lane.BULK ? bulk : interactive).execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("The {} lane is full, dropping work.", lane, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        interactive.shutdownNow();
+        bulk.shutdownNow();
+    }
+
+    private static ThreadPoolExecutor newLane(final String name, int workers, int queueSize, final int priority) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fedmsg-" + name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
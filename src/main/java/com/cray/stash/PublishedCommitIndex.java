@@ -0,0 +1,354 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers which commits have already been announced, per repository, so that rebases, resurrected branches
+ * and repositories with more branches than findExcludes looks at don't announce the same commit twice.
+ *
+ * Each repository has an open addressing hash set of the first 64 bits of its published commit ids, stored in a
+ * memory mapped file under ${stash.home}/data/fedmsg/published. A million commits take 16MB of page cache and
+ * nothing on the heap, and a restart only has to map the file again. Two different commits sharing a 64 bit
+ * prefix is unlikely enough to ignore.
+ *
+ * A commit pushed to a fork counts as published once its origin announced it, unless
+ * plugin.fedmsg.forks.suppress is off.
+ */
+public class PublishedCommitIndex implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private static final int MAGIC = 0x46444958;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    private final File directory;
+    private final Map<Integer, RepositoryIndex> open;
+    private final boolean forks;
+
+    public PublishedCommitIndex(ApplicationPropertiesService appService) {
+        PluginProperties properties = new PluginProperties(appService);
+        directory = new File(properties.getHomeDir(), "data/fedmsg/published");
+        final int maxOpen = properties.getInt("plugin.fedmsg.index.openFiles", 64);
+        forks = properties.getBoolean("plugin.fedmsg.forks.suppress", true);
+        open = new LinkedHashMap<Integer, RepositoryIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, RepositoryIndex> eldest) {
+                if (size() > maxOpen) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.error("Failed to create the published commit index directory {}", directory);
+        }
+    }
+
+    /*
+    * Each index has its own lock, so repositories don't wait for each other. An index evicted between the
+    * lookup and the lock is closed by then, it is simply opened again.
+    */
+    public boolean isPublished(int repositoryId, String commitId) {
+        long key = key(commitId);
+        while (true) {
+            RepositoryIndex index = get(repositoryId);
+            if (index == null) {
+                return false;
+            }
+            synchronized (index) {
+                if (index.isOpen()) {
+                    return index.contains(key);
+                }
+            }
+        }
+    }
+
+    public boolean isPublished(Repository repo, String commitId) {
+        if (isPublished(repo.getId(), commitId)) {
+            return true;
+        }
+        Repository origin = forks && repo.isFork() ? repo.getOrigin() : null;
+        return origin != null && isPublished(origin.getId(), commitId);
+    }
+
+    public void markPublished(int repositoryId, String commitId) {
+        markPublished(repositoryId, Collections.singletonList(commitId));
+    }
+
+    public void markPublished(int repositoryId, Collection<String> commitIds) {
+        while (true) {
+            RepositoryIndex index = get(repositoryId);
+            if (index == null) {
+                return;
+            }
+            synchronized (index) {
+                if (index.isOpen()) {
+                    for (String commitId : commitIds) {
+                        index.add(key(commitId));
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (open) {
+            for (Iterator<RepositoryIndex> it = open.values().iterator(); it.hasNext(); ) {
+                it.next().close();
+                it.remove();
+            }
+        }
+    }
+
+    private RepositoryIndex get(int repositoryId) {
+        synchronized (open) {
+            RepositoryIndex index = open.get(repositoryId);
+            if (index == null) {
+                try {
+                    index = new RepositoryIndex(directory, repositoryId);
+                    open.put(repositoryId, index);
+                } catch (IOException e) {
+                    LOGGER.error("Failed to open the published commit index of repository {}", repositoryId, e);
+                }
+            }
+            return index;
+        }
+    }
+
+    /*
+    * The first 16 hex digits of the commit id. Zero marks an empty slot, so a commit that happens to start with
+    * sixteen zeros is stored as one.
+    */
+    static long key(String commitId) {
+        long key = 0;
+        for (int i = 0; i < 16 && i < commitId.length(); i++) {
+            key = (key << 4) | Character.digit(commitId.charAt(i), 16);
+        }
+        return key == 0 ? 1 : key;
+    }
+
+    /*
+    * The index of a repository lives in <repoId>.<generation>.idx, or <repoId>.idx before it first grew. Growing
+    * writes the next generation instead of replacing the mapped file, which Windows doesn't allow, and stamps the
+    * magic number last, so a crash half way leaves a generation that is skipped on open. Older generations are
+    * deleted once nothing maps them any more, at the latest when the index is opened again.
+    */
+    private static class RepositoryIndex {
+        private final File directory;
+        private final int repositoryId;
+        private File file;
+        private int generation;
+        private MappedByteBuffer buffer;
+        private int capacity;
+        private int size;
+
+        RepositoryIndex(File directory, int repositoryId) throws IOException {
+            this.directory = directory;
+            this.repositoryId = repositoryId;
+            generation = -1;
+            int newest = 0;
+            for (Map.Entry<Integer, File> candidate : generations().entrySet()) {
+                newest = Math.max(newest, candidate.getKey());
+                if (generation < 0 && isValid(candidate.getValue())) {
+                    generation = candidate.getKey();
+                    file = candidate.getValue();
+                    continue;
+                }
+                if (generation < 0) {
+                    LOGGER.error("The published commit index {} is corrupt or incomplete, skipping it.", candidate.getValue());
+                }
+                if (!candidate.getValue().delete()) {
+                    LOGGER.error("Failed to remove the stale published commit index {}", candidate.getValue());
+                }
+            }
+            if (file != null) {
+                buffer = map(file, (int) file.length());
+                capacity = buffer.getInt(8);
+                size = buffer.getInt(12);
+                return;
+            }
+            // past whatever couldn't be removed
+            generation = newest + 1;
+            file = generationFile(generation);
+            buffer = create(file, INITIAL_CAPACITY);
+            buffer.putInt(0, MAGIC);
+            capacity = INITIAL_CAPACITY;
+        }
+
+        synchronized boolean isOpen() {
+            return buffer != null;
+        }
+
+        synchronized boolean contains(long key) {
+            if (buffer == null) {
+                return false;
+            }
+            for (int slot = slot(key, capacity); ; slot = (slot + 1) & (capacity - 1)) {
+                long stored = buffer.getLong(HEADER_SIZE + 8 * slot);
+                if (stored == key) {
+                    return true;
+                } else if (stored == 0) {
+                    return false;
+                }
+            }
+        }
+
+        synchronized void add(long key) {
+            if (buffer == null) {
+                return;
+            }
+            if ((size + 1) * 10L > capacity * 6L) {
+                try {
+                    grow();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to grow the published commit index {}", file, e);
+                    return;
+                }
+            }
+            if (insert(buffer, capacity, key)) {
+                buffer.putInt(12, ++size);
+            }
+        }
+
+        synchronized void close() {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+        }
+
+        /*
+        * Rehashes into the next generation, twice the size, and switches to it once it is complete.
+        */
+        private void grow() throws IOException {
+            int newCapacity = capacity * 2;
+            File next = generationFile(generation + 1);
+            MappedByteBuffer grown = create(next, newCapacity);
+            for (int slot = 0; slot < capacity; slot++) {
+                long stored = buffer.getLong(HEADER_SIZE + 8 * slot);
+                if (stored != 0) {
+                    insert(grown, newCapacity, stored);
+                }
+            }
+            grown.putInt(12, size);
+            grown.force();
+            grown.putInt(0, MAGIC);
+            grown.force();
+
+            File previous = file;
+            buffer.force();
+            buffer = grown;
+            file = next;
+            generation++;
+            capacity = newCapacity;
+            // fails where the old mapping is still alive, the next open cleans it up
+            previous.delete();
+        }
+
+        private static boolean insert(MappedByteBuffer buffer, int capacity, long key) {
+            for (int slot = slot(key, capacity); ; slot = (slot + 1) & (capacity - 1)) {
+                long stored = buffer.getLong(HEADER_SIZE + 8 * slot);
+                if (stored == key) {
+                    return false;
+                } else if (stored == 0) {
+                    buffer.putLong(HEADER_SIZE + 8 * slot, key);
+                    return true;
+                }
+            }
+        }
+
+        private static int slot(long key, int capacity) {
+            // the key is already uniformly distributed, only fold the high bits in
+            return (int) (key ^ (key >>> 32)) & (capacity - 1);
+        }
+
+        private static MappedByteBuffer create(File file, int capacity) throws IOException {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not remove " + file);
+            }
+            // without the magic number until the caller has filled it in
+            MappedByteBuffer buffer = map(file, HEADER_SIZE + 8 * capacity);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, capacity);
+            buffer.putInt(12, 0);
+            return buffer;
+        }
+
+        private File generationFile(int generation) {
+            return new File(directory, repositoryId + "." + generation + ".idx");
+        }
+
+        /*
+        * The index files of the repository, newest generation first.
+        */
+        private Map<Integer, File> generations() {
+            Map<Integer, File> generations = new TreeMap<Integer, File>(Collections.reverseOrder());
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return generations;
+            }
+            String prefix = repositoryId + ".";
+            for (File candidate : files) {
+                String name = candidate.getName();
+                if (name.equals(repositoryId + ".idx")) {
+                    generations.put(0, candidate);
+                } else if (name.startsWith(prefix) && name.endsWith(".idx") && name.length() > prefix.length() + 4) {
+                    try {
+                        generations.put(Integer.parseInt(name.substring(prefix.length(), name.length() - 4)), candidate);
+                    } catch (NumberFormatException e) {
+                        // some other file
+                    }
+                }
+            }
+            return generations;
+        }
+
+        private static boolean isValid(File file) {
+            if (file.length() < HEADER_SIZE) {
+                return false;
+            }
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    return raf.readInt() == MAGIC && raf.readInt() == VERSION
+                            && file.length() == HEADER_SIZE + 8L * raf.readInt();
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to read the published commit index {}", file, e);
+                return false;
+            }
+        }
+
+        private static MappedByteBuffer map(File file, int length) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
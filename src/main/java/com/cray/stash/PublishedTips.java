@@ -0,0 +1,182 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The last tip the plugin published for every branch, per repository, so the reconciliation sweep can tell
+ * which refs moved without us noticing. Tips are kept in ${stash.home}/data/fedmsg/tips/<repoId>.properties.
+ * A repository only becomes known once the sweep recorded all of its tips at once; until then live pushes
+ * are not recorded, since a few of its branches would make every other one look new to the sweep and have
+ * their whole history republished.
+ * Recording a tip only changes memory; the sweep writes the changed repositories out after every cycle, and
+ * at most plugin.fedmsg.tips.cached repositories are kept in memory, the rest are written out when they
+ * are evicted.
+ */
+public class PublishedTips implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final File directory;
+    private final Map<Integer, RepositoryTips> cache;
+
+    public PublishedTips(ApplicationPropertiesService appService) {
+        PluginProperties properties = new PluginProperties(appService);
+        directory = new File(properties.getHomeDir(), "data/fedmsg/tips");
+        final int maxCached = properties.getInt("plugin.fedmsg.tips.cached", 1000);
+        cache = new LinkedHashMap<Integer, RepositoryTips>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, RepositoryTips> eldest) {
+                if (size() > maxCached) {
+                    eldest.getValue().store();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.error("Failed to create the published tips directory {}", directory);
+        }
+    }
+
+    /*
+    * The published tip of every branch of the repository, or null if nothing was ever recorded for it.
+    */
+    public Map<String, String> get(int repositoryId) {
+        synchronized (cache) {
+            RepositoryTips tips = load(repositoryId);
+            return tips.known ? new HashMap<String, String>(tips.tips) : null;
+        }
+    }
+
+    /*
+    * Records the tip of a ref as published, or forgets the ref if the tip is null. Ignored for a repository
+    * the sweep hasn't recorded yet, its first snapshot picks the tip up.
+    */
+    public void record(int repositoryId, String refId, String tip) {
+        synchronized (cache) {
+            RepositoryTips tips = load(repositoryId);
+            if (!tips.known) {
+                return;
+            }
+            if (tip == null) {
+                tips.tips.remove(refId);
+            } else {
+                tips.tips.put(refId, tip);
+            }
+            tips.dirty = true;
+        }
+    }
+
+    /*
+    * Replaces the published tips of a repository with the given ones, after which it is known.
+    */
+    public void recordAll(int repositoryId, Map<String, String> refTips) {
+        synchronized (cache) {
+            RepositoryTips tips = load(repositoryId);
+            tips.tips.clear();
+            tips.tips.putAll(refTips);
+            tips.known = true;
+            tips.dirty = true;
+        }
+    }
+
+    public void flush() {
+        List<RepositoryTips> dirty = new ArrayList<RepositoryTips>();
+        synchronized (cache) {
+            for (RepositoryTips tips : cache.values()) {
+                if (tips.dirty) {
+                    dirty.add(tips);
+                }
+            }
+        }
+        for (RepositoryTips tips : dirty) {
+            tips.store();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        flush();
+    }
+
+    private RepositoryTips load(int repositoryId) {
+        RepositoryTips tips = cache.get(repositoryId);
+        if (tips == null) {
+            tips = new RepositoryTips(new File(directory, repositoryId + ".properties"));
+            cache.put(repositoryId, tips);
+        }
+        return tips;
+    }
+
+    private class RepositoryTips {
+        private final File file;
+        private final Map<String, String> tips = new HashMap<String, String>();
+        private boolean known;
+        private boolean dirty;
+
+        RepositoryTips(File file) {
+            this.file = file;
+            if (file.isFile()) {
+                Properties stored = new Properties();
+                try {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        stored.load(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    LOGGER.error("Failed to read the published tips {}", file, e);
+                }
+                for (String refId : stored.stringPropertyNames()) {
+                    tips.put(refId, stored.getProperty(refId));
+                }
+                known = true;
+            }
+        }
+
+        /*
+        * Writes next to the file and renames, so a crash never leaves half a file behind.
+        */
+        void store() {
+            Properties stored = new Properties();
+            synchronized (cache) {
+                if (!dirty) {
+                    return;
+                }
+                stored.putAll(tips);
+                dirty = false;
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            try {
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    stored.store(out, null);
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                    throw new IOException("Could not replace " + file + " with " + tmp);
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to store the published tips {}", file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.cray.stash;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A plain token bucket. Permits refill continuously at the configured rate and up to one second worth of
+ * permits may be banked, so short bursts go through while the long-run average stays at the rate.
+ */
+public class RateLimiter {
+
+    private final double permitsPerSecond;
+    private final double maxPermits;
+    private double storedPermits;
+    private long lastRefill;
+
+    public RateLimiter(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = Math.max(1, permitsPerSecond);
+        this.storedPermits = maxPermits;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /*
+    * Blocks until the requested number of permits is available. Requests larger than the bucket are
+    * allowed through once the bucket is full so that a single big page can never wait forever.
+    */
+    public synchronized void acquire(int permits) throws InterruptedException {
+        double wanted = Math.min(permits, maxPermits);
+        refill();
+        while (storedPermits < wanted) {
+            long waitNanos = (long) ((wanted - storedPermits) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+            refill();
+        }
+        storedPermits -= wanted;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        storedPermits = Math.min(maxPermits, storedPermits + (now - lastRefill) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,281 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.Branch;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryBranchesRequest;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.repository.SimpleRefChange;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageUtils;
+import com.atlassian.stash.util.UncheckedOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Catches up on pushes the plugin missed, because it was disabled, the node was down or a lane dropped the
+ * work. Every plugin.fedmsg.sweep.intervalMillis a low priority thread compares the branch tips of the next
+ * repositories with the tips last published for them (see PublishedTips) and queues an update on the bulk lane
+ * for every branch that moved, so only diverging refs cost more than a branch listing.
+ *
+ * A cycle stops after plugin.fedmsg.sweep.budgetMillis and the next one carries on where it stopped; the
+ * position is kept in ${stash.home}/data/fedmsg/sweep.cursor, so a restart doesn't begin again at the first
+ * repository. A repository seen for the first time only has its tips recorded, publishing its whole history
+ * is what a backfill job is for. Repositories another cluster node owns are left to that node.
+ */
+public class ReconciliationSweeper implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private static final String NULL_HASH = "0000000000000000000000000000000000000000";
+    private final RepositoryService repoService;
+    private final RefService refService;
+    private final SecurityService security;
+    private final ClusterShardRouter shardRouter;
+    private final PublishedTips publishedTips;
+    private final PublishFilter publishFilter;
+    private final RefOrderedExecutor refExecutor;
+    private final SEPRefChangeEvent sepRefChangeEvent;
+    private final StashCircuitBreakers breakers;
+    private final long intervalMillis;
+    private final long budgetMillis;
+    private final int pageSize;
+    private final File cursorFile;
+    private final Thread worker;
+    private volatile boolean running = true;
+    private int cursor;
+
+    public ReconciliationSweeper(RepositoryService repoService, RefService refService, SecurityService security,
+                                 ApplicationPropertiesService appService, ClusterShardRouter shardRouter, PublishedTips publishedTips,
+                                 PublishFilter publishFilter, RefOrderedExecutor refExecutor, SEPRefChangeEvent sepRefChangeEvent,
+                                 StashCircuitBreakers breakers) {
+        this.repoService = repoService;
+        this.refService = refService;
+        this.security = security;
+        this.shardRouter = shardRouter;
+        this.publishedTips = publishedTips;
+        this.publishFilter = publishFilter;
+        this.refExecutor = refExecutor;
+        this.sepRefChangeEvent = sepRefChangeEvent;
+        this.breakers = breakers;
+
+        PluginProperties properties = new PluginProperties(appService);
+        intervalMillis = properties.getLong("plugin.fedmsg.sweep.intervalMillis", 300000);
+        budgetMillis = properties.getLong("plugin.fedmsg.sweep.budgetMillis", 10000);
+        pageSize = properties.getInt("plugin.fedmsg.sweep.pageSize", 100);
+        cursorFile = new File(properties.getHomeDir(), "data/fedmsg/sweep.cursor");
+        cursor = loadCursor();
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "fedmsg-sweep");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        if (intervalMillis > 0) {
+            worker.start();
+        } else {
+            LOGGER.info("The reconciliation sweep is disabled.");
+        }
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void work() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+                sweep();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                LOGGER.error("Unexpected exception in the reconciliation sweep", e);
+            }
+        }
+    }
+
+    /*
+    * One cycle: checks repositories from the cursor on until the budget is spent or stash gets slow.
+    */
+    private void sweep() {
+        long deadline = System.currentTimeMillis() + budgetMillis;
+        int checked = 0;
+        int queued = 0;
+        try {
+            while (running && System.currentTimeMillis() < deadline && breakers.allClosed()) {
+                final PageRequest request = PageUtils.newRequest(cursor, pageSize);
+                Page<? extends Repository> page = security.withPermission(Permission.ADMIN, "Reconciling published tips").call(new UncheckedOperation<Page<? extends Repository>>() {
+                    @Override
+                    public Page<? extends Repository> perform() {
+                        return repoService.findAll(request);
+                    }
+                });
+
+                int done = 0;
+                for (Repository repo : page.getValues()) {
+                    if (System.currentTimeMillis() >= deadline) {
+                        break;
+                    }
+                    if (shardRouter.isLocallyOwned(repo.getId()) && publishFilter.acceptsRepository(repo) && reconcile(repo)) {
+                        queued++;
+                    }
+                    done++;
+                }
+                checked += done;
+                if (done < page.getSize()) {
+                    cursor += done;
+                    break;
+                }
+                // wrap around after the last repository, the next cycle starts over
+                cursor = page.getIsLastPage() ? 0 : page.getNextPageRequest().getStart();
+                if (page.getIsLastPage()) {
+                    break;
+                }
+            }
+        } finally {
+            storeCursor();
+            publishedTips.flush();
+        }
+        LOGGER.info("The reconciliation sweep checked {} repositories and queued {} of them, continuing at {}.",
+                new Object[]{checked, queued, cursor});
+    }
+
+    /*
+    * Compares the branch tips of a repository with the published ones. Returns true if any branch moved.
+    */
+    private boolean reconcile(final Repository repo) {
+        Map<String, String> current = listBranches(repo);
+        if (current == null) {
+            return false;
+        }
+        Map<String, String> published = publishedTips.get(repo.getId());
+        if (published == null) {
+            publishedTips.recordAll(repo.getId(), current);
+            return false;
+        }
+
+        final List<RefChange> refChanges = new ArrayList<RefChange>();
+        for (Map.Entry<String, String> tip : current.entrySet()) {
+            String publishedTip = published.remove(tip.getKey());
+            if (!tip.getValue().equals(publishedTip) && publishFilter.acceptsRef(tip.getKey())) {
+                refChanges.add(new SimpleRefChange.Builder()
+                        .refId(tip.getKey())
+                        .fromHash(publishedTip == null ? NULL_HASH : publishedTip)
+                        .toHash(tip.getValue())
+                        .type(RefChangeType.UPDATE)
+                        .build());
+            }
+        }
+        // what is left was deleted, there is nothing to publish for it
+        for (String refId : published.keySet()) {
+            publishedTips.record(repo.getId(), refId, null);
+        }
+        if (refChanges.isEmpty()) {
+            return false;
+        }
+
+        LOGGER.info("{} branches of {}/{} moved without being published, queueing them.", new Object[]{refChanges.size(),
+                repo.getProject().getKey(), repo.getSlug()});
+        refExecutor.submit(PublishLanes.Lane.BULK, repo, refChanges, new Runnable() {
+            @Override
+            public void run() {
+                sepRefChangeEvent.connectRelayAndProcess(repo, refChanges);
+            }
+        });
+        return true;
+    }
+
+    /*
+    * The tip of every branch by ref id, or null if stash couldn't list them.
+    */
+    private Map<String, String> listBranches(final Repository repo) {
+        if (!breakers.getBranches().allowRequest()) {
+            return null;
+        }
+        Map<String, String> tips = new HashMap<String, String>();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            PageRequest request = PageUtils.newRequest(0, 1000);
+            while (request != null) {
+                final PageRequest pageRequest = request;
+                Page<Branch> branches = security.withPermission(Permission.ADMIN, "Reconciling published tips").call(new UncheckedOperation<Page<Branch>>() {
+                    @Override
+                    public Page<Branch> perform() {
+                        return refService.getBranches(new RepositoryBranchesRequest.Builder(repo).build(), pageRequest);
+                    }
+                });
+                for (Branch branch : branches.getValues()) {
+                    tips.put(branch.getId(), branch.getLatestCommit());
+                }
+                request = branches.getIsLastPage() ? null : branches.getNextPageRequest();
+            }
+            success = true;
+        } catch (Exception e) {
+            LOGGER.error("Failed to list the branches of {}/{}", repo.getProject().getKey(), repo.getSlug(), e);
+        } finally {
+            breakers.getBranches().record(start, success);
+        }
+        return success ? tips : null;
+    }
+
+    private int loadCursor() {
+        if (!cursorFile.isFile()) {
+            return 0;
+        }
+        Properties stored = new Properties();
+        try {
+            InputStream in = new FileInputStream(cursorFile);
+            try {
+                stored.load(in);
+            } finally {
+                in.close();
+            }
+            return Integer.parseInt(stored.getProperty("cursor", "0"));
+        } catch (Exception e) {
+            LOGGER.error("Failed to read the sweep cursor, starting at the first repository", e);
+            return 0;
+        }
+    }
+
+    private void storeCursor() {
+        Properties stored = new Properties();
+        stored.setProperty("cursor", Integer.toString(cursor));
+        try {
+            cursorFile.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(cursorFile);
+            try {
+                stored.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to store the sweep cursor", e);
+        }
+    }
+}
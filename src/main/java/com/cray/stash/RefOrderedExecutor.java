@@ -0,0 +1,170 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs publishing work on the lanes in order per (repository, ref). Work on different refs, even of the same
+ * repository, runs concurrently on whatever lane workers are free, while work on one ref waits for the work on
+ * that ref queued before it, so the commits of a branch still go out in push order. Work that covers several
+ * refs, like a planned bulk event, waits for all of them and holds all of them while it runs.
+ *
+ * Waiting work is kept here rather than on a lane, so it doesn't occupy lane workers; only work whose refs are
+ * all free is handed to its lane. Work the lane rejects is dropped the way the lane drops it, and frees its refs.
+ * At most plugin.fedmsg.lanes.maxWaiting tasks wait here, work past that is dropped as well; the reconciliation
+ * sweep publishes the refs it moved later.
+ */
+public class RefOrderedExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final PublishLanes publishLanes;
+    private final int maxWaiting;
+    private final Map<String, Deque<Task>> queues = new HashMap<String, Deque<Task>>();
+    private int waiting;
+
+    public RefOrderedExecutor(PublishLanes publishLanes, ApplicationPropertiesService appService) {
+        this.publishLanes = publishLanes;
+        maxWaiting = new PluginProperties(appService).getInt("plugin.fedmsg.lanes.maxWaiting", 1000);
+    }
+
+    public void submit(PublishLanes.Lane lane, Repository repo, Collection<RefChange> refChanges, Runnable work) {
+        Set<String> keys = new LinkedHashSet<String>();
+        for (RefChange refChange : refChanges) {
+            keys.add(repo.getId() + ":" + refChange.getRefId());
+        }
+        Task task = new Task(lane, keys, work);
+        synchronized (queues) {
+            for (String key : keys) {
+                Deque<Task> queue = queues.get(key);
+                if (queue == null) {
+                    queue = new ArrayDeque<Task>();
+                    queues.put(key, queue);
+                }
+                queue.add(task);
+            }
+            if (!isReady(task)) {
+                if (waiting < maxWaiting) {
+                    waiting++;
+                    return;
+                }
+                // it's last in line on every one of its refs, nothing waits for it
+                for (String key : keys) {
+                    Deque<Task> queue = queues.get(key);
+                    queue.removeLast();
+                    if (queue.isEmpty()) {
+                        queues.remove(key);
+                    }
+                }
+                LOGGER.error("{} tasks are waiting for their refs, dropping work for the {} lane.", waiting, lane);
+                return;
+            }
+            task.dispatched = true;
+        }
+        dispatch(task);
+    }
+
+    /*
+    * The number of refs that have work queued or running.
+    */
+    public int getBusyRefs() {
+        synchronized (queues) {
+            return queues.size();
+        }
+    }
+
+    /*
+    * The number of tasks waiting for their refs.
+    */
+    public int getWaiting() {
+        synchronized (queues) {
+            return waiting;
+        }
+    }
+
+    private void dispatch(Task first) {
+        Deque<Task> ready = new ArrayDeque<Task>();
+        ready.add(first);
+        while (!ready.isEmpty()) {
+            final Task task = ready.poll();
+            boolean accepted = publishLanes.submit(task.lane, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.work.run();
+                    } finally {
+                        dispatch(finish(task));
+                    }
+                }
+            });
+            if (!accepted) {
+                ready.addAll(finish(task));
+            }
+        }
+    }
+
+    private void dispatch(List<Task> tasks) {
+        for (Task task : tasks) {
+            dispatch(task);
+        }
+    }
+
+    /*
+    * Frees the refs of a task and returns the waiting tasks that can run now.
+    */
+    private List<Task> finish(Task task) {
+        List<Task> ready = new ArrayList<Task>();
+        synchronized (queues) {
+            for (String key : task.keys) {
+                Deque<Task> queue = queues.get(key);
+                queue.remove(task);
+                if (queue.isEmpty()) {
+                    queues.remove(key);
+                    continue;
+                }
+                Task next = queue.peek();
+                if (!next.dispatched && isReady(next)) {
+                    next.dispatched = true;
+                    waiting--;
+                    ready.add(next);
+                }
+            }
+        }
+        return ready;
+    }
+
+    // a task can run once it's first in line on every one of its refs
+    private boolean isReady(Task task) {
+        for (String key : task.keys) {
+            if (queues.get(key).peek() != task) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Task {
+        private final PublishLanes.Lane lane;
+        private final Set<String> keys;
+        private final Runnable work;
+        private boolean dispatched;
+
+        Task(PublishLanes.Lane lane, Set<String> keys, Runnable work) {
+            this.lane = lane;
+            this.keys = keys;
+            this.work = work;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.cray.stash;
+
+import com.atlassian.stash.commit.Commit;
+import com.atlassian.stash.commit.CommitService;
+import com.atlassian.stash.commit.CommitsBetweenRequest;
+import com.atlassian.stash.commit.MinimalCommit;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageUtils;
+import com.atlassian.stash.util.UncheckedOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recognises force pushes. A branch update whose old tip is no longer reachable from the new tip rewrote
+ * history, and listing the commits between would announce the whole rewritten series as new. Instead the old
+ * and new series are matched up by a cheap stand-in for git's patch id, author email, author timestamp and
+ * message, which a rebase keeps. The matches go out as one rewrite message; only commits without a match are
+ * published in full.
+ *
+ * Both sides are listed page by page, up to plugin.fedmsg.rewrite.maxCommits commits each. The new side leaves
+ * out commits other branches already have, the way a regular push does.
+ */
+public class RewriteDetector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private static final String NULL_HASH = "0000000000000000000000000000000000000000";
+    private static final String REF_BRANCH = "refs/heads/";
+    private final CommitService commitService;
+    private final SecurityService security;
+    private final SEPCommits sepCommits;
+    private final StashCircuitBreakers breakers;
+    private final SlowEventRecorder recorder;
+    private final AdaptivePageSizes pageSizes;
+    private final boolean enabled;
+    private final int maxCommits;
+    private final String topicPrefix;
+
+    public RewriteDetector(CommitService commitService, SecurityService security, SEPCommits sepCommits,
+                           ApplicationPropertiesService appService, StashCircuitBreakers breakers, SlowEventRecorder recorder,
+                           AdaptivePageSizes pageSizes) {
+        this.security = security;
+        this.sepCommits = sepCommits;
+        this.pageSizes = pageSizes;
+        this.commitService = commitService;
+        this.breakers = breakers;
+        this.recorder = recorder;
+
+        PluginProperties properties = new PluginProperties(appService);
+        enabled = properties.getBoolean("plugin.fedmsg.rewrite.detect", true);
+        maxCommits = properties.getInt("plugin.fedmsg.rewrite.maxCommits", 10000);
+        topicPrefix = properties.getString("plugin.fedmsg.events.topic.prefix", "com.cray.dev.stash.");
+    }
+
+    /*
+    * Returns the rewrite a branch update made, or null if it was a fast forward or stash can't tell us right now.
+    */
+    public Rewrite detect(Repository repo, RefChange ref) {
+        if (!enabled || !ref.getRefId().startsWith(REF_BRANCH)
+                || ref.getFromHash().contains(NULL_HASH) || ref.getToHash().contains(NULL_HASH)) {
+            return null;
+        }
+
+        // the commits only the old tip reaches; none means the update was a fast forward
+        Listing removed = between(repo, ref, ref.getFromHash(), Collections.singleton(ref.getToHash()));
+        if (removed == null || removed.commits.isEmpty()) {
+            return null;
+        }
+        // the new commits, without the ones already on other branches
+        Set<String> excludes = sepCommits.findExcludes(repo, ref);
+        Listing added = between(repo, ref, ref.getToHash(), excludes != null ? excludes : Collections.singleton(ref.getFromHash()));
+        if (added == null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Rewrite rewrite = new Rewrite(ref, removed.commits, added.commits, removed.complete);
+        recorder.stage("rewrite", start);
+        LOGGER.info("{} was force pushed: {} commits rewritten, {} dropped, {} new.", new Object[]{ref.getRefId(),
+                rewrite.rewritten.size(), rewrite.dropped.size(), rewrite.unmatched.size()});
+        return rewrite;
+    }
+
+    public Message toMessage(Repository repo, Rewrite rewrite) {
+        HashMap<String, Object> content = new HashMap<String, Object>();
+        content.put("project_key", repo.getProject().getKey());
+        content.put("project", repo.getProject().getName());
+        content.put("repository", repo.getName());
+        content.put("branch", rewrite.ref.getRefId().substring(REF_BRANCH.length()));
+        content.put("old_tip", rewrite.ref.getFromHash());
+        content.put("new_tip", rewrite.ref.getToHash());
+        if (rewrite.mergeBase != null) {
+            content.put("merge_base", rewrite.mergeBase);
+        }
+        List<Map<String, String>> rewritten = new ArrayList<Map<String, String>>(rewrite.rewritten.size());
+        for (Map.Entry<String, String> entry : rewrite.rewritten.entrySet()) {
+            Map<String, String> pair = new HashMap<String, String>(2);
+            pair.put("old", entry.getKey());
+            pair.put("new", entry.getValue());
+            rewritten.add(pair);
+        }
+        content.put("rewritten", rewritten);
+        content.put("dropped", rewrite.dropped);
+        List<String> added = new ArrayList<String>(rewrite.unmatched.size());
+        for (Commit commit : rewrite.unmatched) {
+            added.add(commit.getId());
+        }
+        content.put("added", added);
+
+        String topic = topicPrefix + repo.getProject().getKey() + "." + repo.getName() + ".rewrite";
+        return new Message(content, topic, repo.getId(), null);
+    }
+
+    /*
+    * The commits include reaches and none of the excludes do, newest first, or null if stash is too slow to
+    * list them right now. Every page gets the size the last one earned.
+    */
+    private Listing between(Repository repo, RefChange ref, String include, Set<String> excludes) {
+        if (!breakers.getCommitsBetween().allowRequest()) {
+            return null;
+        }
+        final CommitsBetweenRequest request = new CommitsBetweenRequest.Builder(repo).include(include).exclude(excludes).build();
+        Listing listing = new Listing();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            PageRequest pageRequest = PageUtils.newRequest(0, pageSizes.getCommitsBetween().get());
+            while (pageRequest != null) {
+                long pageStart = System.nanoTime();
+                final PageRequest current = pageRequest;
+                Page<Commit> page = security.withPermission(Permission.ADMIN, "Comparing a force push").call(new UncheckedOperation<Page<Commit>>() {
+                    @Override
+                    public Page<Commit> perform() {
+                        return commitService.getCommitsBetween(request, current);
+                    }
+                });
+                pageSizes.getCommitsBetween().record(pageStart, pageRequest.getLimit(), page.getSize());
+                for (Commit commit : page.getValues()) {
+                    listing.commits.add(commit);
+                }
+                if (page.getIsLastPage()) {
+                    listing.complete = true;
+                    pageRequest = null;
+                } else if (listing.commits.size() >= maxCommits) {
+                    LOGGER.error("The force push to {} touches more than {} commits, only the newest are compared.", ref.getRefId(), maxCommits);
+                    pageRequest = null;
+                } else {
+                    pageRequest = PageUtils.newRequest(page.getNextPageRequest().getStart(), pageSizes.getCommitsBetween().get());
+                }
+            }
+            success = true;
+        } catch (Exception e) {
+            LOGGER.error("Failed to compare {} with {}", include, excludes, e);
+        } finally {
+            breakers.getCommitsBetween().record(start, success);
+            recorder.stage("getCommitsBetween", start);
+        }
+        return success ? listing : null;
+    }
+
+    private static class Listing {
+        private final List<Commit> commits = new ArrayList<Commit>();
+        private boolean complete;
+    }
+
+    private static String patchKey(Commit commit) {
+        return commit.getAuthor().getEmailAddress() + "\n" + commit.getAuthorTimestamp().getTime() + "\n" + commit.getMessage();
+    }
+
+    /*
+    * The outcome of one force push. Commits are newest first, the way stash lists them.
+    */
+    public static class Rewrite {
+        private final RefChange ref;
+        private final Map<String, String> rewritten = new LinkedHashMap<String, String>();
+        private final List<String> dropped = new ArrayList<String>();
+        private final List<Commit> unmatched = new ArrayList<Commit>();
+        private final List<String> matched = new ArrayList<String>();
+        private String mergeBase;
+
+        Rewrite(RefChange ref, List<Commit> removed, List<Commit> added, boolean allRemoved) {
+            this.ref = ref;
+
+            // commits sharing a key, like two identical reverts, are paired in order, newest with newest
+            Map<String, LinkedList<Commit>> byKey = new HashMap<String, LinkedList<Commit>>(removed.size() * 2);
+            for (Commit commit : removed) {
+                LinkedList<Commit> sameKey = byKey.get(patchKey(commit));
+                if (sameKey == null) {
+                    sameKey = new LinkedList<Commit>();
+                    byKey.put(patchKey(commit), sameKey);
+                }
+                sameKey.add(commit);
+            }
+            // the oldest removed commit's parent is where the two histories meet, if the page held them all and
+            // they are one line; with a merge among them there is no single such commit
+            if (allRemoved && isLinear(removed)) {
+                mergeBase = removed.get(removed.size() - 1).getParents().iterator().next().getId();
+            }
+
+            for (Commit commit : added) {
+                LinkedList<Commit> sameKey = byKey.get(patchKey(commit));
+                Commit old = sameKey == null ? null : sameKey.poll();
+                if (old == null) {
+                    unmatched.add(commit);
+                } else {
+                    rewritten.put(old.getId(), commit.getId());
+                    matched.add(commit.getId());
+                }
+            }
+            for (Commit commit : removed) {
+                if (!rewritten.containsKey(commit.getId())) {
+                    dropped.add(commit.getId());
+                }
+            }
+        }
+
+        /*
+        * Whether every commit, newest first, has exactly one parent and that parent is the next commit.
+        */
+        private static boolean isLinear(List<Commit> commits) {
+            for (int i = 0; i < commits.size(); i++) {
+                Collection<MinimalCommit> parents = commits.get(i).getParents();
+                if (parents.size() != 1) {
+                    return false;
+                }
+                if (i + 1 < commits.size() && !parents.iterator().next().getId().equals(commits.get(i + 1).getId())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public RefChange getRef() {return ref;}
+
+        // new commits that are only a rewrite of an old one
+        public List<String> getMatched() {return matched;}
+
+        // new commits that have to be published in full
+        public List<Commit> getUnmatched() {return unmatched;}
+    }
+}
@@ -0,0 +1,15 @@
+package com.cray.stash;
+
+import java.util.List;
+
+/**
+ * Republishes the commits of a ref range through the normal enrichment pipeline, for use after relay
+ * outages or consumer bugs.
+ */
+public interface SEPBackfill {
+    BackfillJob submit(String projectKey, String repositorySlug, String refId, String fromHash, String toHash, int cursor);
+    BackfillJob pause(String jobId);
+    BackfillJob resume(String jobId);
+    BackfillJob cancel(String jobId);
+    List<BackfillJob> getJobs();
+}
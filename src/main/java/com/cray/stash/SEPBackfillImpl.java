@@ -0,0 +1,340 @@
+package com.cray.stash;
+
+import com.atlassian.stash.commit.Commit;
+import com.atlassian.stash.repository.*;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageUtils;
+import com.atlassian.stash.util.UncheckedOperation;
+import com.cray.stash.DeferredEnrichment.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs backfill jobs on a single low priority thread, one page at a time. After every page the job goes to
+ * the back of the queue, so a few thousand queued repositories are worked through round robin, and the rate
+ * limiter keeps the total load on stash and the relay well below what live pushes generate. Messages go
+ * through the same sinks as live pushes.
+ *
+ * The worker also completes deferred enrichment once all circuit breakers are closed: partially published
+ * commits are looked up and published again in full, one by one, and ref changes that couldn't be listed are
+ * processed again.
+ */
+public class SEPBackfillImpl implements SEPBackfill, DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private static final String REF_BRANCH = "refs/heads/";
+    private static final int MAX_FINISHED_JOBS = 200;
+    private SEPCommits sepCommits;
+    private RefService repoData;
+    private RepositoryService repoService;
+    private SecurityService security;
+    private SinkDispatcher sinkDispatcher;
+    private ClusterShardRouter shardRouter;
+    private SEPRefChangeEvent sepRefChangeEvent;
+    private StashCircuitBreakers breakers;
+    private DeferredEnrichment deferred;
+    private int pageSize;
+    private RateLimiter rateLimiter;
+    private final BlockingQueue<BackfillJob> queue = new LinkedBlockingQueue<BackfillJob>();
+    private final Map<String, BackfillJob> jobs = new LinkedHashMap<String, BackfillJob>();
+    private final AtomicLong jobIds = new AtomicLong();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public SEPBackfillImpl(SEPCommits sepCommits, RefService repoData, RepositoryService repoService, SecurityService security,
+                           ApplicationPropertiesService appService, SinkDispatcher sinkDispatcher, ClusterShardRouter shardRouter,
+                           SEPRefChangeEvent sepRefChangeEvent, StashCircuitBreakers breakers, DeferredEnrichment deferred) {
+        this.sepCommits = sepCommits;
+        this.sepRefChangeEvent = sepRefChangeEvent;
+        this.breakers = breakers;
+        this.deferred = deferred;
+        this.sinkDispatcher = sinkDispatcher;
+        this.shardRouter = shardRouter;
+        this.repoData = repoData;
+        this.repoService = repoService;
+        this.security = security;
+
+        PluginProperties properties = new PluginProperties(appService);
+        pageSize = properties.getInt("plugin.fedmsg.backfill.pageSize", 100);
+        rateLimiter = new RateLimiter(properties.getDouble("plugin.fedmsg.backfill.commitsPerSecond", 20));
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "fedmsg-backfill");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    @Override
+    public BackfillJob submit(String projectKey, String repositorySlug, String refId, String fromHash, String toHash, int cursor) {
+        return submit(projectKey, repositorySlug, refId, fromHash, toHash, cursor, true);
+    }
+
+    private BackfillJob submit(String projectKey, String repositorySlug, String refId, String fromHash, String toHash, int cursor,
+                               boolean followOwnership) {
+        if (!refId.startsWith("refs/")) {
+            refId = REF_BRANCH + refId;
+        }
+
+        BackfillJob job = new BackfillJob(Long.toString(jobIds.incrementAndGet()), projectKey, repositorySlug, refId,
+                emptyToNull(fromHash), emptyToNull(toHash), Math.max(0, cursor), followOwnership);
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+            pruneFinished();
+        }
+        LOGGER.info("Queued backfill job {} for {}/{} {} {}..{} starting at {}.", new Object[]{job.getId(), projectKey,
+                repositorySlug, refId, fromHash, toHash, cursor});
+        queue.add(job);
+        return job;
+    }
+
+    @Override
+    public BackfillJob pause(String jobId) {
+        BackfillJob job = getJob(jobId);
+        if (job != null && !job.isFinished()) {
+            job.setState(BackfillJob.State.PAUSED);
+        }
+        return job;
+    }
+
+    @Override
+    public BackfillJob resume(String jobId) {
+        BackfillJob job = getJob(jobId);
+        if (job != null && (job.getState() == BackfillJob.State.PAUSED || job.getState() == BackfillJob.State.FAILED)) {
+            job.setState(BackfillJob.State.QUEUED);
+            if (!queue.contains(job)) {
+                queue.add(job);
+            }
+        }
+        return job;
+    }
+
+    @Override
+    public BackfillJob cancel(String jobId) {
+        BackfillJob job = getJob(jobId);
+        if (job != null && !job.isFinished()) {
+            job.setState(BackfillJob.State.CANCELLED);
+        }
+        return job;
+    }
+
+    @Override
+    public List<BackfillJob> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<BackfillJob>(jobs.values());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private BackfillJob getJob(String jobId) {
+        synchronized (jobs) {
+            return jobs.get(jobId);
+        }
+    }
+
+    private void work() {
+        while (running) {
+            try {
+                BackfillJob job = queue.poll(10, TimeUnit.SECONDS);
+                if (deferred.size() > 0 && breakers.allClosed()) {
+                    completeDeferred();
+                }
+                if (job == null) {
+                    continue;
+                }
+                if (job.getState() != BackfillJob.State.QUEUED && job.getState() != BackfillJob.State.RUNNING) {
+                    // paused or cancelled while it was waiting in the queue
+                    continue;
+                }
+
+                job.setState(BackfillJob.State.RUNNING);
+                if (runPage(job) && job.getState() == BackfillJob.State.RUNNING) {
+                    job.setState(BackfillJob.State.QUEUED);
+                    queue.add(job);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                LOGGER.error("Unexpected exception in the backfill worker", e);
+            }
+        }
+    }
+
+    /*
+    * Publishes the next page of a job. Returns true if the job has more pages to go.
+    */
+    private boolean runPage(final BackfillJob job) throws InterruptedException {
+        final Repository repo;
+        final Page<Commit> page;
+        try {
+            repo = security.withPermission(Permission.ADMIN, "Backfilling commits").call(new UncheckedOperation<Repository>() {
+                @Override
+                public Repository perform() {
+                    return repoService.getBySlug(job.getProjectKey(), job.getRepositorySlug());
+                }
+            });
+            if (repo == null) {
+                job.fail("Repository " + job.getProjectKey() + "/" + job.getRepositorySlug() + " does not exist.");
+                return false;
+            }
+            if (job.isFollowOwnership() && !shardRouter.isLocallyOwned(repo.getId())) {
+                // the cluster changed since the job was submitted, another node is responsible for it now
+                job.fail("Repository is owned by node " + shardRouter.getOwner(repo.getId()) + ", resubmit the job there with cursor "
+                        + job.getCursor() + ".");
+                return false;
+            }
+            if (job.getToHash() == null) {
+                job.setToHash(findTip(repo, job.getRefId()));
+                if (job.getToHash() == null) {
+                    job.fail("Ref " + job.getRefId() + " does not exist in " + job.getProjectKey() + "/" + job.getRepositorySlug() + ".");
+                    return false;
+                }
+            }
+
+            page = security.withPermission(Permission.ADMIN, "Backfilling commits").call(new UncheckedOperation<Page<Commit>>() {
+                @Override
+                public Page<Commit> perform() {
+                    return sepCommits.findCommitsInRange(repo, job.getFromHash(), job.getToHash(),
+                            PageUtils.newRequest(job.getCursor(), pageSize));
+                }
+            });
+        } catch (Exception e) {
+            LOGGER.error("Backfill job {} failed to look up commits", job.getId(), e);
+            job.fail(e.toString());
+            return false;
+        }
+
+        rateLimiter.acquire(page.getSize());
+        final RefChange ref = new SimpleRefChange.Builder()
+                .refId(job.getRefId())
+                .fromHash(job.getFromHash() == null ? "0000000000000000000000000000000000000000" : job.getFromHash())
+                .toHash(job.getToHash())
+                .type(RefChangeType.UPDATE)
+                .build();
+        List<Message> messages = enrich(page, ref, repo, "Backfilling commits");
+
+        // pages come newest first, so send each page oldest first like a live push does
+        Collections.reverse(messages);
+        sinkDispatcher.publish(messages);
+
+        job.advance(page.getIsLastPage() ? job.getCursor() + page.getSize() : page.getNextPageRequest().getStart(), messages.size());
+        if (page.getIsLastPage()) {
+            LOGGER.info("Backfill job {} finished after publishing {} commits.", job.getId(), job.getPublished());
+            job.setState(BackfillJob.State.DONE);
+            return false;
+        }
+        return true;
+    }
+
+    private void completeDeferred() throws InterruptedException {
+        for (final Entry entry : deferred.drain(100)) {
+            try {
+                final Repository repo = security.withPermission(Permission.ADMIN, "Completing deferred commits").call(new UncheckedOperation<Repository>() {
+                    @Override
+                    public Repository perform() {
+                        return repoService.getBySlug(entry.getProjectKey(), entry.getRepositorySlug());
+                    }
+                });
+                if (repo != null && entry.getCommitId() != null) {
+                    republish(repo, entry);
+                } else if (repo != null) {
+                    LOGGER.info("Processing deferred ref change {} of {}/{}.", new Object[]{entry.getRefChange().getRefId(),
+                            entry.getProjectKey(), entry.getRepositorySlug()});
+                    sepRefChangeEvent.processEvent(repo, Collections.singletonList(entry.getRefChange()));
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                LOGGER.error("Failed to complete deferred enrichment", e);
+            }
+        }
+    }
+
+    /*
+    * Publishes a partially published commit again, in full. The first commit reachable from a commit is the
+    * commit itself, so a one commit page of the range up to it is exactly that commit and none of its parents.
+    */
+    private void republish(final Repository repo, final Entry entry) throws InterruptedException {
+        Page<Commit> page = security.withPermission(Permission.ADMIN, "Completing deferred commits").call(new UncheckedOperation<Page<Commit>>() {
+            @Override
+            public Page<Commit> perform() {
+                return sepCommits.findCommitsInRange(repo, null, entry.getCommitId(), PageUtils.newRequest(0, 1));
+            }
+        });
+        rateLimiter.acquire(page.getSize());
+        List<Message> messages = enrich(page, entry.getRefChange(), repo, "Completing deferred commits");
+        LOGGER.info("Republishing deferred commit {} of {}/{}.", new Object[]{entry.getCommitId(), entry.getProjectKey(),
+                entry.getRepositorySlug()});
+        sinkDispatcher.publish(messages);
+    }
+
+    /*
+    * Builds the messages of a page. The worker has no user, so the files and clone links are looked up with the
+    * same elevated permissions as the page itself.
+    */
+    private List<Message> enrich(final Page<Commit> page, final RefChange ref, final Repository repo, String reason) {
+        return security.withPermission(Permission.ADMIN, reason).call(new UncheckedOperation<List<Message>>() {
+            @Override
+            public List<Message> perform() {
+                return sepCommits.findCommitInfo(page.getValues(), ref, repo);
+            }
+        });
+    }
+
+    private String findTip(final Repository repo, final String refId) {
+        return security.withPermission(Permission.ADMIN, "Backfilling commits").call(new UncheckedOperation<String>() {
+            @Override
+            public String perform() {
+                RepositoryBranchesRequest request = new RepositoryBranchesRequest.Builder(repo)
+                        .filterText(refId.substring(refId.lastIndexOf('/') + 1))
+                        .build();
+                for (Branch branch : repoData.getBranches(request, PageUtils.newRequest(0, 100)).getValues()) {
+                    if (branch.getId().equals(refId)) {
+                        return branch.getLatestCommit();
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private void pruneFinished() {
+        int finished = 0;
+        for (BackfillJob job : jobs.values()) {
+            if (job.isFinished()) {
+                finished++;
+            }
+        }
+        Iterator<BackfillJob> it = jobs.values().iterator();
+        while (finished > MAX_FINISHED_JOBS && it.hasNext()) {
+            if (it.next().isFinished()) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+}
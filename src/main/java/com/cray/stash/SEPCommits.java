@@ -1,12 +1,27 @@
 package com.cray.stash;
 
+import com.atlassian.stash.commit.Commit;
 import com.atlassian.stash.repository.RefChange;
 import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by swalter on 6/3/2016.
  */
 public interface SEPCommits {
-    List<Message> findCommitInfo (RefChange ref, Repository repo);
+    List<Message> findCommitInfo (Iterable<Commit> commits, RefChange ref, Repository repo);
+    // with clone urls from findCloneUrls, so the chunks of one ref share a lookup
+    List<Message> findCommitInfo (Iterable<Commit> commits, RefChange ref, Repository repo, HashMap<String, String> urls);
+    // null if the repository's profile leaves them out or stash was too slow to ask
+    HashMap<String, String> findCloneUrls (Repository repo);
+    // the unpublished commits a ref change brought, newest first, to be enriched in chunks; null if it was deferred
+    List<Commit> findNewCommits (RefChange ref, Repository repo);
+    List<Commit> findFastForwardCommits (RefChange ref, Repository repo);
+    Page<Commit> findCommitsInRange (Repository repo, String fromHash, String toHash, PageRequest pageRequest);
+    // what a ref change's commits are listed against: the old tip and the other branches, null while unknown
+    Set<String> findExcludes (Repository repo, RefChange ref);
 }
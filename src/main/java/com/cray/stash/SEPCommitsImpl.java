@@ -23,27 +23,51 @@ public class SEPCommitsImpl implements SEPCommits {
     private CommitService commitService;
     private SecurityService security;
     private RepositoryService repoService;
-    private int pageLimit;
     private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
     private String topicPrefix;
+    private PublishFilter publishFilter;
+    private PublishedCommitIndex publishedIndex;
+    private SlowEventRecorder recorder;
+    private StashCircuitBreakers breakers;
+    private DeferredEnrichment deferred;
+    private EnrichmentProfiles profiles;
+    private ForkOrigins forkOrigins;
+    private AdaptivePageSizes pageSizes;
+    private final Map<String, List<String>> ancestry;
+    private final int maxCommits;
     private static final int BRANCHNAME_OFFSET = 11;
 
-    public SEPCommitsImpl(RefService repoData, CommitService commitService, SecurityService security, RepositoryService repoService, ApplicationPropertiesService appService) {
+    public SEPCommitsImpl(RefService repoData, CommitService commitService, SecurityService security, RepositoryService repoService,
+                          ApplicationPropertiesService appService, PublishFilter publishFilter, PublishedCommitIndex publishedIndex,
+                          SlowEventRecorder recorder, StashCircuitBreakers breakers, DeferredEnrichment deferred,
+                          EnrichmentProfiles profiles, ForkOrigins forkOrigins, AdaptivePageSizes pageSizes) {
+        this.pageSizes = pageSizes;
+        this.forkOrigins = forkOrigins;
         this.repoData = repoData;
         this.commitService = commitService;
         this.security = security;
         this.repoService = repoService;
+        this.publishFilter = publishFilter;
+        this.publishedIndex = publishedIndex;
+        this.recorder = recorder;
+        this.breakers = breakers;
+        this.deferred = deferred;
+        this.profiles = profiles;
+
+        PluginProperties properties = new PluginProperties(appService);
+        final int cacheSize = properties.getInt("plugin.fedmsg.fastPath.cacheSize", 4096);
+        maxCommits = properties.getInt("plugin.fedmsg.push.maxCommits", 10000);
+        ancestry = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                return size() > cacheSize;
+            }
+        };
 
         try {
-            pageLimit = Integer.parseInt(appService.getPluginProperty("plugin.fedmsg.pageLimit"));
             topicPrefix = appService.getPluginProperty("plugin.fedmsg.events.topic.prefix");
         } catch (Exception e) {
-            LOGGER.error("Failed to retrieve page limit property, error was: " + e);
-        }
-
-        if (pageLimit == 0) {
-            pageLimit = 250;
-            LOGGER.info("The page limit was not set so it's set to 250 by default.");
+            LOGGER.error("Failed to retrieve topic prefix property, error was: " + e);
         }
 
         if (topicPrefix == null) {
@@ -52,23 +76,189 @@ public class SEPCommitsImpl implements SEPCommits {
         }
     }
 
+    /*
+    * The commits a ref change brought that weren't published yet, newest first, or null if stash was too slow
+    * to list them and the ref change was deferred.
+    */
+    @Override
+    public List<Commit> findNewCommits(RefChange ref, Repository repo) {
+        List<Commit> commits = getChangeset(repo, ref);
+        if (commits == null) {
+            LOGGER.info("Stash is too slow to list the commits of {}, deferring it.", ref.getRefId());
+            deferred.deferRefChange(repo, ref);
+            return null;
+        }
+        long start = System.nanoTime();
+        List<Commit> unpublished = new ArrayList<Commit>();
+        for (Commit commit : commits) {
+            if (publishedIndex.isPublished(repo, commit.getId())) {
+                LOGGER.debug("Commit {} was already published, skipping it.", commit.getDisplayId());
+            } else {
+                unpublished.add(commit);
+            }
+        }
+        recorder.stage("publishedIndex", start);
+        recorder.commits(unpublished.size());
+        return unpublished;
+    }
+
+    /*
+    * The fast path for the common push: a branch moved forward by a few commits. Only the commits between
+    * fromHash and toHash are listed, without enumerating the branches, and the published commit index catches
+    * any of them that were already announced on another branch. Returns null if the range is not confirmed to
+    * be a fast forward, in which case the caller falls back to the full path.
+    */
+    @Override
+    public List<Commit> findFastForwardCommits(RefChange ref, Repository repo) {
+        if (ref.getFromHash().contains("0000000000000000000000000000000000000000")
+                || ref.getToHash().contains("0000000000000000000000000000000000000000")
+                || !breakers.getCommitsBetween().allowRequest()) {
+            return null;
+        }
+        CommitsBetweenRequest request = new CommitsBetweenRequest.Builder(repo)
+                .exclude(Collections.singleton(ref.getFromHash()))
+                .include(ref.getToHash())
+                .build();
+        long start = System.nanoTime();
+        List<Commit> commits = listCommits(request, ref);
+        recorder.stage("fastPath", start);
+
+        // a push too large to list in full takes the full path, which publishes at least the newest commits
+        if (commits == null || commits.size() >= maxCommits || !isFastForward(commits, ref)) {
+            return null;
+        }
+        List<Commit> unpublished = new ArrayList<Commit>();
+        for (Commit commit : commits) {
+            if (!publishedIndex.isPublished(repo, commit.getId())) {
+                unpublished.add(commit);
+            }
+        }
+        recorder.commits(unpublished.size());
+        return unpublished;
+    }
+
+    /*
+    * The range is a fast forward if fromHash is a parent of one of its commits. The walk goes through the
+    * ancestry cache as well, which also remembers the parents of commits seen in earlier pushes.
+    */
+    private boolean isFastForward(List<Commit> commits, RefChange ref) {
+        synchronized (ancestry) {
+            for (Commit commit : commits) {
+                List<String> parents = new ArrayList<String>(2);
+                for (MinimalCommit parent : commit.getParents()) {
+                    parents.add(parent.getId());
+                }
+                ancestry.put(commit.getId(), parents);
+            }
+
+            Set<String> seen = new HashSet<String>();
+            Deque<String> walk = new ArrayDeque<String>();
+            walk.push(ref.getToHash());
+            while (!walk.isEmpty()) {
+                String id = walk.pop();
+                if (id.equals(ref.getFromHash())) {
+                    return true;
+                }
+                List<String> parents = ancestry.get(id);
+                if (parents != null && seen.add(id)) {
+                    for (String parent : parents) {
+                        walk.push(parent);
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /*
+    * Builds the messages for commits that were already looked up, e.g. a page of a backfill range. The
+    * repository's enrichment profile decides which stash calls are made: the clone links once for the whole
+    * batch, the changes of as many commits per call as the adaptive page size allows.
+    */
+    @Override
+    public List<Message> findCommitInfo(Iterable<Commit> commits, RefChange ref, Repository repo) {
+        return findCommitInfo(commits, ref, repo, findCloneUrls(repo));
+    }
+
+    /*
+    * The same for one of several chunks of a ref, with the clone links its publisher looked up once for all of
+    * them. Null links mean they are missing if the profile asks for them.
+    */
     @Override
-    public List<Message> findCommitInfo(RefChange ref, Repository repo) {
-        ArrayList<Message> toSend = new ArrayList<Message>();
-        Page<Commit> commits = getChangeset(repo, ref);
-        for (Commit commit : commits.getValues()) {
-            String topic = topicPrefix + repo.getProject().getKey() + "." + repo.getName() + ".commit";
-            Message message = new Message(getInfo(commit, ref), topic);
+    public List<Message> findCommitInfo(Iterable<Commit> commits, RefChange ref, Repository repo, HashMap<String, String> urls) {
+        List<Commit> accepted = new ArrayList<Commit>();
+        for (Commit commit : commits) {
+            if (!publishFilter.acceptsAuthor(commit.getAuthor().getName(), commit.getAuthor().getEmailAddress())) {
+                LOGGER.debug("Skipping commit {} by filtered author {}.", commit.getDisplayId(), commit.getAuthor().getEmailAddress());
+                continue;
+            }
+            accepted.add(commit);
+        }
+
+        ArrayList<Message> toSend = new ArrayList<Message>(accepted.size());
+        if (accepted.isEmpty()) {
+            return toSend;
+        }
+        EnrichmentProfiles.Profile profile = profiles.getProfile(repo);
+        if (!profile.hasUrls()) {
+            urls = null;
+        }
+        boolean urlsMissing = profile.hasUrls() && urls == null;
+        Map<String, ArrayList<String>> files = profile.hasFiles() ? getFiles(repo, accepted) : null;
+
+        String topic = topicPrefix + repo.getProject().getKey() + "." + repo.getName() + ".commit";
+        for (Commit commit : accepted) {
+            ArrayList<String> commitFiles = files == null ? null : files.get(commit.getId());
+            boolean filesMissing = profile.hasFiles() && commitFiles == null;
+            Message message = new Message(getInfo(commit, ref, profile, urls, urlsMissing, commitFiles, filesMissing), topic,
+                    repo.getId(), commit.getId());
             toSend.add(message);
         }
         return toSend;
     }
 
+    @Override
+    public HashMap<String, String> findCloneUrls(Repository repo) {
+        return profiles.getProfile(repo).hasUrls() ? getCloneUrls(repo) : null;
+    }
+
+    /*
+    * Returns one page of the commits reachable from toHash but not from fromHash. Unlike getChangeset this
+    * doesn't exclude the other branches, since a backfill wants to republish history that is already merged.
+    */
+    @Override
+    public Page<Commit> findCommitsInRange(Repository repo, String fromHash, String toHash, PageRequest pageRequest) {
+        CommitsBetweenRequest.Builder commitsRequest = new CommitsBetweenRequest.Builder(repo);
+        if (fromHash != null && !fromHash.contains("0000000000000000000000000000000000000000")) {
+            commitsRequest.exclude(Collections.singleton(fromHash));
+        }
+        commitsRequest.include(toHash);
+        return getCommitsBetween(commitsRequest.build(), pageRequest);
+    }
+
+    /*
+    * The lanes, the sweep and the backfill run on threads of our own without a user, so every stash call is
+    * made with elevated permissions.
+    */
+    private Page<Commit> getCommitsBetween(final CommitsBetweenRequest request, final PageRequest pageRequest) {
+        return security.withPermission(Permission.ADMIN, "Listing new commits").call(new UncheckedOperation<Page<Commit>>() {
+            @Override
+            public Page<Commit> perform() {
+                return commitService.getCommitsBetween(request, pageRequest);
+            }
+        });
+    }
+
     /*
     * This method takes an individual commit object, and extracts the information from it that we want to send to
-    * Fedmsg. This method is for use with the pushEvent method, so strictly refChanges.
+    * Fedmsg. This method is for use with the pushEvent method, so strictly refChanges. Fields the profile leaves
+    * out are never looked up. If stash is too slow to give us the files or clone urls the profile asks for, the
+    * message goes out without them, marked as partial, and the commit is deferred so the backfill can publish it
+    * in full later.
     */
-    private HashMap<String, Object> getInfo(Commit commit, RefChange ref) {
+    private HashMap<String, Object> getInfo(Commit commit, RefChange ref, EnrichmentProfiles.Profile profile,
+                                            HashMap<String, String> urls, boolean urlsMissing, ArrayList<String> files,
+                                            boolean filesMissing) {
         TimeZone tz = TimeZone.getTimeZone("UTC");
         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
         df.setTimeZone(tz);
@@ -79,15 +269,25 @@ public class SEPCommitsImpl implements SEPCommits {
             author.put("name", commit.getAuthor().getName());
             author.put("emailAddress", commit.getAuthor().getEmailAddress());
             content.put("author", author);
-            content.put("comments", commit.getMessage());
+            if (profile.hasComments()) {
+                content.put("comments", commit.getMessage());
+            }
             content.put("project_key", commit.getRepository().getProject().getKey());
-            content.put("urls", getCloneUrls(commit.getRepository()));
+            if (urls != null) {
+                content.put("urls", urls);
+            }
             content.put("repository", commit.getRepository().getName());
             content.put("project", commit.getRepository().getProject().getName());
             content.put("revision", commit.getId());
             content.put("when_timestamp", df.format(commit.getAuthorTimestamp()));
             content.put("branch", ref.getRefId().substring(BRANCHNAME_OFFSET));
-            content.put("files", getFiles(commit));
+            if (files != null) {
+                content.put("files", files);
+            }
+            if (urlsMissing || filesMissing) {
+                content.put("partial", true);
+                deferred.deferCommit(commit.getRepository(), ref, commit);
+            }
         } catch (NullPointerException e) {
             LOGGER.error("NullPointerException occurred while extracting information from a commit object. Commit Message: " + commit.getMessage()
                     + " author: " + commit.getAuthor().getName() + " commit id: " + commit.getDisplayId() + "\nError: " + e);
@@ -99,64 +299,180 @@ public class SEPCommitsImpl implements SEPCommits {
     }
 
     /*
-    * This method gets commit(s) in between two refs.
+    * This method gets commit(s) in between two refs, or null if stash is too slow to ask right now.
     */
-    private Page<Commit> getChangeset(Repository repo, RefChange ref) {
+    private List<Commit> getChangeset(Repository repo, RefChange ref) {
+        if (!breakers.getCommitsBetween().allowRequest()) {
+            return null;
+        }
         CommitsBetweenRequest.Builder commitsRequest = new CommitsBetweenRequest.Builder(repo);
-        commitsRequest.exclude(getExcludes(repo, ref));
+        Set<String> excludes = findExcludes(repo, ref);
+        if (excludes == null) {
+            return null;
+        }
+        Repository origin = forkOrigins.getOrigin(repo);
+        if (origin != null) {
+            // commits the fork inherited from its origin aren't new
+            commitsRequest.secondaryRepository(origin);
+            excludes.addAll(forkOrigins.getTips(origin));
+        }
+        commitsRequest.exclude(excludes);
         commitsRequest.include(ref.getToHash());
-        return commitService.getCommitsBetween(commitsRequest.build(), PageUtils.newRequest(0, pageLimit));
+        long start = System.nanoTime();
+        List<Commit> commits = listCommits(commitsRequest.build(), ref);
+        recorder.stage("getCommitsBetween", start);
+        return commits;
     }
 
     /*
-    * This method takes in a repository and returns a set of the latest ref ids for all of
-    * its branches except for the one we're currently analyzing. That one could have new
-    * commits on it and we don't want to miss those.
+    * Lists the commits of a request newest first, page by page until the last one or plugin.fedmsg.push.maxCommits
+    * commits. Every page gets the size the last one earned, so a slow repository is asked for small pages without
+    * losing the commits past the first one. Returns null if stash failed to answer.
     */
-    private Set<String> getExcludes(Repository repo, RefChange ref) {
-        final RepositoryBranchesRequest branchesRequest = new RepositoryBranchesRequest.Builder(repo).build();
-        Page<Branch> branches = repoData.getBranches(branchesRequest, PageUtils.newRequest(0, 100));
-        Set<String> refIds = new HashSet<String>(branches.getSize());
+    private List<Commit> listCommits(CommitsBetweenRequest request, RefChange ref) {
+        List<Commit> commits = new ArrayList<Commit>();
+        long start = System.nanoTime();
+        boolean success = false;
         try {
-            for (Branch branch : branches.getValues()) {
-                if(branch.getId().startsWith("refs/heads/") && !branch.getId().equals(ref.getRefId())){
-                    refIds.add(branch.getDisplayId());
+            PageRequest pageRequest = PageUtils.newRequest(0, pageSizes.getCommitsBetween().get());
+            while (pageRequest != null) {
+                long pageStart = System.nanoTime();
+                Page<Commit> page = getCommitsBetween(request, pageRequest);
+                pageSizes.getCommitsBetween().record(pageStart, pageRequest.getLimit(), page.getSize());
+                for (Commit commit : page.getValues()) {
+                    commits.add(commit);
+                }
+                if (page.getIsLastPage()) {
+                    pageRequest = null;
+                } else if (commits.size() >= maxCommits) {
+                    LOGGER.error("{} has more than {} new commits, only the newest are published.", ref.getRefId(), maxCommits);
+                    pageRequest = null;
+                } else {
+                    pageRequest = PageUtils.newRequest(page.getNextPageRequest().getStart(), pageSizes.getCommitsBetween().get());
                 }
             }
+            success = true;
         } catch (Exception e) {
-            LOGGER.error("An error occurred while finding all the branches in a repo\n" + e);
+            LOGGER.error("Failed to get the commits of {}", ref.getRefId(), e);
+        } finally {
+            breakers.getCommitsBetween().record(start, success);
+        }
+        return success ? commits : null;
+    }
+
+    /*
+    * This method takes in a repository and returns a set of the latest ref ids for all of
+    * its branches except for the one we're currently analyzing. That one could have new
+    * commits on it and we don't want to miss those. While stash is too slow to list the
+    * branches only fromHash is excluded and the published commit index has to catch the rest.
+    * A new branch has no fromHash, nothing would be excluded and its whole history walked, so
+    * then null is returned and the ref change waits until the branches can be listed.
+    */
+    @Override
+    public Set<String> findExcludes(Repository repo, RefChange ref) {
+        Set<String> refIds = new HashSet<String>();
+        boolean listed = false;
+        if (breakers.getBranches().allowRequest()) {
+            final RepositoryBranchesRequest branchesRequest = new RepositoryBranchesRequest.Builder(repo).build();
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                Page<Branch> branches = security.withPermission(Permission.ADMIN, "Listing branches").call(new UncheckedOperation<Page<Branch>>() {
+                    @Override
+                    public Page<Branch> perform() {
+                        return repoData.getBranches(branchesRequest, PageUtils.newRequest(0, 100));
+                    }
+                });
+                for (Branch branch : branches.getValues()) {
+                    if(branch.getId().startsWith("refs/heads/") && !branch.getId().equals(ref.getRefId())){
+                        refIds.add(branch.getDisplayId());
+                    }
+                }
+                success = true;
+                listed = true;
+            } catch (Exception e) {
+                LOGGER.error("An error occurred while finding all the branches in a repo\n" + e);
+            } finally {
+                breakers.getBranches().record(start, success);
+                recorder.stage("getExcludes", start);
+            }
         }
 
         if(!ref.getFromHash().contains("0000000000000000000000000000000000000000")){
             refIds.add(ref.getFromHash());
+        } else if (!listed) {
+            return null;
         }
         return refIds;
     }
 
-    private ArrayList getFiles(Commit commit) {
-        // This is the request to grab the change data, which is where we find the file path info
-        final ChangesetsRequest.Builder changesRequestBuilder = new ChangesetsRequest.Builder(commit.getRepository());
-        ChangesetsRequest changesRequest = changesRequestBuilder.commitIds(commit.getId()).build();
-        final Page<Changeset> page = commitService.getChangesets(changesRequest, PageUtils.newRequest(0, pageLimit));
+    /*
+    * Returns the paths each commit touched, by commit id. The changes are fetched for as many commits per call
+    * as the adaptive page size allows; commits whose call stash was too slow for are missing from the map.
+    */
+    private Map<String, ArrayList<String>> getFiles(Repository repo, List<Commit> commits) {
+        Map<String, ArrayList<String>> files = new HashMap<String, ArrayList<String>>(commits.size() * 2);
+        int from = 0;
+        while (from < commits.size() && breakers.getChangesets().allowRequest()) {
+            int limit = Math.min(pageSizes.getChangesets().get(), commits.size() - from);
+            List<String> commitIds = new ArrayList<String>(limit);
+            for (Commit commit : commits.subList(from, from + limit)) {
+                commitIds.add(commit.getId());
+            }
+            // This is the request to grab the change data, which is where we find the file path info
+            final ChangesetsRequest changesRequest = new ChangesetsRequest.Builder(repo).commitIds(commitIds).build();
+            final PageRequest pageRequest = PageUtils.newRequest(0, limit);
+            long start = System.nanoTime();
+            final Page<Changeset> page;
+            try {
+                page = security.withPermission(Permission.ADMIN, "Requesting changed files").call(new UncheckedOperation<Page<Changeset>>() {
+                    @Override
+                    public Page<Changeset> perform() {
+                        return commitService.getChangesets(changesRequest, pageRequest);
+                    }
+                });
+                breakers.getChangesets().record(start, true);
+                pageSizes.getChangesets().record(start, limit, page.getSize());
+            } catch (Exception e) {
+                LOGGER.error("Failed to get the changes of {} commits", limit, e);
+                breakers.getChangesets().record(start, false);
+                pageSizes.getChangesets().record(start, limit, 0);
+                break;
+            } finally {
+                recorder.stage("getFiles", start);
+            }
 
-        ArrayList<String> filesChanged = new ArrayList<String>();
-        for (Changeset change : page.getValues()) {
-            for (Change files : change.getChanges().getValues()) {
-                filesChanged.add(files.getPath().toString());
+            // a commit without changes has no changeset, it still isn't missing
+            for (String commitId : commitIds) {
+                files.put(commitId, new ArrayList<String>());
+            }
+            for (Changeset change : page.getValues()) {
+                ArrayList<String> filesChanged = files.get(change.getToCommit().getId());
+                if (filesChanged != null) {
+                    for (Change file : change.getChanges().getValues()) {
+                        filesChanged.add(file.getPath().toString());
+                    }
+                }
             }
+            from += limit;
         }
-
-        return filesChanged;
+        return files;
     }
 
     /*
-    * Returns a set of the various links (http, ssh) that a particular scm (git, svn) can clone from.
+    * Returns a set of the various links (http, ssh) that a particular scm (git, svn) can clone from, or null if
+    * stash is too slow to ask right now.
     */
     private HashMap<String, String> getCloneUrls(Repository repo) {
+        if (!breakers.getCloneLinks().allowRequest()) {
+            return null;
+        }
         final RepositoryCloneLinksRequest linksRequest = new RepositoryCloneLinksRequest.Builder()
                 .repository(repo)
                 .build();
         HashMap<String, String> links = new HashMap<String, String>(2);
+        long start = System.nanoTime();
+        boolean success = false;
         try {
             Set<NamedLink> setLinks = security.withPermission(Permission.ADMIN, "Requesting Clone URLs").call(new UncheckedOperation<Set<NamedLink>>() {
                 @Override
@@ -164,6 +480,7 @@ public class SEPCommitsImpl implements SEPCommits {
                     return repoService.getCloneLinks(linksRequest);
                 }
             });
+            success = true;
             for (NamedLink link : setLinks) {
                 if (link.getHref().contains("https://")) {
                     links.put(link.getName() + "_url", "https://" + link.getHref().substring(link.getHref().indexOf("@") + 1));
@@ -179,6 +496,9 @@ public class SEPCommitsImpl implements SEPCommits {
             LOGGER.error("IllegalStateException occurred while finding clone urls:\n" + e);
         } catch (Exception e) {
             LOGGER.error("Exception occurred while finding clone urls\n" + e);
+        } finally {
+            breakers.getCloneLinks().record(start, success);
+            recorder.stage("getCloneUrls", start);
         }
         return links;
     }
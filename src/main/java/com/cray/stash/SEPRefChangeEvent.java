@@ -1,6 +1,9 @@
 package com.cray.stash;
 
 import com.atlassian.stash.event.RepositoryRefsChangedEvent;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.Repository;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -8,6 +11,8 @@ import java.util.List;
  */
 public interface SEPRefChangeEvent {
     void processEvent(RepositoryRefsChangedEvent event);
+    void processEvent(Repository repo, Collection<RefChange> refChanges);
     void sendCommits(List<Message> commitMessages);
     void connectRelayAndProcess(RepositoryRefsChangedEvent event);
+    void connectRelayAndProcess(Repository repo, Collection<RefChange> refChanges);
 }
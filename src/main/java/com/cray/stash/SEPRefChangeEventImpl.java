@@ -1,15 +1,21 @@
 package com.cray.stash;
 
+import com.atlassian.stash.commit.Commit;
 import com.atlassian.stash.event.RepositoryRefsChangedEvent;
 import com.atlassian.stash.repository.RefChange;
 import com.atlassian.stash.repository.RefChangeType;
 import com.atlassian.stash.repository.Repository;
-import com.atlassian.stash.server.ApplicationPropertiesService;
-import org.fedoraproject.fedmsg.FedmsgConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -19,29 +25,54 @@ public class SEPRefChangeEventImpl implements SEPRefChangeEvent {
 
     private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
     private SEPCommits sepCommits;
-    private FedmsgConnection connection;
-    private String endpoint;
+    private SinkDispatcher sinkDispatcher;
+    private SlowEventRecorder recorder;
+    private BulkEventPlanner planner;
+    private DeferredEnrichment deferred;
+    private RewriteDetector rewrites;
+    private PublishedCommitIndex publishedIndex;
+    private PublishedTips publishedTips;
+    private HeapPressureGuard heapGuard;
     private static final String REF_BRANCH = "refs/heads";
     private static final String REF_TAG = "refs/tags";
-    public SEPRefChangeEventImpl(SEPCommits sepCommits, ApplicationPropertiesService appService) {
+    public SEPRefChangeEventImpl(SEPCommits sepCommits, SinkDispatcher sinkDispatcher, SlowEventRecorder recorder,
+                                 BulkEventPlanner planner, DeferredEnrichment deferred, RewriteDetector rewrites,
+                                 PublishedCommitIndex publishedIndex, PublishedTips publishedTips, HeapPressureGuard heapGuard) {
+        this.rewrites = rewrites;
+        this.heapGuard = heapGuard;
+        this.publishedTips = publishedTips;
+        this.publishedIndex = publishedIndex;
         this.sepCommits = sepCommits;
-
-        try {
-            endpoint = appService.getPluginProperty("plugin.fedmsg.events.relay.endpoint");
-        } catch (Exception e) {
-            LOGGER.error("Failed to retrieve properties\n" + e);
-        }
-
-        if (endpoint == null) {
-            endpoint = "tcp://bit01.us.cray.com:9941";
-            LOGGER.info("The endpoint value was not set. Using the default bit01 relay.");
-        }
+        this.planner = planner;
+        this.deferred = deferred;
+        this.sinkDispatcher = sinkDispatcher;
+        this.recorder = recorder;
     }
 
     @Override
     public void processEvent(RepositoryRefsChangedEvent event) {
+        processEvent(event.getRepository(), event.getRefChanges());
+    }
+
+    /*
+    * Events with enough branch updates to be planned skip the fast path and rewrite detection, both of which
+    * make calls per ref, and are walked once as a whole instead; force pushes in them are published as new
+    * commits. Commits are published once per event even if several of its refs reach them.
+    */
+    @Override
+    public void processEvent(Repository repo, Collection<RefChange> refChanges) {
+
+        int carryingCommits = 0;
+        for (RefChange refChange : refChanges) {
+            if (refChange.getRefId().startsWith(REF_BRANCH) && !isDeleted(refChange)) {
+                carryingCommits++;
+            }
+        }
+        boolean planned = planner.shouldPlan(carryingCommits);
+        Set<String> seen = new HashSet<String>();
 
-        for (RefChange refChange : event.getRefChanges()) {
+        List<RefChange> withCommits = new ArrayList<RefChange>();
+        for (RefChange refChange : refChanges) {
             LOGGER.info("checking ref change refId={} fromHash={} toHash={} type={}", refChange.getRefId(), refChange.getFromHash(),
                     refChange.getToHash(), refChange.getType());
 
@@ -50,46 +81,152 @@ public class SEPRefChangeEventImpl implements SEPRefChangeEvent {
             } else if (refChange.getType() == RefChangeType.ADD && isDeleted(refChange)) {
                 LOGGER.info("Deleted a ref that never existed. This shouldn't ever occur.");
             } else if(refChange.getRefId().startsWith(REF_BRANCH) && (isDeleted(refChange) || isCreated(refChange))){
-                branchCreation(refChange, event.getRepository());
+                branchCreation(refChange, repo, withCommits);
             } else if(refChange.getRefId().startsWith(REF_TAG)) {
                 //tagCreation(refChange, event.getRepository());
             } else if(!refChange.getRefId().startsWith(REF_BRANCH) && !refChange.getRefId().startsWith(REF_TAG)) {
                 //bizarre weird ref name
                 LOGGER.info("Unexpected refChange name: {}. Did not process.", refChange.getRefId());
+            } else if (planned) {
+                withCommits.add(refChange);
             } else {
-                sendCommits(sepCommits.findCommitInfo(refChange, event.getRepository()));
+                List<Commit> fastForward = sepCommits.findFastForwardCommits(refChange, repo);
+                if (fastForward != null) {
+                    PendingTip tip = pendingTip(repo, refChange);
+                    publishCommits(fastForward, refChange, repo, seen, tip);
+                    tip.seal();
+                    continue;
+                }
+                RewriteDetector.Rewrite rewrite = rewrites.detect(repo, refChange);
+                if (rewrite == null) {
+                    withCommits.add(refChange);
+                } else {
+                    PendingTip tip = pendingTip(repo, refChange);
+                    publishRewrite(repo, rewrite, seen, tip);
+                    tip.seal();
+                }
+            }
+        }
+
+        if (planned) {
+            publishPlanned(repo, withCommits, seen);
+        } else {
+            for (RefChange refChange : withCommits) {
+                List<Commit> commits = sepCommits.findNewCommits(refChange, repo);
+                if (commits != null) {
+                    PendingTip tip = pendingTip(repo, refChange);
+                    publishCommits(commits, refChange, repo, seen, tip);
+                    tip.seal();
+                }
             }
         }
     }
 
-    public void connectRelayAndProcess(RepositoryRefsChangedEvent event){
-        try {
-            LOGGER.info("Establishing connection to relay.");
-            connection = new FedmsgConnection(endpoint, 2000).connect();
-        } catch (Exception e) {
-            LOGGER.error("Failed to connect to relay:\n" + e);
+    /*
+    * A force push goes out as one rewrite message mapping old to new commits, followed by the new commits that
+    * don't correspond to an old one. The rewritten commits count as published.
+    */
+    private void publishRewrite(Repository repo, RewriteDetector.Rewrite rewrite, Set<String> seen, PendingTip tip) {
+        List<Commit> unpublished = new ArrayList<Commit>();
+        for (Commit commit : rewrite.getUnmatched()) {
+            if (!publishedIndex.isPublished(repo, commit.getId())) {
+                unpublished.add(commit);
+            }
         }
+        Message message = rewrites.toMessage(repo, rewrite);
+        tip.attach(message);
+        sinkDispatcher.publish(Collections.singletonList(message));
+        publishedIndex.markPublished(repo.getId(), rewrite.getMatched());
+        publishCommits(unpublished, rewrite.getRef(), repo, seen, tip);
+    }
 
-        try {
-            processEvent(event);
-        } catch (Exception e) {
-            LOGGER.error("Failed to process event:\n" + e);
+    /*
+    * Events with many ref changes are walked once as a whole, see BulkEventPlanner.
+    */
+    private void publishPlanned(Repository repo, List<RefChange> refChanges, Set<String> seen) {
+        Map<RefChange, List<Commit>> planned = planner.plan(repo, refChanges);
+        if (planned == null) {
+            LOGGER.info("Stash is too slow to list the commits of {} ref changes, deferring them.", refChanges.size());
+            for (RefChange refChange : refChanges) {
+                deferred.deferRefChange(repo, refChange);
+            }
+            return;
+        }
+        for (Map.Entry<RefChange, List<Commit>> entry : planned.entrySet()) {
+            PendingTip tip = pendingTip(repo, entry.getKey());
+            publishCommits(entry.getValue(), entry.getKey(), repo, seen, tip);
+            tip.seal();
+        }
+    }
+
+    /*
+    * Enriches and sends commits a chunk at a time, oldest chunk first, so a large push never has the payloads
+    * of all its commits on the heap at once. Chunks get smaller while the heap is under pressure. Commits seen
+    * earlier in the event are left out: the index only learns about them once they are delivered, so it can't
+    * stop e.g. `git push origin feature master` from sending the shared ones twice. The clone urls are looked
+    * up once for all the chunks, and every message holds the ref's pending tip.
+    */
+    private void publishCommits(List<Commit> commits, RefChange ref, Repository repo, Set<String> seen, PendingTip tip) {
+        List<Commit> newestFirst = new ArrayList<Commit>(commits.size());
+        for (Commit commit : commits) {
+            if (seen.add(commit.getId())) {
+                newestFirst.add(commit);
+            }
+        }
+        if (newestFirst.isEmpty()) {
+            return;
+        }
+        HashMap<String, String> urls = sepCommits.findCloneUrls(repo);
+        int end = newestFirst.size();
+        while (end > 0) {
+            int begin = Math.max(0, end - heapGuard.getChunkSize());
+            List<Message> messages = sepCommits.findCommitInfo(newestFirst.subList(begin, end), ref, repo, urls);
+            for (Message message : messages) {
+                tip.attach(message);
+            }
+            sendCommits(messages);
+            end = begin;
         }
+    }
 
+    /*
+    * Remembers where a branch was when we last published it, for the reconciliation sweep. A moved branch is
+    * only recorded once its messages are delivered, see PendingTip; a deleted one has none to wait for.
+    */
+    private PendingTip pendingTip(Repository repo, RefChange refChange) {
+        return new PendingTip(publishedTips, repo.getId(), refChange.getRefId(), isDeleted(refChange) ? null : refChange.getToHash());
+    }
+
+    public void connectRelayAndProcess(RepositoryRefsChangedEvent event){
+        connectRelayAndProcess(event.getRepository(), event.getRefChanges());
+    }
+
+    /*
+    * The sink connections themselves are owned by the SinkDispatcher, which keeps them open across events.
+    * While the heap is under pressure the event waits before it is processed.
+    */
+    public void connectRelayAndProcess(Repository repo, Collection<RefChange> refChanges){
+        recorder.begin(repo, refChanges.size());
         try {
-            LOGGER.info("Disconnecting from relay.");
-            connection.disconnect();
+            heapGuard.awaitAdmission();
+            processEvent(repo, refChanges);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Interrupted while waiting for the heap to recover, dropping the event.");
         } catch (Exception e) {
-            LOGGER.error("Error while disconnecting from the fedmsg relay:\n" + e);
+            LOGGER.error("Failed to process event:\n" + e);
+        } finally {
+            recorder.end();
         }
     }
 
-    public void branchCreation(RefChange refChange, Repository repo){
+    public void branchCreation(RefChange refChange, Repository repo, List<RefChange> withCommits){
         if(isCreated(refChange)){
             LOGGER.info("Branch Creation event occurred. Possible new commits on this branch.");
-            sendCommits(sepCommits.findCommitInfo(refChange, repo));
+            withCommits.add(refChange);
         } else if(isDeleted(refChange)){
             //not supported yet
+            pendingTip(repo, refChange).seal();
         } else{
             LOGGER.info("Encountered a branch related refChange event that wasn't accounted for: " +
                         "refId={} fromHash={} toHash={} type={}", refChange.getRefId(), refChange.getFromHash(),
@@ -105,10 +242,14 @@ public class SEPRefChangeEventImpl implements SEPRefChangeEvent {
     public void sendCommits(List<Message> commitMessages) {
         try {
             ListIterator<Message> li = commitMessages.listIterator(commitMessages.size());
-
+            List<Message> oldestFirst = new ArrayList<Message>(commitMessages.size());
             while(li.hasPrevious()){
-                li.previous().sendMessage(connection);
+                oldestFirst.add(li.previous());
             }
+
+            long start = System.nanoTime();
+            sinkDispatcher.publish(oldestFirst);
+            recorder.stage("enqueue", start);
         } catch (Exception e) {
             LOGGER.error("Exception was caught while sending commit info to fedmsg\n" + e);
         }
@@ -0,0 +1,181 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out a monotonic sequence number per repository, so consumers can put messages sent out of order back
+ * in order and notice gaps. The next free number of every repository is kept in
+ * plugin.fedmsg.sequence.dir/<repoId>.seq, by default under ${stash.home}/shared/data/fedmsg/sequences, which
+ * all nodes of a cluster share. The node that owns the repository takes plugin.fedmsg.sequence.block numbers
+ * from the file at a time, under a file lock, and hands them out from memory; after a crash the numbers continue
+ * after that block, which shows up as a gap of less than a block. A clean shutdown gives the unused part back.
+ *
+ * When the live nodes change the block is dropped, so the new owner of a repository continues after whatever
+ * the previous one took and the numbers keep going up across a handoff. A node publishing a repository it
+ * doesn't own, because the owner couldn't be reached, takes its numbers from the file one at a time.
+ */
+public class SequenceAllocator implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final File directory;
+    private final File legacyDirectory;
+    private final long block;
+    private final ClusterShardRouter shardRouter;
+    private final ConcurrentMap<Integer, Counter> counters = new ConcurrentHashMap<Integer, Counter>();
+
+    public SequenceAllocator(ApplicationPropertiesService appService, ClusterShardRouter shardRouter) {
+        this.shardRouter = shardRouter;
+        PluginProperties properties = new PluginProperties(appService);
+        String configured = properties.getString("plugin.fedmsg.sequence.dir", null);
+        directory = configured != null ? new File(configured) : new File(properties.getHomeDir(), "shared/data/fedmsg/sequences");
+        legacyDirectory = new File(properties.getHomeDir(), "data/fedmsg/sequences");
+        block = Math.max(1, properties.getLong("plugin.fedmsg.sequence.block", 1000));
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.error("Failed to create the sequence directory {}", directory);
+        }
+    }
+
+    public long next(int repositoryId) {
+        Counter counter = counters.get(repositoryId);
+        if (counter == null) {
+            Counter created = new Counter(new File(directory, repositoryId + ".seq"), new File(legacyDirectory, repositoryId + ".seq"));
+            counter = counters.putIfAbsent(repositoryId, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        if (shardRouter.isLocallyOwned(repositoryId)) {
+            return counter.next(shardRouter.getEpoch(), block);
+        }
+        return counter.nextUnowned();
+    }
+
+    @Override
+    public void destroy() {
+        for (Counter counter : counters.values()) {
+            counter.release();
+        }
+    }
+
+    private static class Counter {
+        private final File file;
+        private final File legacyFile;
+        private long next = 1;
+        private long ceiling;
+        private long epoch = -1;
+
+        Counter(File file, File legacyFile) {
+            this.file = file;
+            this.legacyFile = legacyFile;
+        }
+
+        /*
+        * The next number of the block taken in this epoch, taking a new block when it ran out.
+        */
+        synchronized long next(long epoch, long block) {
+            if (epoch != this.epoch || next >= ceiling) {
+                long start = reserve(block);
+                next = start < 0 ? next : start;
+                ceiling = next + block;
+                this.epoch = epoch;
+            }
+            return next++;
+        }
+
+        synchronized long nextUnowned() {
+            epoch = -1;
+            long start = reserve(1);
+            if (start < 0) {
+                return next++;
+            }
+            next = start + 1;
+            return start;
+        }
+
+        /*
+        * Gives the rest of the block back, unless another node has taken numbers after it since.
+        */
+        synchronized void release() {
+            if (epoch < 0 || next >= ceiling) {
+                return;
+            }
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    FileLock lock = raf.getChannel().lock();
+                    try {
+                        if (raf.length() == 8 && raf.readLong() == ceiling) {
+                            raf.seek(0);
+                            raf.writeLong(next);
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    raf.close();
+                }
+                epoch = -1;
+            } catch (IOException e) {
+                LOGGER.error("Failed to store the sequence {}", file, e);
+            }
+        }
+
+        /*
+        * Takes count numbers from the file and returns the first, or -1 if the file can't be used, in which
+        * case the caller goes on counting in memory.
+        */
+        private long reserve(long count) {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    FileLock lock = raf.getChannel().lock();
+                    try {
+                        long start = raf.length() == 8 ? raf.readLong() : Math.max(next, readLegacy());
+                        raf.seek(0);
+                        raf.writeLong(start + count);
+                        raf.setLength(8);
+                        return start;
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to reserve sequence numbers in {}", file, e);
+                return -1;
+            }
+        }
+
+        /*
+        * Where a node counted before the numbers moved to the shared home.
+        */
+        private long readLegacy() {
+            if (legacyFile.length() != 8) {
+                return 1;
+            }
+            try {
+                RandomAccessFile raf = new RandomAccessFile(legacyFile, "r");
+                try {
+                    return raf.readLong();
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to read the sequence {}, starting from 1", legacyFile, e);
+                return 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers published messages to the sinks listed in plugin.fedmsg.sinks (relay, webhook, file; default
+ * relay). Publishers only queue their messages; every sink has its own queue and sender threads, which drain
+ * it in batches of up to plugin.fedmsg.transport.batchSize messages, waiting at most
+ * plugin.fedmsg.transport.flushMillis for a batch to fill.
+ *
+ * The first sink listed is the primary one: publishers wait while its queue is full, so a primary that can't
+ * keep up slows them down instead of filling the heap, and the messages it delivers are recorded in the
+ * published commit index, along with the tip of their ref once all of its messages are delivered (see
+ * PendingTip). Other sinks never hold publishers up, a full queue drops their copy.
+ *
+ * Messages get their repository's next sequence number when they are queued. With a single sender per sink
+ * they also leave in that order; plugin.fedmsg.transport.senders above 1 gives the relay more senders, each
+ * with its own connection, and batches then overtake each other, so consumers have to order by the sequence
+ * number.
+ *
+ * A batch that fails to deliver is retried once after its sink is closed and reopened. What became of every
+ * message on every sink is recorded in the MessageAuditLog.
+ *
+ * Until the primary sink is done with them, queued messages count against the in-flight payload budget of the
+ * HeapPressureGuard.
+ */
+public class SinkDispatcher implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final PublishedCommitIndex publishedIndex;
+    private final SequenceAllocator sequences;
+    private final MessageAuditLog auditLog;
+    private final HeapPressureGuard heapGuard;
+    private final SlowEventRecorder recorder;
+    private final int batchSize;
+    private final long flushMillis;
+    private final List<Channel> channels = new ArrayList<Channel>();
+    private volatile boolean running = true;
+
+    public SinkDispatcher(ApplicationPropertiesService appService, PublishedCommitIndex publishedIndex, PayloadCodecs codecs,
+                          SequenceAllocator sequences, MessageAuditLog auditLog, HeapPressureGuard heapGuard,
+                          SlowEventRecorder recorder) {
+        this(appService, publishedIndex, sequences, auditLog, heapGuard, recorder, createSinks(new PluginProperties(appService), codecs));
+    }
+
+    /*
+    * Delivers to the given sinks by channel name, the first channel being the primary one.
+    */
+    SinkDispatcher(ApplicationPropertiesService appService, PublishedCommitIndex publishedIndex, SequenceAllocator sequences,
+                   MessageAuditLog auditLog, HeapPressureGuard heapGuard, SlowEventRecorder recorder,
+                   Map<String, List<MessageSink>> sinks) {
+        this.recorder = recorder;
+        this.publishedIndex = publishedIndex;
+        this.heapGuard = heapGuard;
+        this.auditLog = auditLog;
+        this.sequences = sequences;
+        PluginProperties properties = new PluginProperties(appService);
+        batchSize = Math.max(1, properties.getInt("plugin.fedmsg.transport.batchSize", 100));
+        flushMillis = properties.getLong("plugin.fedmsg.transport.flushMillis", 20);
+        int queueSize = properties.getInt("plugin.fedmsg.transport.queueSize", 10000);
+
+        for (Map.Entry<String, List<MessageSink>> entry : sinks.entrySet()) {
+            channels.add(new Channel(entry.getKey(), entry.getValue(), queueSize, channels.isEmpty()));
+        }
+    }
+
+    /*
+    * Numbers and queues messages in the given order. Blocks while the primary sink's queue is full or the
+    * messages would take the payloads in flight over their budget. Messages left over when the publisher is
+    * interrupted are dropped, giving their bytes back and failing their tips.
+    */
+    public void publish(List<Message> messages) {
+        long bytes = 0;
+        for (Message message : messages) {
+            bytes += message.getEstimatedBytes();
+        }
+        boolean acquired = false;
+        int queued = 0;
+        try {
+            heapGuard.acquire(bytes);
+            acquired = true;
+            EventTrace trace = recorder.current();
+            for (Message message : messages) {
+                message.setSequence(sequences.next(message.getRepositoryId()));
+                message.setTrace(trace);
+                // only the primary channel blocks, and it comes first
+                for (Channel channel : channels) {
+                    channel.offer(message);
+                }
+                queued++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Interrupted while queueing messages for the sinks, dropping {} of them.", messages.size() - queued);
+            for (Message message : messages.subList(queued, messages.size())) {
+                channels.get(0).drop(message, acquired);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        for (Channel channel : channels) {
+            channel.stop();
+        }
+    }
+
+    private static Map<String, List<MessageSink>> createSinks(PluginProperties properties, PayloadCodecs codecs) {
+        Map<String, List<MessageSink>> sinks = new LinkedHashMap<String, List<MessageSink>>();
+        for (String name : properties.getString("plugin.fedmsg.sinks", "relay").split(",")) {
+            List<MessageSink> created = createSinks(name.trim(), properties, codecs);
+            if (!created.isEmpty()) {
+                sinks.put(name.trim(), created);
+            }
+        }
+        if (sinks.isEmpty()) {
+            LOGGER.error("No usable sink in plugin.fedmsg.sinks, publishing to the relay.");
+            sinks.put("relay", createSinks("relay", properties, codecs));
+        }
+        return sinks;
+    }
+
+    /*
+    * One sink instance per sender thread. Only the relay can have more than one sender; a webhook or file
+    * delivered by several threads would lose its order for nothing.
+    */
+    private static List<MessageSink> createSinks(String name, PluginProperties properties, PayloadCodecs codecs) {
+        List<MessageSink> sinks = new ArrayList<MessageSink>();
+        if ("relay".equals(name)) {
+            String endpoint = properties.getString("plugin.fedmsg.events.relay.endpoint", "tcp://bit01.us.cray.com:9941");
+            int senders = Math.max(1, properties.getInt("plugin.fedmsg.transport.senders", 1));
+            for (int i = 0; i < senders; i++) {
+                sinks.add(new FedmsgRelaySink(endpoint, codecs));
+            }
+        } else if ("webhook".equals(name)) {
+            String url = properties.getString("plugin.fedmsg.sink.webhook.url", "");
+            try {
+                sinks.add(new WebhookSink(new URL(url), codecs.forName(properties.getString("plugin.fedmsg.sink.webhook.codec", "json")),
+                        properties.getInt("plugin.fedmsg.sink.webhook.timeoutMillis", 10000)));
+            } catch (MalformedURLException e) {
+                LOGGER.error("Ignoring the webhook sink, plugin.fedmsg.sink.webhook.url is not a url: {}", url);
+            }
+        } else if ("file".equals(name)) {
+            sinks.add(new FileSink(new File(properties.getString("plugin.fedmsg.sink.file.path",
+                    new File(properties.getHomeDir(), "data/fedmsg/messages.log").getPath()))));
+        } else if (!name.isEmpty()) {
+            LOGGER.error("Ignoring unknown sink {}", name);
+        }
+        return sinks;
+    }
+
+    private class Channel {
+        private final String name;
+        private final boolean primary;
+        private final BlockingQueue<Message> queue;
+        private final List<Thread> senders = new ArrayList<Thread>();
+        private long dropped;
+
+        Channel(String name, List<MessageSink> sinks, int queueSize, boolean primary) {
+            this.name = name;
+            this.primary = primary;
+            queue = new LinkedBlockingQueue<Message>(queueSize);
+            for (int i = 0; i < sinks.size(); i++) {
+                final MessageSink sink = sinks.get(i);
+                Thread sender = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(sink);
+                    }
+                }, "fedmsg-" + name + "-sender" + (sinks.size() == 1 ? "" : "-" + i));
+                sender.setDaemon(true);
+                sender.start();
+                senders.add(sender);
+            }
+        }
+
+        void offer(Message message) throws InterruptedException {
+            if (primary) {
+                if (!queue.offer(message, 30, TimeUnit.SECONDS)) {
+                    LOGGER.error("The {} queue has been full for 30 seconds, dropping message for topic {}.", name, message.getTopic());
+                    drop(message, true);
+                }
+            } else if (!queue.offer(message)) {
+                auditLog.record(message, name, MessageAuditLog.Entry.DROPPED);
+                synchronized (this) {
+                    // log the first drop of every thousand so a stuck sink doesn't flood the log
+                    if (dropped++ % 1000 == 0) {
+                        LOGGER.error("The {} queue is full, {} messages dropped so far.", name, dropped);
+                    }
+                }
+            }
+        }
+
+        /*
+        * Records a message the primary sink never got, releasing its bytes if they were acquired.
+        */
+        void drop(Message message, boolean acquired) {
+            auditLog.record(message, name, MessageAuditLog.Entry.DROPPED);
+            if (acquired) {
+                heapGuard.release(message.getEstimatedBytes());
+            }
+            if (message.getPendingTip() != null) {
+                message.getPendingTip().failed();
+            }
+        }
+
+        void stop() {
+            for (Thread sender : senders) {
+                sender.interrupt();
+            }
+        }
+
+        private void send(MessageSink sink) {
+            List<Message> batch = new ArrayList<Message>(batchSize);
+            while (running) {
+                try {
+                    Message first = queue.poll(1, TimeUnit.MINUTES);
+                    if (first == null) {
+                        // idle, don't keep a connection open for nothing
+                        sink.close();
+                        continue;
+                    }
+                    batch.add(first);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushMillis);
+                    while (batch.size() < batchSize) {
+                        long remaining = deadline - System.nanoTime();
+                        Message next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                    flush(sink, batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    // shutting down half way through filling a batch
+                    complete(batch, 0);
+                    break;
+                } catch (Exception e) {
+                    LOGGER.error("Unexpected exception in the {} sender", name, e);
+                } finally {
+                    batch.clear();
+                }
+            }
+            sink.close();
+        }
+
+        /*
+        * Delivers the batch, retrying once. The batch is completed even if the sink throws, whatever it had
+        * delivered by then counting as delivered.
+        */
+        private void flush(MessageSink sink, List<Message> batch) {
+            LOGGER.debug("Delivering a batch of {} messages to {}.", batch.size(), name);
+            int delivered = 0;
+            try {
+                delivered = sink.deliver(batch);
+                if (delivered < batch.size()) {
+                    LOGGER.info("Reopening {} after a failed delivery.", name);
+                    sink.close();
+                    delivered += sink.deliver(batch.subList(delivered, batch.size()));
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Failed to deliver a batch to {}", name, e);
+            } finally {
+                complete(batch, delivered);
+            }
+        }
+
+        /*
+        * Records what became of a batch: the delivered part is published, the rest dropped.
+        */
+        private void complete(List<Message> batch, int delivered) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (delivered < batch.size()) {
+                LOGGER.error("Dropped {} messages that could not be delivered to {}.", batch.size() - delivered, name);
+            }
+            auditLog.record(batch, name, delivered);
+            if (primary) {
+                long bytes = 0;
+                for (Message message : batch) {
+                    bytes += message.getEstimatedBytes();
+                }
+                heapGuard.release(bytes);
+                for (Message message : batch.subList(0, delivered)) {
+                    if (message.getCommitId() != null) {
+                        publishedIndex.markPublished(message.getRepositoryId(), message.getCommitId());
+                    }
+                    if (message.getPendingTip() != null) {
+                        message.getPendingTip().delivered();
+                    }
+                }
+                for (Message message : batch.subList(delivered, batch.size())) {
+                    if (message.getPendingTip() != null) {
+                        message.getPendingTip().failed();
+                    }
+                }
+            }
+        }
+    }
+}
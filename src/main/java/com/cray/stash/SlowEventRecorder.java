@@ -0,0 +1,101 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Always-on flight recorder for event processing. Every event is traced on the thread that processes it, and
+ * the plugin.fedmsg.slowEvents.size slowest traces since startup are kept with their per stage breakdown, so
+ * tail latency can be diagnosed from /plugins/servlet/fedmsg/admin?view=slow without DEBUG logging. Traces
+ * slower than plugin.fedmsg.slowEvents.logMillis are also logged as they finish.
+ *
+ * Tracing costs two System.nanoTime calls per stage, which is nothing next to the stash calls being timed.
+ */
+public class SlowEventRecorder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final ThreadLocal<EventTrace> current = new ThreadLocal<EventTrace>();
+    private final PriorityQueue<EventTrace> slowest;
+    private final int size;
+    private final long logMicros;
+
+    public SlowEventRecorder(ApplicationPropertiesService appService) {
+        PluginProperties properties = new PluginProperties(appService);
+        size = Math.max(1, properties.getInt("plugin.fedmsg.slowEvents.size", 50));
+        logMicros = properties.getLong("plugin.fedmsg.slowEvents.logMillis", 30000) * 1000;
+        slowest = new PriorityQueue<EventTrace>(size + 1, new Comparator<EventTrace>() {
+            @Override
+            public int compare(EventTrace a, EventTrace b) {
+                return a.getTotalMicros() < b.getTotalMicros() ? -1 : (a.getTotalMicros() == b.getTotalMicros() ? 0 : 1);
+            }
+        });
+    }
+
+    /*
+    * The trace of the event the current thread is processing, or null.
+    */
+    public EventTrace current() {
+        return current.get();
+    }
+
+    public void begin(Repository repo, int refChanges) {
+        current.set(new EventTrace(repo.getProject().getKey() + "/" + repo.getSlug(), refChanges));
+    }
+
+    /*
+    * Adds the time since startNanos (a System.nanoTime() taken before the call) to a stage of the current
+    * event. Calls outside of an event, e.g. from a backfill, aren't recorded.
+    */
+    public void stage(String stage, long startNanos) {
+        EventTrace trace = current.get();
+        if (trace != null) {
+            trace.addStage(stage, System.nanoTime() - startNanos);
+        }
+    }
+
+    public void commits(int count) {
+        EventTrace trace = current.get();
+        if (trace != null) {
+            trace.addCommits(count);
+        }
+    }
+
+    public void end() {
+        EventTrace trace = current.get();
+        current.remove();
+        if (trace == null) {
+            return;
+        }
+
+        trace.finish();
+        if (trace.getTotalMicros() >= logMicros) {
+            LOGGER.info("Slow event: {}", trace);
+        }
+        synchronized (slowest) {
+            if (slowest.size() < size || slowest.peek().getTotalMicros() < trace.getTotalMicros()) {
+                slowest.add(trace);
+                if (slowest.size() > size) {
+                    slowest.poll();
+                }
+            }
+        }
+    }
+
+    /*
+    * Copies of the recorded traces, slowest first.
+    */
+    public List<EventTrace> getSlowest() {
+        List<EventTrace> traces = new ArrayList<EventTrace>();
+        synchronized (slowest) {
+            for (EventTrace trace : slowest) {
+                traces.add(trace.snapshot());
+            }
+        }
+        Collections.sort(traces, Collections.reverseOrder(slowest.comparator()));
+        return traces;
+    }
+}
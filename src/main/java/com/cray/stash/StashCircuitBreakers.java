@@ -0,0 +1,52 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The circuit breakers around the stash calls the pipeline makes. They share one configuration:
+ * plugin.fedmsg.breaker.latencyMillis (a call slower than this counts as bad), plugin.fedmsg.breaker.failures
+ * (bad calls in a row before a breaker opens) and plugin.fedmsg.breaker.openMillis (how long it stays open).
+ */
+public class StashCircuitBreakers {
+
+    private final CircuitBreaker branches;
+    private final CircuitBreaker commitsBetween;
+    private final CircuitBreaker changesets;
+    private final CircuitBreaker cloneLinks;
+
+    public StashCircuitBreakers(ApplicationPropertiesService appService) {
+        PluginProperties properties = new PluginProperties(appService);
+        long latencyMillis = properties.getLong("plugin.fedmsg.breaker.latencyMillis", 5000);
+        int failures = properties.getInt("plugin.fedmsg.breaker.failures", 5);
+        long openMillis = properties.getLong("plugin.fedmsg.breaker.openMillis", 30000);
+
+        branches = new CircuitBreaker("getBranches", latencyMillis, failures, openMillis);
+        commitsBetween = new CircuitBreaker("getCommitsBetween", latencyMillis, failures, openMillis);
+        changesets = new CircuitBreaker("getChangesets", latencyMillis, failures, openMillis);
+        cloneLinks = new CircuitBreaker("getCloneLinks", latencyMillis, failures, openMillis);
+    }
+
+    public CircuitBreaker getBranches() {return branches;}
+
+    public CircuitBreaker getCommitsBetween() {return commitsBetween;}
+
+    public CircuitBreaker getChangesets() {return changesets;}
+
+    public CircuitBreaker getCloneLinks() {return cloneLinks;}
+
+    public List<CircuitBreaker> getAll() {
+        return Arrays.asList(branches, commitsBetween, changesets, cloneLinks);
+    }
+
+    public boolean allClosed() {
+        for (CircuitBreaker breaker : getAll()) {
+            if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
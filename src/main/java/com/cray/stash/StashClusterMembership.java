@@ -0,0 +1,55 @@
+package com.cray.stash;
+
+import com.atlassian.stash.cluster.ClusterInformation;
+import com.atlassian.stash.cluster.ClusterNode;
+import com.atlassian.stash.cluster.ClusterService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Cluster membership as reported by stash. A stash server that isn't part of a Data Center cluster is a cluster
+ * of one.
+ */
+public class StashClusterMembership implements NodeMembership {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private static final String STANDALONE = "standalone";
+    private ClusterService clusterService;
+
+    public StashClusterMembership(ClusterService clusterService) {
+        this.clusterService = clusterService;
+    }
+
+    @Override
+    public String getLocalNodeId() {
+        try {
+            if (clusterService.isClustered()) {
+                return clusterService.getInformation().getLocalNode().getId();
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to look up the local cluster node", e);
+        }
+        return STANDALONE;
+    }
+
+    @Override
+    public Set<String> getLiveNodeIds() {
+        try {
+            if (clusterService.isClustered()) {
+                ClusterInformation information = clusterService.getInformation();
+                Set<String> nodeIds = new HashSet<String>();
+                for (ClusterNode node : information.getNodes()) {
+                    nodeIds.add(node.getId());
+                }
+                return nodeIds;
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to look up the cluster nodes", e);
+        }
+        return Collections.singleton(getLocalNodeId());
+    }
+}
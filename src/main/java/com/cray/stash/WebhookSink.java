@@ -0,0 +1,98 @@
+package com.cray.stash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * POSTs each batch to a webhook as one request, {"messages": [{"topic", "i", "timestamp", "msg"}, ...]},
+ * encoded by the configured payload codec and labelled with its content type and the schema version. The
+ * response is always read to the end so the JVM keeps the connection alive for the next batch.
+ */
+public class WebhookSink implements MessageSink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("com.cray.stash.logger");
+    private final URL url;
+    private final PayloadCodec codec;
+    private final int timeoutMillis;
+
+    public WebhookSink(URL url, PayloadCodec codec, int timeoutMillis) {
+        this.url = url;
+        this.codec = codec;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public String getName() {return "webhook";}
+
+    @Override
+    public int deliver(List<Message> batch) {
+        List<Map<String, Object>> messages = new ArrayList<Map<String, Object>>(batch.size());
+        for (Message message : batch) {
+            messages.add(message.toEnvelope());
+        }
+        Map<String, Object> body = new HashMap<String, Object>(2);
+        body.put("messages", messages);
+
+        HttpURLConnection connection = null;
+        try {
+            byte[] bytes = codec.encode(body);
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setFixedLengthStreamingMode(bytes.length);
+            connection.setRequestProperty("Content-Type", codec.getContentType());
+            connection.setRequestProperty("X-Fedmsg-Schema-Version", Integer.toString(PayloadCodecs.SCHEMA_VERSION));
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+
+            int status = connection.getResponseCode();
+            drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            if (status / 100 != 2) {
+                LOGGER.error("The webhook {} answered {} to a batch of {} messages.", new Object[]{url, status, batch.size()});
+                return 0;
+            }
+            return batch.size();
+        } catch (IOException e) {
+            LOGGER.error("Failed to post a batch to the webhook {}", url, e);
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        // HttpURLConnection pools the kept alive connections itself
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.cray.stash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackfillJobTest {
+
+    @Test
+    public void advanceMovesTheCursorAndCountsPublishedCommits() {
+        BackfillJob job = new BackfillJob("1", "KEY", "repo", "refs/heads/master", null, null, 0, true);
+        job.advance(100, 100);
+        job.advance(150, 50);
+
+        assertEquals(150, job.getCursor());
+        assertEquals(150, job.getPublished());
+        assertEquals(BackfillJob.State.QUEUED, job.getState());
+    }
+
+    @Test
+    public void aResubmittedJobStartsAtItsCursor() {
+        BackfillJob job = new BackfillJob("2", "KEY", "repo", "refs/heads/master", "abc", "def", 300, false);
+
+        assertEquals(300, job.getCursor());
+        assertEquals(0, job.getPublished());
+        assertFalse(job.isFollowOwnership());
+    }
+
+    @Test
+    public void failingFinishesTheJobWithItsError() {
+        BackfillJob job = new BackfillJob("3", "KEY", "repo", "refs/heads/master", null, null, 0, true);
+        job.setState(BackfillJob.State.RUNNING);
+        assertFalse(job.isFinished());
+
+        job.fail("Repository KEY/repo does not exist.");
+
+        assertTrue(job.isFinished());
+        assertEquals(BackfillJob.State.FAILED, job.getState());
+        assertEquals("Repository KEY/repo does not exist.", job.getError());
+    }
+
+    @Test
+    public void pausedJobsAreNotFinished() {
+        BackfillJob job = new BackfillJob("4", "KEY", "repo", "refs/heads/master", null, null, 0, true);
+        job.setState(BackfillJob.State.PAUSED);
+        assertFalse(job.isFinished());
+        job.setState(BackfillJob.State.CANCELLED);
+        assertTrue(job.isFinished());
+    }
+}
@@ -0,0 +1,162 @@
+package com.cray.stash;
+
+import com.atlassian.stash.commit.Commit;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Branch;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryBranchesRequest;
+import com.atlassian.stash.repository.SimpleRefChange;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BulkEventPlannerTest {
+
+    private static final String NULL_HASH = "0000000000000000000000000000000000000000";
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final CommitGraph graph = new CommitGraph();
+    private final RefService refService = mock(RefService.class);
+    private final PublishedCommitIndex publishedIndex = mock(PublishedCommitIndex.class);
+    private final Repository repo = repository();
+    private AdaptivePageSizes pageSizes;
+    private BulkEventPlanner planner;
+
+    @Before
+    public void setUp() {
+        // pages of two commits, so the walk takes several requests
+        ApplicationPropertiesService appService = TestProperties.create(home.getRoot(), "plugin.fedmsg.bulk.planRefs", "3",
+                "plugin.fedmsg.pageLimit", "2", "plugin.fedmsg.pageLimit.min", "2", "plugin.fedmsg.pageLimit.max", "2");
+        pageSizes = new AdaptivePageSizes(appService);
+        TestSecurity security = new TestSecurity();
+        StashCircuitBreakers breakers = new StashCircuitBreakers(appService);
+        SlowEventRecorder recorder = new SlowEventRecorder(appService);
+        planner = new BulkEventPlanner(refService, graph.commitService(), security.service(), appService, breakers,
+                publishedIndex, recorder, new ForkOrigins(refService, security.service(), appService, breakers, recorder), pageSizes);
+
+        graph.add("base", "base");
+        graph.add("release1", "release work", "base");
+        graph.branch("refs/heads/release", "release1");
+        graph.add("a1", "one", "base");
+        graph.add("a2", "two", "a1");
+        graph.add("b1", "three", "a2");
+        graph.add("c1", "four", "release1");
+    }
+
+    @After
+    public void tearDown() {
+        pageSizes.destroy();
+    }
+
+    @Test
+    public void onlyEventsWithEnoughRefChangesArePlanned() {
+        assertFalse(planner.shouldPlan(2));
+        assertTrue(planner.shouldPlan(3));
+    }
+
+    @Test
+    public void aCommitGoesToTheFirstRefItIsReachableFrom() {
+        branches("refs/heads/release", "refs/heads/a", "refs/heads/b", "refs/heads/c");
+        RefChange a = change("refs/heads/a", "base", "a2");
+        RefChange b = change("refs/heads/b", NULL_HASH, "b1");
+        RefChange c = change("refs/heads/c", NULL_HASH, "c1");
+
+        Map<RefChange, List<Commit>> planned = planner.plan(repo, Arrays.asList(a, b, c));
+
+        assertEquals(Arrays.asList("a2", "a1"), ids(planned.get(a)));
+        assertEquals(Arrays.asList("b1"), ids(planned.get(b)));
+        // release1 is on a branch the push didn't touch
+        assertEquals(Arrays.asList("c1"), ids(planned.get(c)));
+
+        Map<RefChange, List<Commit>> reversed = planner.plan(repo, Arrays.asList(c, b, a));
+
+        assertEquals(Arrays.asList("b1", "a2", "a1"), ids(reversed.get(b)));
+        assertTrue(reversed.get(a).isEmpty());
+    }
+
+    @Test
+    public void publishedCommitsAreSkipped() {
+        branches("refs/heads/release", "refs/heads/a", "refs/heads/b");
+        when(publishedIndex.isPublished(repo, "a1")).thenReturn(true);
+        RefChange a = change("refs/heads/a", "base", "a2");
+        RefChange b = change("refs/heads/b", NULL_HASH, "b1");
+
+        Map<RefChange, List<Commit>> planned = planner.plan(repo, Arrays.asList(a, b));
+
+        assertEquals(Arrays.asList("a2"), ids(planned.get(a)));
+        assertEquals(Arrays.asList("b1"), ids(planned.get(b)));
+    }
+
+    @Test
+    public void newBranchesAreNotPlannedWithoutTheOtherBranches() {
+        when(refService.getBranches(any(RepositoryBranchesRequest.class), any(PageRequest.class))).thenThrow(new IllegalStateException("slow"));
+        RefChange a = change("refs/heads/a", "base", "a2");
+        RefChange b = change("refs/heads/b", NULL_HASH, "b1");
+
+        assertNull(planner.plan(repo, Arrays.asList(a, b)));
+
+        // updates alone can still be walked from their old tips
+        Map<RefChange, List<Commit>> planned = planner.plan(repo, Arrays.asList(change("refs/heads/b", "a1", "b1")));
+        assertEquals(Arrays.asList("b1", "a2"), ids(planned.values().iterator().next()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void branches(String... ids) {
+        List<Branch> values = new ArrayList<Branch>();
+        for (String id : ids) {
+            Branch branch = mock(Branch.class);
+            when(branch.getId()).thenReturn(id);
+            values.add(branch);
+        }
+        Page<Branch> page = mock(Page.class);
+        when(page.getValues()).thenReturn(values);
+        when(page.getIsLastPage()).thenReturn(true);
+        when(refService.getBranches(any(RepositoryBranchesRequest.class), any(PageRequest.class))).thenReturn(page);
+    }
+
+    private static List<String> ids(List<Commit> commits) {
+        List<String> ids = new ArrayList<String>();
+        for (Commit commit : commits) {
+            ids.add(commit.getId());
+        }
+        return ids;
+    }
+
+    private static RefChange change(String refId, String fromHash, String toHash) {
+        return new SimpleRefChange.Builder().refId(refId).fromHash(fromHash).toHash(toHash)
+                .type(fromHash.equals(NULL_HASH) ? RefChangeType.ADD : RefChangeType.UPDATE).build();
+    }
+
+    private static Repository repository() {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("KEY");
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        when(repo.getSlug()).thenReturn("repo");
+        when(repo.getProject()).thenReturn(project);
+        return repo;
+    }
+}
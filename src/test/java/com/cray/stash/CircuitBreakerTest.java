@@ -0,0 +1,102 @@
+package com.cray.stash;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    @Test
+    public void opensAfterEnoughBadCallsInARow() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1000, 3, 60000);
+        fail(breaker);
+        fail(breaker);
+        // a good call starts the count over
+        succeed(breaker);
+        fail(breaker);
+        fail(breaker);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        fail(breaker);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getTrips());
+    }
+
+    @Test
+    public void aSlowCallCountsAsBad() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1000, 1, 60000);
+        assertTrue(breaker.allowRequest());
+
+        breaker.record(System.nanoTime() - TimeUnit.SECONDS.toNanos(2), true);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void aGoodTrialClosesTheBreaker() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1000, 1, 20);
+        fail(breaker);
+        Thread.sleep(40);
+
+        // one trial at a time
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        breaker.record(System.nanoTime(), true);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void aBadTrialOpensTheBreakerAgain() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1000, 1, 20);
+        fail(breaker);
+        Thread.sleep(40);
+
+        assertTrue(breaker.allowRequest());
+        breaker.record(System.nanoTime(), false);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(2, breaker.getTrips());
+    }
+
+    @Test
+    public void theStashBreakersShareTheirConfiguration() {
+        StashCircuitBreakers breakers = new StashCircuitBreakers(TestProperties.create(home.getRoot(),
+                "plugin.fedmsg.breaker.failures", "2", "plugin.fedmsg.breaker.openMillis", "60000"));
+        assertEquals(4, breakers.getAll().size());
+        assertTrue(breakers.allClosed());
+
+        fail(breakers.getChangesets());
+        assertTrue(breakers.allClosed());
+        fail(breakers.getChangesets());
+
+        assertFalse(breakers.allClosed());
+        assertEquals(CircuitBreaker.State.CLOSED, breakers.getBranches().getState());
+        assertTrue(breakers.getCommitsBetween().allowRequest());
+        assertFalse(breakers.getChangesets().allowRequest());
+    }
+
+    private static void fail(CircuitBreaker breaker) {
+        assertTrue(breaker.allowRequest());
+        breaker.record(System.nanoTime(), false);
+    }
+
+    private static void succeed(CircuitBreaker breaker) {
+        assertTrue(breaker.allowRequest());
+        breaker.record(System.nanoTime(), true);
+    }
+}
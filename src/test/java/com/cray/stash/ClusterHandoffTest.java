@@ -0,0 +1,157 @@
+package com.cray.stash;
+
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.repository.SimpleRefChange;
+import com.atlassian.stash.user.SecurityService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ClusterHandoffTest {
+
+    @Rule
+    public TemporaryFolder shared = new TemporaryFolder();
+
+    private final Set<String> liveNodes = new HashSet<String>();
+    private final LocalNodeMembership nodeA = new LocalNodeMembership("a", liveNodes);
+    private final LocalNodeMembership nodeB = new LocalNodeMembership("b", liveNodes);
+    private final LocalNodeMembership nodeC = new LocalNodeMembership("c", liveNodes);
+    private final ClusterShardRouter routerA = new ClusterShardRouter(nodeA, 64, 0);
+    private final ClusterShardRouter routerB = new ClusterShardRouter(nodeB, 64, 0);
+    private final ClusterShardRouter routerC = new ClusterShardRouter(nodeC, 64, 0);
+    private RepositoryService repoService;
+    private SecurityService security;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        repoService = mock(RepositoryService.class);
+        when(repoService.getById(anyInt())).thenAnswer(new Answer<Repository>() {
+            @Override
+            public Repository answer(InvocationOnMock invocation) {
+                return repository((Integer) invocation.getArguments()[0]);
+            }
+        });
+        security = new TestSecurity().service();
+    }
+
+    @Test
+    public void refChangesReachTheOwnerInOrder() {
+        ClusterHandoff handoffA = handoff(routerA);
+        ClusterHandoff handoffB = handoff(routerB);
+        Recorder receivedA = new Recorder();
+        Recorder receivedB = new Recorder();
+        handoffA.setReceiver(receivedA);
+        handoffB.setReceiver(receivedB);
+
+        Repository repo = repository(ownedBy(routerB));
+        assertTrue(handoffA.handOff("b", repo, Arrays.asList(refChange("refs/heads/master", "1", "2")), 2));
+        assertTrue(handoffA.handOff("b", repo, Arrays.asList(refChange("refs/heads/master", "2", "3"),
+                refChange("refs/heads/feature", "4", "5")), 2));
+
+        handoffA.poll();
+        assertTrue(receivedA.refChanges.isEmpty());
+
+        handoffB.poll();
+        assertEquals(Arrays.asList(repo.getId(), repo.getId()), receivedB.repositories);
+        assertEquals(Arrays.asList("refs/heads/master:1..2", "refs/heads/master:2..3", "refs/heads/feature:4..5"),
+                receivedB.refChanges);
+        assertEquals(Arrays.asList(2, 2), receivedB.sizes);
+
+        // delivered once
+        handoffB.poll();
+        assertEquals(3, receivedB.refChanges.size());
+    }
+
+    @Test
+    public void theInboxOfANodeThatLeftIsAdoptedByTheNewOwners() {
+        ClusterHandoff handoffA = handoff(routerA);
+        ClusterHandoff handoffB = handoff(routerB);
+        ClusterHandoff handoffC = handoff(routerC);
+        Recorder receivedA = new Recorder();
+        Recorder receivedB = new Recorder();
+        handoffA.setReceiver(receivedA);
+        handoffB.setReceiver(receivedB);
+
+        List<Integer> orphaned = new ArrayList<Integer>();
+        for (int id = 1; orphaned.size() < 20; id++) {
+            if (routerC.isLocallyOwned(id)) {
+                orphaned.add(id);
+                assertTrue(handoffA.handOff("c", repository(id), Arrays.asList(refChange("refs/heads/master", "1", "2")), 1));
+            }
+        }
+        nodeC.leave();
+        handoffC.destroy();
+
+        handoffA.poll();
+        handoffB.poll();
+        assertEquals(orphaned.size(), receivedA.repositories.size() + receivedB.repositories.size());
+        for (int id : receivedA.repositories) {
+            assertTrue(routerA.isLocallyOwned(id));
+        }
+        for (int id : receivedB.repositories) {
+            assertTrue(routerB.isLocallyOwned(id));
+        }
+    }
+
+    private ClusterHandoff handoff(ClusterShardRouter router) {
+        return new ClusterHandoff(repoService, security, TestProperties.create(shared.getRoot(),
+                "plugin.fedmsg.cluster.handoffPollMillis", "0"), router);
+    }
+
+    private static int ownedBy(ClusterShardRouter router) {
+        int id = 1;
+        while (!router.isLocallyOwned(id)) {
+            id++;
+        }
+        return id;
+    }
+
+    private static Repository repository(int id) {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("KEY");
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(id);
+        when(repo.getSlug()).thenReturn("repo-" + id);
+        when(repo.getProject()).thenReturn(project);
+        return repo;
+    }
+
+    private static RefChange refChange(String refId, String fromHash, String toHash) {
+        return new SimpleRefChange.Builder().refId(refId).fromHash(fromHash).toHash(toHash).type(RefChangeType.UPDATE).build();
+    }
+
+    private static class Recorder implements ClusterHandoff.Receiver {
+        private final List<Integer> repositories = new ArrayList<Integer>();
+        private final List<String> refChanges = new ArrayList<String>();
+        private final List<Integer> sizes = new ArrayList<Integer>();
+
+        @Override
+        public void receive(Repository repo, List<RefChange> changes, int refChangesInEvent) {
+            repositories.add(repo.getId());
+            sizes.add(refChangesInEvent);
+            for (RefChange refChange : changes) {
+                refChanges.add(refChange.getRefId() + ":" + refChange.getFromHash() + ".." + refChange.getToHash());
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.cray.stash;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterShardRouterTest {
+
+    private static final int REPOSITORIES = 3000;
+
+    private final Set<String> liveNodes = new HashSet<String>();
+    private final LocalNodeMembership nodeA = new LocalNodeMembership("a", liveNodes);
+    private final LocalNodeMembership nodeB = new LocalNodeMembership("b", liveNodes);
+    private final LocalNodeMembership nodeC = new LocalNodeMembership("c", liveNodes);
+    // membership is re-read on every lookup, so a node leaving shows at once
+    private final ClusterShardRouter routerA = new ClusterShardRouter(nodeA, 64, 0);
+    private final ClusterShardRouter routerB = new ClusterShardRouter(nodeB, 64, 0);
+    private final ClusterShardRouter routerC = new ClusterShardRouter(nodeC, 64, 0);
+
+    @Test
+    public void everyRepositoryHasExactlyOneOwner() {
+        Map<String, Integer> owned = new HashMap<String, Integer>();
+        for (int repo = 1; repo <= REPOSITORIES; repo++) {
+            int owners = 0;
+            for (ClusterShardRouter router : new ClusterShardRouter[]{routerA, routerB, routerC}) {
+                if (router.isLocallyOwned(repo)) {
+                    owners++;
+                    assertEquals(router.getLocalNodeId(), routerA.getOwner(repo));
+                }
+            }
+            assertEquals(1, owners);
+            String owner = routerB.getOwner(repo);
+            owned.put(owner, owned.containsKey(owner) ? owned.get(owner) + 1 : 1);
+        }
+        for (String node : new String[]{"a", "b", "c"}) {
+            assertTrue(node + " owns " + owned.get(node), owned.get(node) > REPOSITORIES / 5);
+        }
+    }
+
+    @Test
+    public void onlyTheRepositoriesOfALeavingNodeMove() {
+        Map<Integer, String> before = new HashMap<Integer, String>();
+        for (int repo = 1; repo <= REPOSITORIES; repo++) {
+            before.put(repo, routerA.getOwner(repo));
+        }
+        nodeC.leave();
+
+        for (int repo = 1; repo <= REPOSITORIES; repo++) {
+            String owner = routerA.getOwner(repo);
+            assertEquals(owner, routerB.getOwner(repo));
+            if ("c".equals(before.get(repo))) {
+                assertNotEquals("c", owner);
+            } else {
+                assertEquals(before.get(repo), owner);
+            }
+        }
+    }
+
+    @Test
+    public void aRejoiningNodeGetsItsRepositoriesBack() {
+        Map<Integer, String> before = new HashMap<Integer, String>();
+        for (int repo = 1; repo <= REPOSITORIES; repo++) {
+            before.put(repo, routerB.getOwner(repo));
+        }
+        nodeA.leave();
+        routerB.getOwner(1);
+        nodeA.join();
+
+        for (int repo = 1; repo <= REPOSITORIES; repo++) {
+            assertEquals(before.get(repo), routerB.getOwner(repo));
+        }
+    }
+}
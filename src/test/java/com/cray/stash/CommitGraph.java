@@ -0,0 +1,143 @@
+package com.cray.stash;
+
+import com.atlassian.stash.commit.Commit;
+import com.atlassian.stash.commit.CommitService;
+import com.atlassian.stash.commit.CommitsBetweenRequest;
+import com.atlassian.stash.commit.MinimalCommit;
+import com.atlassian.stash.person.Person;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageUtils;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * An in memory commit history that answers getCommitsBetween the way stash does: the commits the includes reach
+ * and the excludes don't, newest first, one page at a time. Includes and excludes can be commit ids or branch
+ * names.
+ */
+class CommitGraph {
+
+    private final Map<String, Commit> commits = new HashMap<String, Commit>();
+    private final List<String> order = new ArrayList<String>();
+    private final Map<String, String> branches = new HashMap<String, String>();
+    private final List<PageRequest> requests = new ArrayList<PageRequest>();
+    private long time = 1000000;
+
+    /*
+    * Adds a commit on top of its parents, newer than everything added before.
+    */
+    Commit add(String id, String message, String... parentIds) {
+        Person author = mock(Person.class);
+        when(author.getName()).thenReturn("Some One");
+        when(author.getEmailAddress()).thenReturn("someone@example.com");
+        List<MinimalCommit> parents = new ArrayList<MinimalCommit>();
+        for (String parentId : parentIds) {
+            parents.add(commits.get(parentId));
+        }
+        Commit commit = mock(Commit.class);
+        when(commit.getId()).thenReturn(id);
+        when(commit.getDisplayId()).thenReturn(id.substring(0, Math.min(7, id.length())));
+        when(commit.getAuthor()).thenReturn(author);
+        when(commit.getAuthorTimestamp()).thenReturn(new Date(time++));
+        when(commit.getMessage()).thenReturn(message);
+        when(commit.getParents()).thenReturn((Collection<MinimalCommit>) parents);
+        commits.put(id, commit);
+        order.add(id);
+        return commit;
+    }
+
+    /*
+    * A copy of a commit the way a rebase makes it: a new id with the author, timestamp and message kept.
+    */
+    Commit rebase(String id, Commit original, String... parentIds) {
+        Commit commit = add(id, original.getMessage(), parentIds);
+        Date timestamp = original.getAuthorTimestamp();
+        when(commit.getAuthorTimestamp()).thenReturn(timestamp);
+        return commit;
+    }
+
+    void branch(String name, String tip) {
+        branches.put(name, tip);
+    }
+
+    Commit get(String id) {
+        return commits.get(id);
+    }
+
+    /*
+    * The page requests answered so far.
+    */
+    List<PageRequest> getRequests() {
+        return requests;
+    }
+
+    @SuppressWarnings("unchecked")
+    CommitService commitService() {
+        CommitService commitService = mock(CommitService.class);
+        when(commitService.getCommitsBetween(any(CommitsBetweenRequest.class), any(PageRequest.class))).thenAnswer(new Answer<Page<Commit>>() {
+            @Override
+            public Page<Commit> answer(InvocationOnMock invocation) {
+                CommitsBetweenRequest request = (CommitsBetweenRequest) invocation.getArguments()[0];
+                return between(request.getIncludes(), request.getExcludes(), (PageRequest) invocation.getArguments()[1]);
+            }
+        });
+        return commitService;
+    }
+
+    @SuppressWarnings("unchecked")
+    Page<Commit> between(Collection<String> includes, Collection<String> excludes, PageRequest pageRequest) {
+        requests.add(pageRequest);
+        Set<String> excluded = reach(excludes);
+        Set<String> included = reach(includes);
+        List<Commit> values = new ArrayList<Commit>();
+        for (int i = order.size() - 1; i >= 0; i--) {
+            String id = order.get(i);
+            if (included.contains(id) && !excluded.contains(id)) {
+                values.add(commits.get(id));
+            }
+        }
+        int end = Math.min(values.size(), pageRequest.getStart() + pageRequest.getLimit());
+        List<Commit> pageValues = pageRequest.getStart() < end ? values.subList(pageRequest.getStart(), end) : new ArrayList<Commit>();
+        Page<Commit> page = mock(Page.class);
+        when(page.getValues()).thenReturn(new ArrayList<Commit>(pageValues));
+        when(page.getSize()).thenReturn(pageValues.size());
+        when(page.getStart()).thenReturn(pageRequest.getStart());
+        when(page.getLimit()).thenReturn(pageRequest.getLimit());
+        when(page.getIsLastPage()).thenReturn(end >= values.size());
+        when(page.getNextPageRequest()).thenReturn(end >= values.size() ? null : PageUtils.newRequest(end, pageRequest.getLimit()));
+        return page;
+    }
+
+    private Set<String> reach(Collection<String> tips) {
+        Set<String> reached = new HashSet<String>();
+        Deque<String> walk = new ArrayDeque<String>();
+        for (String tip : tips) {
+            walk.push(branches.containsKey(tip) ? branches.get(tip) : tip);
+        }
+        while (!walk.isEmpty()) {
+            Commit commit = commits.get(walk.pop());
+            if (commit != null && reached.add(commit.getId())) {
+                for (MinimalCommit parent : commit.getParents()) {
+                    walk.push(parent.getId());
+                }
+            }
+        }
+        return reached;
+    }
+}
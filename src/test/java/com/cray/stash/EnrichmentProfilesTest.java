@@ -0,0 +1,64 @@
+package com.cray.stash;
+
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Repository;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EnrichmentProfilesTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    @Test
+    public void fullWinsOverStandardWinsOverMinimal() {
+        EnrichmentProfiles profiles = new EnrichmentProfiles(TestProperties.create(home.getRoot(),
+                "plugin.fedmsg.enrichment.minimal", "MIRROR/*, ARCHIVE/*",
+                "plugin.fedmsg.enrichment.standard", "MIRROR/tools*",
+                "plugin.fedmsg.enrichment.full", "MIRROR/kernel,MIRROR/tools-full",
+                "plugin.fedmsg.enrichment.default", "standard"));
+
+        assertEquals(EnrichmentProfiles.Profile.FULL, profiles.getProfile(repository(1, "MIRROR", "kernel")));
+        assertEquals(EnrichmentProfiles.Profile.FULL, profiles.getProfile(repository(2, "MIRROR", "tools-full")));
+        assertEquals(EnrichmentProfiles.Profile.STANDARD, profiles.getProfile(repository(3, "MIRROR", "tools")));
+        assertEquals(EnrichmentProfiles.Profile.MINIMAL, profiles.getProfile(repository(4, "MIRROR", "gcc")));
+        assertEquals(EnrichmentProfiles.Profile.MINIMAL, profiles.getProfile(repository(5, "ARCHIVE", "old")));
+        assertEquals(EnrichmentProfiles.Profile.STANDARD, profiles.getProfile(repository(6, "CRAY", "kernel")));
+    }
+
+    @Test
+    public void anUnknownDefaultFallsBackToFull() {
+        EnrichmentProfiles profiles = new EnrichmentProfiles(TestProperties.create(home.getRoot(),
+                "plugin.fedmsg.enrichment.default", "lavish"));
+
+        assertEquals(EnrichmentProfiles.Profile.FULL, profiles.getProfile(repository(1, "CRAY", "kernel")));
+    }
+
+    @Test
+    public void profilesOnlyAskForWhatTheyCarry() {
+        assertFalse(EnrichmentProfiles.Profile.MINIMAL.hasComments());
+        assertFalse(EnrichmentProfiles.Profile.MINIMAL.hasUrls());
+        assertFalse(EnrichmentProfiles.Profile.MINIMAL.hasFiles());
+        assertTrue(EnrichmentProfiles.Profile.STANDARD.hasComments());
+        assertTrue(EnrichmentProfiles.Profile.STANDARD.hasUrls());
+        assertFalse(EnrichmentProfiles.Profile.STANDARD.hasFiles());
+        assertTrue(EnrichmentProfiles.Profile.FULL.hasFiles());
+    }
+
+    private static Repository repository(int id, String projectKey, String slug) {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn(projectKey);
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(id);
+        when(repo.getProject()).thenReturn(project);
+        when(repo.getSlug()).thenReturn(slug);
+        return repo;
+    }
+}
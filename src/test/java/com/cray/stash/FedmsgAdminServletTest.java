@@ -0,0 +1,62 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.PermissionService;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FedmsgAdminServletTest {
+
+    private final SEPBackfill backfill = mock(SEPBackfill.class);
+    private final HttpServletResponse resp = mock(HttpServletResponse.class);
+    private FedmsgAdminServlet servlet;
+
+    @Before
+    public void setUp() throws Exception {
+        PermissionService permissionService = mock(PermissionService.class);
+        when(permissionService.hasGlobalPermission(Permission.ADMIN)).thenReturn(true);
+        when(resp.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+        servlet = new FedmsgAdminServlet(backfill, permissionService, mock(RepositoryService.class),
+                mock(ClusterShardRouter.class), mock(SlowEventRecorder.class), mock(StashCircuitBreakers.class),
+                mock(MessageAuditLog.class), mock(HeapPressureGuard.class));
+    }
+
+    @Test
+    public void postsWithoutTheXsrfHeaderAreRefused() throws Exception {
+        HttpServletRequest req = cancel();
+
+        servlet.doPost(req, resp);
+
+        verify(resp).sendError(HttpServletResponse.SC_FORBIDDEN, "XSRF check failed, send X-Atlassian-Token: no-check");
+        verify(backfill, never()).cancel(anyString());
+    }
+
+    @Test
+    public void postsWithTheXsrfHeaderAreServed() throws Exception {
+        HttpServletRequest req = cancel();
+        when(req.getHeader("X-Atlassian-Token")).thenReturn("no-check");
+
+        servlet.doPost(req, resp);
+
+        verify(backfill).cancel("job-1");
+    }
+
+    private static HttpServletRequest cancel() {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getParameter("action")).thenReturn("cancel");
+        when(req.getParameter("job")).thenReturn("job-1");
+        return req;
+    }
+}
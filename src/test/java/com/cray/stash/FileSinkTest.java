@@ -0,0 +1,73 @@
+package com.cray.stash;
+
+import com.google.gson.Gson;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileSinkTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void everyMessageIsAppendedAsALineOfJson() throws Exception {
+        File file = new File(home.getRoot(), "data/fedmsg/messages.log");
+        FileSink sink = new FileSink(file);
+
+        assertEquals(2, sink.deliver(Arrays.asList(message("c1"), message("c2"))));
+        sink.close();
+        // a reopened sink appends to what is there
+        assertEquals(1, sink.deliver(Arrays.asList(message("c3"))));
+        sink.close();
+
+        List<String> lines = lines(file);
+        assertEquals(3, lines.size());
+        Map<String, Object> envelope = new Gson().fromJson(lines.get(2), Map.class);
+        // topics go out in lower case, like the relay sends them
+        assertEquals("com.cray.dev.stash.key.repo.commit", envelope.get("topic"));
+        assertEquals("c3", ((Map<String, Object>) envelope.get("msg")).get("revision"));
+    }
+
+    @Test
+    public void nothingIsDeliveredWhenTheFileCannotBeOpened() throws Exception {
+        File blocker = home.newFile("blocker");
+        FileSink sink = new FileSink(new File(blocker, "messages.log"));
+
+        assertEquals(0, sink.deliver(Arrays.asList(message("c1"))));
+        sink.close();
+    }
+
+    private static Message message(String revision) {
+        Map<String, Object> content = new LinkedHashMap<String, Object>();
+        content.put("revision", revision);
+        return new Message(content, "com.cray.dev.stash.KEY.repo.commit", 1, revision);
+    }
+
+    private static List<String> lines(File file) throws Exception {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
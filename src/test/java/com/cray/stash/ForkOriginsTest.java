@@ -0,0 +1,112 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.Branch;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryBranchesRequest;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ForkOriginsTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final RefService refService = mock(RefService.class);
+    private final TestSecurity security = new TestSecurity();
+
+    @Test
+    public void onlyForksHaveAnOrigin() {
+        ForkOrigins forkOrigins = create(TestProperties.create(home.getRoot()));
+        Repository origin = repository(1);
+        Repository fork = repository(2);
+        when(fork.isFork()).thenReturn(true);
+        when(fork.getOrigin()).thenReturn(origin);
+
+        assertSame(origin, forkOrigins.getOrigin(fork));
+        assertNull(forkOrigins.getOrigin(origin));
+    }
+
+    @Test
+    public void suppressionCanBeTurnedOff() {
+        ForkOrigins forkOrigins = create(TestProperties.create(home.getRoot(), "plugin.fedmsg.forks.suppress", "false"));
+        Repository origin = repository(1);
+        Repository fork = repository(2);
+        when(fork.isFork()).thenReturn(true);
+        when(fork.getOrigin()).thenReturn(origin);
+
+        assertNull(forkOrigins.getOrigin(fork));
+    }
+
+    @Test
+    public void tipsAreListedElevatedAndCached() {
+        ForkOrigins forkOrigins = create(TestProperties.create(home.getRoot()));
+        branches("c1", "c2");
+        Repository origin = repository(1);
+
+        assertEquals(new HashSet<String>(Arrays.asList("c1", "c2")), forkOrigins.getTips(origin));
+        assertEquals(new HashSet<String>(Arrays.asList("c1", "c2")), forkOrigins.getTips(origin));
+        verify(refService, times(1)).getBranches(any(RepositoryBranchesRequest.class), any(PageRequest.class));
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        ForkOrigins forkOrigins = create(TestProperties.create(home.getRoot()));
+        when(refService.getBranches(any(RepositoryBranchesRequest.class), any(PageRequest.class))).thenThrow(new IllegalStateException("slow"));
+        Repository origin = repository(1);
+
+        assertTrue(forkOrigins.getTips(origin).isEmpty());
+
+        branches("c1");
+        assertEquals(new HashSet<String>(Arrays.asList("c1")), forkOrigins.getTips(origin));
+    }
+
+    private ForkOrigins create(ApplicationPropertiesService appService) {
+        return new ForkOrigins(refService, security.service(), appService, new StashCircuitBreakers(appService), new SlowEventRecorder(appService));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void branches(String... tips) {
+        final Page<Branch> page = mock(Page.class);
+        Branch[] values = new Branch[tips.length];
+        for (int i = 0; i < tips.length; i++) {
+            values[i] = mock(Branch.class);
+            when(values[i].getLatestCommit()).thenReturn(tips[i]);
+        }
+        when(page.getValues()).thenReturn(Arrays.asList(values));
+        when(page.getIsLastPage()).thenReturn(true);
+        doAnswer(new Answer<Page<Branch>>() {
+            @Override
+            public Page<Branch> answer(InvocationOnMock invocation) {
+                assertTrue(security.isElevated());
+                return page;
+            }
+        }).when(refService).getBranches(any(RepositoryBranchesRequest.class), any(PageRequest.class));
+    }
+
+    private static Repository repository(int id) {
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(id);
+        return repo;
+    }
+}
@@ -0,0 +1,120 @@
+package com.cray.stash;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.Notification;
+import java.lang.management.MemoryNotificationInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeapPressureGuardTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final List<HeapPressureGuard> guards = new ArrayList<HeapPressureGuard>();
+
+    @After
+    public void tearDown() {
+        for (HeapPressureGuard guard : guards) {
+            guard.destroy();
+        }
+    }
+
+    @Test
+    public void aPublisherWaitsUntilThereIsRoomInTheBudget() throws Exception {
+        final HeapPressureGuard guard = guard("plugin.fedmsg.heap.inFlightBytes", "100");
+        guard.acquire(80);
+        final List<String> events = new ArrayList<String>();
+        Thread publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    guard.acquire(50);
+                    synchronized (events) {
+                        events.add("acquired");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        publisher.start();
+        Thread.sleep(100);
+        synchronized (events) {
+            events.add("released");
+        }
+        guard.release(80);
+        publisher.join(5000);
+
+        assertEquals(Arrays.asList("released", "acquired"), events);
+        assertEquals(50L, guard.getStatus().get("inFlightBytes"));
+    }
+
+    @Test
+    public void aPayloadLargerThanTheBudgetGoesOutOnItsOwn() throws Exception {
+        HeapPressureGuard guard = guard("plugin.fedmsg.heap.inFlightBytes", "100");
+        guard.acquire(500);
+        assertEquals(500L, guard.getStatus().get("inFlightBytes"));
+        guard.release(500);
+        assertEquals(0L, guard.getStatus().get("inFlightBytes"));
+    }
+
+    @Test
+    public void aPublisherGivesUpWaitingAfterMaxWait() throws Exception {
+        HeapPressureGuard guard = guard("plugin.fedmsg.heap.inFlightBytes", "100", "plugin.fedmsg.heap.maxWaitMillis", "50");
+        guard.acquire(80);
+        long start = System.currentTimeMillis();
+        guard.acquire(50);
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(130L, guard.getStatus().get("inFlightBytes"));
+    }
+
+    @Test
+    public void pressureShrinksChunksAndPausesEventsUntilMaxPause() throws Exception {
+        // a threshold every heap is over
+        HeapPressureGuard guard = guard("plugin.fedmsg.heap.threshold", "0.0000001", "plugin.fedmsg.heap.maxPauseMillis", "50",
+                "plugin.fedmsg.heap.chunkSize", "100", "plugin.fedmsg.heap.pressureChunkSize", "10");
+        assertEquals(100, guard.getChunkSize());
+
+        // pressure is judged by the usage after the last collection
+        System.gc();
+        guard.handleNotification(thresholdExceeded(), null);
+
+        assertTrue(guard.isUnderPressure());
+        assertEquals(10, guard.getChunkSize());
+        long start = System.currentTimeMillis();
+        guard.awaitAdmission();
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(1L, guard.getStatus().get("pressureEvents"));
+    }
+
+    @Test
+    public void pressureEndsOnceTheHeapIsBelowTheThreshold() throws Exception {
+        HeapPressureGuard guard = guard("plugin.fedmsg.heap.threshold", "0.99", "plugin.fedmsg.heap.maxPauseMillis", "60000");
+
+        guard.handleNotification(thresholdExceeded(), null);
+
+        assertFalse(guard.isUnderPressure());
+        guard.awaitAdmission();
+        assertEquals(1L, guard.getStatus().get("pressureEvents"));
+    }
+
+    private HeapPressureGuard guard(String... keyValues) {
+        HeapPressureGuard guard = new HeapPressureGuard(TestProperties.create(home.getRoot(), keyValues));
+        guards.add(guard);
+        return guard;
+    }
+
+    private static Notification thresholdExceeded() {
+        return new Notification(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED, "test", 1, "test pool over its threshold");
+    }
+}
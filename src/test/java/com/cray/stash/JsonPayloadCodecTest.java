@@ -0,0 +1,38 @@
+package com.cray.stash;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class JsonPayloadCodecTest {
+
+    private final JsonPayloadCodec codec = new JsonPayloadCodec();
+
+    @Test
+    public void theRelayBodyCarriesTheSchemaVersion() {
+        Map<String, Object> content = new HashMap<String, Object>();
+        content.put("revision", "0123456789abcdef0123456789abcdef01234567");
+
+        Map<String, Object> body = codec.toRelayBody(content);
+        assertEquals(PayloadCodecs.SCHEMA_VERSION, body.get("schema_version"));
+        assertEquals("0123456789abcdef0123456789abcdef01234567", body.get("revision"));
+        // other sinks share the content
+        assertFalse(content.containsKey("schema_version"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void encodedContentCarriesTheSchemaVersion() throws Exception {
+        Map<String, Object> content = new HashMap<String, Object>();
+        content.put("branch", "master");
+
+        Map<String, Object> decoded = new Gson().fromJson(new String(codec.encode(content), "UTF-8"), Map.class);
+        assertEquals("master", decoded.get("branch"));
+        assertEquals((double) PayloadCodecs.SCHEMA_VERSION, decoded.get("schema_version"));
+    }
+}
@@ -0,0 +1,199 @@
+package com.cray.stash;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageAuditLogTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final List<MessageAuditLog> logs = new ArrayList<MessageAuditLog>();
+
+    @After
+    public void tearDown() {
+        for (MessageAuditLog log : logs) {
+            log.destroy();
+        }
+    }
+
+    @Test
+    public void sealedSegmentsAreFoundAfterReopening() throws Exception {
+        MessageAuditLog log = open("1000");
+        for (int i = 0; i < 40; i++) {
+            log.record(message(1, commitId(i)), "relay", MessageAuditLog.Entry.DELIVERED);
+        }
+        log.destroy();
+        assertTrue(files(".idx").size() > 1);
+
+        // every commit, including the first and last of every segment
+        MessageAuditLog reopened = open("1000");
+        for (int i = 0; i < 40; i++) {
+            List<MessageAuditLog.Entry> found = reopened.findByCommit(commitId(i), 10);
+            assertEquals(commitId(i), 1, found.size());
+            assertEquals(commitId(i), found.get(0).getCommitId());
+            assertEquals(MessageAuditLog.Entry.DELIVERED, found.get(0).getOutcome());
+        }
+        assertTrue(reopened.findByCommit(commitId(40), 10).isEmpty());
+    }
+
+    @Test
+    public void aCommitIsFoundInEverySegmentItWasRecordedIn() throws Exception {
+        MessageAuditLog log = open("1000");
+        log.record(message(1, commitId(0)), "relay", MessageAuditLog.Entry.FAILED);
+        for (int i = 1; i < 40; i++) {
+            log.record(message(1, commitId(i)), "relay", MessageAuditLog.Entry.DELIVERED);
+        }
+        log.record(message(1, commitId(0)), "relay", MessageAuditLog.Entry.DELIVERED);
+        log.destroy();
+
+        List<MessageAuditLog.Entry> found = open("1000").findByCommit(commitId(0), 10);
+        assertEquals(Arrays.asList(MessageAuditLog.Entry.FAILED, MessageAuditLog.Entry.DELIVERED), outcomes(found));
+    }
+
+    @Test
+    public void repositoriesAreSearchedAcrossSegments() throws Exception {
+        MessageAuditLog log = open("1000");
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 60; i++) {
+            log.record(message(i % 3, commitId(i)), "relay", MessageAuditLog.Entry.DELIVERED);
+            if (i % 3 == 1) {
+                expected.add(commitId(i));
+            }
+        }
+        log.destroy();
+
+        MessageAuditLog reopened = open("1000");
+        assertEquals(expected, commitIds(reopened.findByRepository(1, 0, Long.MAX_VALUE, 1000)));
+        assertEquals(expected.subList(0, 5), commitIds(reopened.findByRepository(1, 0, Long.MAX_VALUE, 5)));
+        assertTrue(reopened.findByRepository(3, 0, Long.MAX_VALUE, 1000).isEmpty());
+    }
+
+    @Test
+    public void repositoriesAreSearchedByTime() throws Exception {
+        MessageAuditLog log = open("1000");
+        for (int i = 0; i < 20; i++) {
+            log.record(message(1, commitId(i)), "relay", MessageAuditLog.Entry.DELIVERED);
+        }
+        Thread.sleep(20);
+        long from = System.currentTimeMillis();
+        for (int i = 20; i < 40; i++) {
+            log.record(message(1, commitId(i)), "relay", MessageAuditLog.Entry.DELIVERED);
+        }
+        log.destroy();
+
+        List<String> found = commitIds(open("1000").findByRepository(1, from, Long.MAX_VALUE, 1000));
+        assertEquals(20, found.size());
+        assertEquals(commitId(20), found.get(0));
+        assertEquals(commitId(39), found.get(19));
+    }
+
+    @Test
+    public void aPartialRecordIsCutOffOnReopening() throws Exception {
+        MessageAuditLog log = open("1000000");
+        for (int i = 0; i < 3; i++) {
+            log.record(message(1, commitId(i)), "relay", MessageAuditLog.Entry.DELIVERED);
+        }
+        log.destroy();
+
+        // a crash half way through a record
+        File segment = files(".log").get(0);
+        long length = segment.length();
+        OutputStream out = new FileOutputStream(segment, true);
+        try {
+            out.write(new byte[]{0, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+        } finally {
+            out.close();
+        }
+
+        MessageAuditLog reopened = open("1000000");
+        assertEquals(length, segment.length());
+        reopened.record(message(1, commitId(3)), "relay", MessageAuditLog.Entry.DROPPED);
+        reopened.destroy();
+
+        MessageAuditLog recovered = open("1000000");
+        assertEquals(Arrays.asList(commitId(0), commitId(1), commitId(2), commitId(3)),
+                commitIds(recovered.findByRepository(1, 0, Long.MAX_VALUE, 1000)));
+        assertEquals(MessageAuditLog.Entry.DROPPED, recovered.findByCommit(commitId(3), 10).get(0).getOutcome());
+    }
+
+    @Test
+    public void theOldestSegmentsAreDeleted() throws Exception {
+        MessageAuditLog log = open("1000", "plugin.fedmsg.audit.maxBytes", "4000");
+        for (int i = 0; i < 200; i++) {
+            log.record(message(1, commitId(i)), "relay", MessageAuditLog.Entry.DELIVERED);
+        }
+        log.destroy();
+
+        assertFalse(new File(home.getRoot(), "data/fedmsg/audit/0.log").exists());
+        assertFalse(new File(home.getRoot(), "data/fedmsg/audit/0.idx").exists());
+        long total = 0;
+        for (File file : new File(home.getRoot(), "data/fedmsg/audit").listFiles()) {
+            total += file.length();
+        }
+        // retention runs when a segment is sealed, the active one may have grown since
+        assertTrue(total < 4000 + 2000);
+
+        MessageAuditLog reopened = open("1000", "plugin.fedmsg.audit.maxBytes", "4000");
+        assertTrue(reopened.findByCommit(commitId(0), 10).isEmpty());
+        assertEquals(1, reopened.findByCommit(commitId(199), 10).size());
+    }
+
+    private MessageAuditLog open(String segmentBytes, String... keyValues) {
+        List<String> properties = new ArrayList<String>(Arrays.asList(
+                "plugin.fedmsg.audit.segmentBytes", segmentBytes, "plugin.fedmsg.audit.flushMillis", "0"));
+        properties.addAll(Arrays.asList(keyValues));
+        MessageAuditLog log = new MessageAuditLog(TestProperties.create(home.getRoot(), properties.toArray(new String[properties.size()])));
+        logs.add(log);
+        return log;
+    }
+
+    private List<File> files(String suffix) {
+        List<File> files = new ArrayList<File>();
+        for (File file : new File(home.getRoot(), "data/fedmsg/audit").listFiles()) {
+            if (file.getName().endsWith(suffix)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static Message message(int repositoryId, String commitId) {
+        return new Message(new LinkedHashMap<String, Object>(), "com.cray.dev.stash.KEY.repo.commit", repositoryId, commitId);
+    }
+
+    // spreads the keys over the whole range, so the binary search has work to do
+    private static String commitId(int i) {
+        return String.format("%016x%024x", (long) (i + 1) * 0x9E3779B97F4A7C15L, i);
+    }
+
+    private static List<String> commitIds(List<MessageAuditLog.Entry> entries) {
+        List<String> ids = new ArrayList<String>();
+        for (MessageAuditLog.Entry entry : entries) {
+            ids.add(entry.getCommitId());
+        }
+        return ids;
+    }
+
+    private static List<String> outcomes(List<MessageAuditLog.Entry> entries) {
+        List<String> outcomes = new ArrayList<String>();
+        for (MessageAuditLog.Entry entry : entries) {
+            outcomes.add(entry.getOutcome());
+        }
+        return outcomes;
+    }
+}
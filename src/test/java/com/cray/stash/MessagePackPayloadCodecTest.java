@@ -0,0 +1,192 @@
+package com.cray.stash;
+
+import org.junit.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks the hand written encoder against the reference MessagePack reader.
+ */
+public class MessagePackPayloadCodecTest {
+
+    private final MessagePackPayloadCodec codec = new MessagePackPayloadCodec();
+
+    @Test
+    public void scalarsRoundTrip() throws IOException {
+        Map<String, Object> content = new HashMap<String, Object>();
+        content.put("null", null);
+        content.put("true", true);
+        content.put("false", false);
+        content.put("fixint", 127L);
+        content.put("negativeFixint", -32L);
+        content.put("int", -33L);
+        content.put("int32", (long) Integer.MAX_VALUE);
+        content.put("int64", Long.MIN_VALUE);
+        content.put("double", 1.5d);
+        content.put("unicode", "\u00e9t\u00e9 \u2603");
+
+        assertEquals(content, decode(codec.encode(content)));
+    }
+
+    @Test
+    public void integersAndFloatsAreWidened() throws IOException {
+        Map<String, Object> content = new HashMap<String, Object>();
+        content.put("int", 5);
+        content.put("float", 0.25f);
+
+        Map<String, Object> decoded = decode(codec.encode(content));
+        assertEquals(5L, decoded.get("int"));
+        assertEquals(0.25d, decoded.get("float"));
+    }
+
+    @Test
+    public void stringsOfEveryLengthRoundTrip() throws IOException {
+        Map<String, Object> content = new HashMap<String, Object>();
+        for (int length : new int[]{0, 31, 32, 255, 256, 65535, 65536, 100000}) {
+            content.put("s" + length, repeat('x', length));
+        }
+        assertEquals(content, decode(codec.encode(content)));
+    }
+
+    @Test
+    public void nestedCollectionsRoundTrip() throws IOException {
+        List<Object> files = new ArrayList<Object>();
+        for (int i = 0; i < 70000; i++) {
+            files.add("src/main/java/File" + i + ".java");
+        }
+        Map<String, Object> urls = new HashMap<String, Object>();
+        for (int i = 0; i < 20; i++) {
+            urls.put("link" + i + "_url", "https://stash.example.com/scm/key/repo" + i + ".git");
+        }
+        Map<String, Object> author = new HashMap<String, Object>();
+        author.put("name", "Some One");
+        author.put("email", "someone@example.com");
+
+        Map<String, Object> content = new HashMap<String, Object>();
+        content.put("author", author);
+        content.put("files", files);
+        content.put("urls", urls);
+        content.put("empty", Collections.emptyList());
+        content.put("short", Arrays.<Object>asList("a", 1L, null, true));
+
+        assertEquals(content, decode(codec.encode(content)));
+    }
+
+    @Test
+    public void theRelayEnvelopeInflatesToTheEncodedContent() throws IOException {
+        Map<String, Object> content = new HashMap<String, Object>();
+        content.put("revision", "0123456789abcdef0123456789abcdef01234567");
+        content.put("files", Arrays.<Object>asList("a.txt", "b.txt"));
+
+        Map<String, Object> envelope = codec.toRelayBody(content);
+        assertEquals("msgpack", envelope.get("codec"));
+        assertEquals(PayloadCodecs.SCHEMA_VERSION, envelope.get("schema_version"));
+        assertEquals("deflate+base64", envelope.get("encoding"));
+
+        InputStream inflated = new InflaterInputStream(new ByteArrayInputStream(base64((String) envelope.get("payload"))));
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read = inflated.read(buffer); read > 0; read = inflated.read(buffer)) {
+            payload.write(buffer, 0, read);
+        }
+        assertEquals(content, decode(payload.toByteArray()));
+    }
+
+    @Test
+    public void base64PaddingMatchesTheInputLength() throws IOException {
+        // the deflated payload length decides the padding, check every remainder
+        for (int length = 1; length < 64; length++) {
+            Map<String, Object> content = new HashMap<String, Object>();
+            content.put("value", repeat('y', length));
+            String payload = (String) codec.toRelayBody(content).get("payload");
+            assertEquals(0, payload.length() % 4);
+            assertFalse(payload.substring(0, payload.length() - 2).contains("="));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> decode(byte[] bytes) throws IOException {
+        MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(bytes);
+        Object value = read(unpacker);
+        assertFalse("trailing bytes", unpacker.hasNext());
+        unpacker.close();
+        return (Map<String, Object>) value;
+    }
+
+    private static Object read(MessageUnpacker unpacker) throws IOException {
+        switch (unpacker.getNextFormat().getValueType()) {
+            case NIL:
+                unpacker.unpackNil();
+                return null;
+            case BOOLEAN:
+                return unpacker.unpackBoolean();
+            case INTEGER:
+                return unpacker.unpackLong();
+            case FLOAT:
+                return unpacker.unpackDouble();
+            case STRING:
+                return unpacker.unpackString();
+            case ARRAY:
+                int size = unpacker.unpackArrayHeader();
+                List<Object> values = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    values.add(read(unpacker));
+                }
+                return values;
+            case MAP:
+                int entries = unpacker.unpackMapHeader();
+                Map<String, Object> map = new HashMap<String, Object>(entries * 2);
+                for (int i = 0; i < entries; i++) {
+                    map.put(unpacker.unpackString(), read(unpacker));
+                }
+                return map;
+            default:
+                throw new IOException("Unexpected " + unpacker.getNextFormat());
+        }
+    }
+
+    private static String repeat(char c, int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static byte[] base64(String encoded) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < encoded.length(); i += 4) {
+            int chunk = 0;
+            int padding = 0;
+            for (int j = 0; j < 4; j++) {
+                char c = encoded.charAt(i + j);
+                if (c == '=') {
+                    padding++;
+                }
+                chunk = chunk << 6 | (c == '=' ? 0 : alphabet.indexOf(c));
+            }
+            out.write(chunk >>> 16);
+            if (padding < 2) {
+                out.write(chunk >>> 8 & 0xff);
+            }
+            if (padding < 1) {
+                out.write(chunk & 0xff);
+            }
+        }
+        return out.toByteArray();
+    }
+}
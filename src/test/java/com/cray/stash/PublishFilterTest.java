@@ -0,0 +1,110 @@
+package com.cray.stash;
+
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Repository;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PublishFilterTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    @Test
+    public void globsMatchLiterallyByPrefixAndByPattern() {
+        GlobMatcher matcher = new GlobMatcher(Arrays.asList("refs/heads/master", "refs/pull-requests/*", "*bot@cray.com",
+                "release-?.?", "a.b", ""));
+
+        assertTrue(matcher.matches("refs/heads/master"));
+        assertFalse(matcher.matches("refs/heads/master2"));
+        assertTrue(matcher.matches("refs/pull-requests/"));
+        assertTrue(matcher.matches("refs/pull-requests/12/from"));
+        assertFalse(matcher.matches("refs/pull-request"));
+        assertTrue(matcher.matches("ci-bot@cray.com"));
+        assertFalse(matcher.matches("ci-bot@cray.com.au"));
+        assertTrue(matcher.matches("release-1.2"));
+        assertFalse(matcher.matches("release-1.22"));
+        // regex characters in a glob are literal
+        assertFalse(matcher.matches("aXb"));
+        assertFalse(matcher.matches(""));
+        assertFalse(matcher.matches(null));
+    }
+
+    @Test
+    public void aLoneStarMatchesEverything() {
+        GlobMatcher matcher = new GlobMatcher(Collections.singletonList("*"));
+
+        assertTrue(matcher.matches(""));
+        assertTrue(matcher.matches("anything"));
+        assertTrue(new GlobMatcher(Collections.<String>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void excludesWinOverIncludes() {
+        PublishFilter filter = filter("project:CRAY,project:OS*,ref:refs/heads/*", "repository:~*,repository:OS/scratch,ref:refs/heads/wip/*");
+
+        assertTrue(filter.acceptsRepository(repository("CRAY", "kernel")));
+        assertTrue(filter.acceptsRepository(repository("OS", "kernel")));
+        assertFalse(filter.acceptsRepository(repository("OTHER", "kernel")));
+        assertFalse(filter.acceptsRepository(repository("OS", "scratch")));
+        // personal repositories live in ~user projects
+        assertFalse(filter.acceptsRepository(repository("~jdoe", "kernel")));
+
+        assertTrue(filter.acceptsRef("refs/heads/master"));
+        assertFalse(filter.acceptsRef("refs/heads/wip/mine"));
+        assertFalse(filter.acceptsRef("refs/tags/v1"));
+    }
+
+    @Test
+    public void authorsMatchByNameOrEmail() {
+        PublishFilter filter = filter("", "author:*bot@cray.com,author:Jenkins");
+
+        assertTrue(filter.acceptsAuthor("Some One", "someone@cray.com"));
+        assertFalse(filter.acceptsAuthor("CI", "ci-bot@cray.com"));
+        assertFalse(filter.acceptsAuthor("Jenkins", "jenkins@cray.com"));
+
+        PublishFilter included = filter("author:*@cray.com", "");
+        assertTrue(included.acceptsAuthor("Some One", "someone@cray.com"));
+        assertFalse(included.acceptsAuthor("Some One", "someone@example.com"));
+    }
+
+    @Test
+    public void withoutRulesEverythingIsPublished() {
+        PublishFilter filter = filter("", "");
+
+        assertTrue(filter.acceptsRepository(repository("~jdoe", "kernel")));
+        assertTrue(filter.acceptsRef("refs/pull-requests/1/from"));
+        assertTrue(filter.acceptsAuthor(null, null));
+    }
+
+    @Test
+    public void rulesWithoutATypeAreIgnored() {
+        PublishFilter filter = filter("", "refs/heads/*, ref : refs/tags/* ,");
+
+        assertTrue(filter.acceptsRef("refs/heads/master"));
+        assertFalse(filter.acceptsRef("refs/tags/v1"));
+    }
+
+    private PublishFilter filter(String include, String exclude) {
+        return new PublishFilter(TestProperties.create(home.getRoot(), "plugin.fedmsg.filter.include", include,
+                "plugin.fedmsg.filter.exclude", exclude));
+    }
+
+    private static Repository repository(String projectKey, String slug) {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn(projectKey);
+        Repository repo = mock(Repository.class);
+        when(repo.getProject()).thenReturn(project);
+        when(repo.getSlug()).thenReturn(slug);
+        return repo;
+    }
+}
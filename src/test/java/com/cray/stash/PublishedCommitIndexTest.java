@@ -0,0 +1,117 @@
+package com.cray.stash;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PublishedCommitIndexTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    @Test
+    public void evictingAnIndexDoesNotLoseItsCommits() {
+        PublishedCommitIndex index = new PublishedCommitIndex(TestProperties.create(home.getRoot(),
+                "plugin.fedmsg.index.openFiles", "1"));
+        for (int i = 0; i < 100; i++) {
+            index.markPublished(1 + i % 3, commitId(i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(index.isPublished(1 + i % 3, commitId(i)));
+            assertFalse(index.isPublished(1 + (i + 1) % 3, commitId(i)));
+        }
+        index.destroy();
+    }
+
+    @Test
+    public void aGrownIndexSurvivesARestartInItsNewestGeneration() {
+        PublishedCommitIndex index = new PublishedCommitIndex(TestProperties.create(home.getRoot()));
+        for (int i = 0; i < 5000; i++) {
+            index.markPublished(7, commitId(i));
+        }
+        index.destroy();
+
+        PublishedCommitIndex reopened = new PublishedCommitIndex(TestProperties.create(home.getRoot()));
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(reopened.isPublished(7, commitId(i)));
+        }
+        assertFalse(reopened.isPublished(7, commitId(5000)));
+        reopened.destroy();
+
+        assertArrayEquals(new String[]{"7.5.idx"}, new File(home.getRoot(), "data/fedmsg/published").list());
+    }
+
+    @Test
+    public void anIncompleteGenerationIsSkipped() throws Exception {
+        PublishedCommitIndex index = new PublishedCommitIndex(TestProperties.create(home.getRoot()));
+        index.markPublished(3, commitId(1));
+        index.destroy();
+        // a crash while growing leaves a newer generation without its magic number
+        File directory = new File(home.getRoot(), "data/fedmsg/published");
+        java.io.RandomAccessFile partial = new java.io.RandomAccessFile(new File(directory, "3.2.idx"), "rw");
+        partial.setLength(16 + 8 * 2048);
+        partial.close();
+
+        PublishedCommitIndex reopened = new PublishedCommitIndex(TestProperties.create(home.getRoot()));
+        assertTrue(reopened.isPublished(3, commitId(1)));
+        reopened.destroy();
+        assertArrayEquals(new String[]{"3.1.idx"}, directory.list());
+    }
+
+    @Test
+    public void anIndexFromBeforeTheFirstGenerationIsOpened() throws Exception {
+        PublishedCommitIndex index = new PublishedCommitIndex(TestProperties.create(home.getRoot()));
+        index.markPublished(4, commitId(1));
+        index.destroy();
+        File directory = new File(home.getRoot(), "data/fedmsg/published");
+        assertTrue(new File(directory, "4.1.idx").renameTo(new File(directory, "4.idx")));
+
+        PublishedCommitIndex reopened = new PublishedCommitIndex(TestProperties.create(home.getRoot()));
+        assertTrue(reopened.isPublished(4, commitId(1)));
+        assertFalse(reopened.isPublished(4, commitId(2)));
+        reopened.destroy();
+    }
+
+    @Test
+    public void repositoriesEvictingEachOtherFromManyThreadsKeepTheirCommits() throws Exception {
+        final PublishedCommitIndex index = new PublishedCommitIndex(TestProperties.create(home.getRoot(),
+                "plugin.fedmsg.index.openFiles", "1"));
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int repositoryId = t + 1;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        index.markPublished(repositoryId, commitId(i));
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int repositoryId = 1; repositoryId <= 4; repositoryId++) {
+            for (int i = 0; i < 2000; i++) {
+                assertTrue(index.isPublished(repositoryId, commitId(i)));
+            }
+        }
+        index.destroy();
+    }
+
+    private static String commitId(int i) {
+        return String.format("%016x%024x", (long) i * 0x9E3779B97F4A7C15L, i);
+    }
+}
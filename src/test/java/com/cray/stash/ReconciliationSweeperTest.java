@@ -0,0 +1,125 @@
+package com.cray.stash;
+
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Branch;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryBranchesRequest;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ReconciliationSweeperTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final Repository repo = mock(Repository.class);
+    private final RefService refService = mock(RefService.class);
+    private final RefOrderedExecutor refExecutor = mock(RefOrderedExecutor.class);
+    private ApplicationPropertiesService appService;
+    private PublishedTips publishedTips;
+    private ReconciliationSweeper sweeper;
+
+    @Before
+    public void setUp() {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("KEY");
+        when(repo.getId()).thenReturn(1);
+        when(repo.getProject()).thenReturn(project);
+        when(repo.getSlug()).thenReturn("repo");
+        appService = TestProperties.create(home.getRoot(), "plugin.fedmsg.sweep.intervalMillis", "10");
+        publishedTips = new PublishedTips(appService);
+    }
+
+    @After
+    public void tearDown() {
+        if (sweeper != null) {
+            sweeper.destroy();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void aLivePushBeforeTheFirstSweepDoesNotMakeTheOtherBranchesLookNew() throws Exception {
+        Page<Branch> branches = page(branch("refs/heads/master", "b"), branch("refs/heads/feature", "f"));
+        when(refService.getBranches(any(RepositoryBranchesRequest.class), any(PageRequest.class))).thenReturn(branches);
+
+        // the push is delivered before the sweep ever saw the repository
+        new PendingTip(publishedTips, 1, "refs/heads/master", "b").seal();
+        assertNull(publishedTips.get(1));
+
+        sweepOnce();
+
+        verify(refExecutor, never()).submit(any(PublishLanes.Lane.class), any(Repository.class), any(Collection.class), any(Runnable.class));
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("refs/heads/master", "b");
+        expected.put("refs/heads/feature", "f");
+        assertEquals(expected, publishedTips.get(1));
+
+        // once known, live pushes are recorded
+        new PendingTip(publishedTips, 1, "refs/heads/master", "c").seal();
+        assertEquals("c", publishedTips.get(1).get("refs/heads/master"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void sweepOnce() throws InterruptedException {
+        Page<Repository> repositories = page(repo);
+        RepositoryService repoService = mock(RepositoryService.class);
+        when(repoService.findAll(any(PageRequest.class))).thenReturn(repositories);
+        ClusterShardRouter shardRouter = mock(ClusterShardRouter.class);
+        when(shardRouter.isLocallyOwned(anyInt())).thenReturn(true);
+
+        sweeper = new ReconciliationSweeper(repoService, refService, new TestSecurity().service(), appService, shardRouter,
+                publishedTips, new PublishFilter(appService), refExecutor, mock(SEPRefChangeEvent.class),
+                new StashCircuitBreakers(appService));
+        // the cursor is stored at the end of every cycle
+        File cursor = new File(home.getRoot(), "data/fedmsg/sweep.cursor");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!cursor.isFile() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        sweeper.destroy();
+    }
+
+    private static Branch branch(String id, String tip) {
+        Branch branch = mock(Branch.class);
+        when(branch.getId()).thenReturn(id);
+        when(branch.getLatestCommit()).thenReturn(tip);
+        return branch;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Page<T> page(T... values) {
+        List<T> list = new ArrayList<T>(Arrays.asList(values));
+        Page<T> page = mock(Page.class);
+        when(page.getValues()).thenReturn(list);
+        when(page.getSize()).thenReturn(list.size());
+        when(page.getIsLastPage()).thenReturn(true);
+        return page;
+    }
+}
@@ -0,0 +1,110 @@
+package com.cray.stash;
+
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.SimpleRefChange;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RefOrderedExecutorTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final List<Runnable> running = new ArrayList<Runnable>();
+    private final List<String> done = new ArrayList<String>();
+    private final Repository repo = mock(Repository.class);
+    private RefOrderedExecutor executor;
+
+    @Before
+    public void setUp() {
+        // the lane keeps what it's given until the test runs it
+        PublishLanes lanes = mock(PublishLanes.class);
+        when(lanes.submit(any(PublishLanes.Lane.class), any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                running.add((Runnable) invocation.getArguments()[1]);
+                return true;
+            }
+        });
+        when(repo.getId()).thenReturn(1);
+        executor = new RefOrderedExecutor(lanes, TestProperties.create(home.getRoot(), "plugin.fedmsg.lanes.maxWaiting", "2"));
+    }
+
+    @Test
+    public void workOnOneRefRunsInOrder() {
+        submit("first", "refs/heads/master");
+        submit("second", "refs/heads/master");
+        submit("other", "refs/heads/feature");
+        assertEquals(2, running.size());
+
+        runNext();
+        runNext();
+        runNext();
+        assertEquals(Arrays.asList("first", "other", "second"), done);
+        assertEquals(0, executor.getBusyRefs());
+    }
+
+    @Test
+    public void workPastTheWaitingLimitIsDropped() {
+        submit("first", "refs/heads/master");
+        submit("second", "refs/heads/master");
+        submit("third", "refs/heads/master", "refs/heads/feature");
+        submit("dropped", "refs/heads/master", "refs/heads/release");
+        assertEquals(2, executor.getWaiting());
+        assertEquals(2, executor.getBusyRefs());
+
+        while (!running.isEmpty()) {
+            runNext();
+        }
+        assertEquals(Arrays.asList("first", "second", "third"), done);
+        assertEquals(0, executor.getWaiting());
+        assertEquals(0, executor.getBusyRefs());
+    }
+
+    @Test
+    public void droppingFreesRoomForLaterWork() {
+        submit("first", "refs/heads/master");
+        submit("second", "refs/heads/master");
+        submit("third", "refs/heads/master");
+        submit("dropped", "refs/heads/master");
+        runNext();
+        submit("fourth", "refs/heads/master");
+
+        while (!running.isEmpty()) {
+            runNext();
+        }
+        assertEquals(Arrays.asList("first", "second", "third", "fourth"), done);
+    }
+
+    private void submit(final String name, String... refIds) {
+        List<RefChange> refChanges = new ArrayList<RefChange>();
+        for (String refId : refIds) {
+            refChanges.add(new SimpleRefChange.Builder().refId(refId).fromHash("a").toHash("b").type(RefChangeType.UPDATE).build());
+        }
+        executor.submit(PublishLanes.Lane.INTERACTIVE, repo, refChanges, new Runnable() {
+            @Override
+            public void run() {
+                done.add(name);
+            }
+        });
+    }
+
+    private void runNext() {
+        running.remove(0).run();
+    }
+}
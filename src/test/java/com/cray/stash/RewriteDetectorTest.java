@@ -0,0 +1,175 @@
+package com.cray.stash;
+
+import com.atlassian.stash.commit.Commit;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.SimpleRefChange;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RewriteDetectorTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final CommitGraph graph = new CommitGraph();
+    private final SEPCommits sepCommits = mock(SEPCommits.class);
+    private final Repository repo = repository();
+    private AdaptivePageSizes pageSizes;
+    private RewriteDetector detector;
+
+    @Before
+    public void setUp() {
+        // pages of two commits, so every side takes several requests
+        ApplicationPropertiesService appService = TestProperties.create(home.getRoot(),
+                "plugin.fedmsg.pageLimit", "2", "plugin.fedmsg.pageLimit.min", "2", "plugin.fedmsg.pageLimit.max", "2");
+        pageSizes = new AdaptivePageSizes(appService);
+        detector = new RewriteDetector(graph.commitService(), new TestSecurity().service(), sepCommits, appService, new StashCircuitBreakers(appService),
+                new SlowEventRecorder(appService), pageSizes);
+
+        graph.add("base", "base");
+        graph.add("release1", "release work", "base");
+        graph.branch("release", "release1");
+        graph.add("old1", "one", "base");
+        graph.add("old2", "two", "old1");
+        graph.add("old3", "three", "old2");
+        graph.add("old4", "four", "old3");
+        graph.add("old5", "five", "old4");
+    }
+
+    @After
+    public void tearDown() {
+        pageSizes.destroy();
+    }
+
+    @Test
+    public void aRebaseOntoAnotherBranchMatchesEveryPage() {
+        // the feature rebased onto release, with four was dropped and six added
+        graph.rebase("new1", graph.get("old1"), "release1");
+        graph.rebase("new2", graph.get("old2"), "new1");
+        graph.rebase("new3", graph.get("old3"), "new2");
+        graph.rebase("new5", graph.get("old5"), "new3");
+        graph.add("new6", "six", "new5");
+        RefChange ref = update("old5", "new6");
+        when(sepCommits.findExcludes(repo, ref)).thenReturn(new HashSet<String>(Arrays.asList("old5", "release")));
+
+        RewriteDetector.Rewrite rewrite = detector.detect(repo, ref);
+
+        assertEquals(Arrays.asList("new5", "new3", "new2", "new1"), rewrite.getMatched());
+        // release1 is on another branch already, it isn't new
+        assertEquals(Arrays.asList("new6"), ids(rewrite.getUnmatched()));
+        Map<String, Object> content = detector.toMessage(repo, rewrite).getMessage();
+        assertEquals(Arrays.asList("old4"), content.get("dropped"));
+        assertEquals("base", content.get("merge_base"));
+        assertEquals(4, ((List<?>) content.get("rewritten")).size());
+        for (int i = 1; i < graph.getRequests().size(); i++) {
+            assertEquals(2, graph.getRequests().get(i).getLimit());
+        }
+        assertTrue(graph.getRequests().size() > 4);
+    }
+
+    @Test
+    public void aFastForwardIsNoRewrite() {
+        graph.add("old6", "six", "old5");
+
+        assertNull(detector.detect(repo, update("old5", "old6")));
+    }
+
+    @Test
+    public void withoutTheBranchesOnlyTheOldTipIsExcluded() {
+        graph.rebase("new1", graph.get("old1"), "release1");
+        RefChange ref = update("old5", "new1");
+        when(sepCommits.findExcludes(repo, ref)).thenReturn(null);
+
+        RewriteDetector.Rewrite rewrite = detector.detect(repo, ref);
+
+        assertEquals(Arrays.asList("new1"), rewrite.getMatched());
+        assertEquals(Arrays.asList("release1"), ids(rewrite.getUnmatched()));
+    }
+
+    @Test
+    public void commitsWithTheSameKeyArePairedInOrder() {
+        // the same revert made twice, then both rebased onto release
+        graph.add("dup1", "revert", "base");
+        graph.rebase("dup2", graph.get("dup1"), "dup1");
+        graph.rebase("copy1", graph.get("dup1"), "release1");
+        graph.rebase("copy2", graph.get("dup1"), "copy1");
+        RefChange ref = update("dup2", "copy2");
+        when(sepCommits.findExcludes(repo, ref)).thenReturn(new HashSet<String>(Arrays.asList("dup2", "release")));
+
+        RewriteDetector.Rewrite rewrite = detector.detect(repo, ref);
+
+        assertEquals(Arrays.asList("copy2", "copy1"), rewrite.getMatched());
+        assertTrue(rewrite.getUnmatched().isEmpty());
+        Map<String, Object> content = detector.toMessage(repo, rewrite).getMessage();
+        assertEquals(Arrays.asList(pair("dup2", "copy2"), pair("dup1", "copy1")), content.get("rewritten"));
+        assertTrue(((List<?>) content.get("dropped")).isEmpty());
+    }
+
+    @Test
+    public void aMergeAmongTheRemovedCommitsLeavesTheMergeBaseOut() {
+        graph.add("side1", "side", "base");
+        graph.add("merge1", "merge", "old5", "side1");
+        graph.add("new1", "new", "release1");
+        RefChange ref = update("merge1", "new1");
+        when(sepCommits.findExcludes(repo, ref)).thenReturn(new HashSet<String>(Arrays.asList("merge1", "release")));
+
+        RewriteDetector.Rewrite rewrite = detector.detect(repo, ref);
+
+        Map<String, Object> content = detector.toMessage(repo, rewrite).getMessage();
+        assertEquals(7, ((List<?>) content.get("dropped")).size());
+        assertFalse(content.containsKey("merge_base"));
+    }
+
+    private static Map<String, String> pair(String oldId, String newId) {
+        Map<String, String> pair = new HashMap<String, String>();
+        pair.put("old", oldId);
+        pair.put("new", newId);
+        return pair;
+    }
+
+    private static List<String> ids(List<Commit> commits) {
+        List<String> ids = new ArrayList<String>();
+        for (Commit commit : commits) {
+            ids.add(commit.getId());
+        }
+        return ids;
+    }
+
+    private static RefChange update(String fromHash, String toHash) {
+        return new SimpleRefChange.Builder().refId("refs/heads/feature").fromHash(fromHash).toHash(toHash)
+                .type(RefChangeType.UPDATE).build();
+    }
+
+    private static Repository repository() {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("KEY");
+        when(project.getName()).thenReturn("Project");
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        when(repo.getName()).thenReturn("repo");
+        when(repo.getSlug()).thenReturn("repo");
+        when(repo.getProject()).thenReturn(project);
+        return repo;
+    }
+}
@@ -0,0 +1,101 @@
+package com.cray.stash;
+
+import com.atlassian.stash.commit.Commit;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SEPBackfillImplTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final CommitGraph graph = new CommitGraph();
+    private final TestSecurity security = new TestSecurity();
+    private final List<Boolean> enrichedElevated = new ArrayList<Boolean>();
+    private final Repository repo = mock(Repository.class);
+    private SEPCommits sepCommits;
+    private SEPBackfillImpl backfill;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        graph.add("c1", "one");
+        graph.add("c2", "two", "c1");
+        graph.add("c3", "three", "c2");
+        when(repo.getId()).thenReturn(1);
+
+        sepCommits = mock(SEPCommits.class);
+        when(sepCommits.findCommitsInRange(eq(repo), anyString(), anyString(), any(PageRequest.class))).thenAnswer(new Answer<Page<Commit>>() {
+            @Override
+            public Page<Commit> answer(InvocationOnMock invocation) {
+                Object[] arguments = invocation.getArguments();
+                return graph.between(Arrays.asList((String) arguments[2]), Arrays.asList((String) arguments[1]), (PageRequest) arguments[3]);
+            }
+        });
+        when(sepCommits.findCommitInfo(any(Iterable.class), any(RefChange.class), eq(repo))).thenAnswer(new Answer<List<Message>>() {
+            @Override
+            public List<Message> answer(InvocationOnMock invocation) {
+                // the changed files and clone links are looked up here, stash refuses them without a user
+                enrichedElevated.add(security.isElevated());
+                List<Message> messages = new ArrayList<Message>();
+                for (Commit commit : (Iterable<Commit>) invocation.getArguments()[0]) {
+                    messages.add(new Message(new LinkedHashMap<String, Object>(), "topic", 1, commit.getId()));
+                }
+                return messages;
+            }
+        });
+        RepositoryService repoService = mock(RepositoryService.class);
+        when(repoService.getBySlug("KEY", "repo")).thenReturn(repo);
+        ClusterShardRouter shardRouter = mock(ClusterShardRouter.class);
+        when(shardRouter.isLocallyOwned(anyInt())).thenReturn(true);
+
+        ApplicationPropertiesService appService = TestProperties.create(home.getRoot(), "plugin.fedmsg.backfill.pageSize", "2",
+                "plugin.fedmsg.backfill.commitsPerSecond", "1000");
+        backfill = new SEPBackfillImpl(sepCommits, mock(RefService.class), repoService, security.service(), appService,
+                mock(SinkDispatcher.class), shardRouter, mock(SEPRefChangeEvent.class), new StashCircuitBreakers(appService),
+                mock(DeferredEnrichment.class));
+    }
+
+    @After
+    public void tearDown() {
+        backfill.destroy();
+    }
+
+    @Test
+    public void pagesAreEnrichedWithElevatedPermissions() throws Exception {
+        BackfillJob job = backfill.submit("KEY", "repo", "master", "c1", "c3", 0);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!job.isFinished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(BackfillJob.State.DONE, job.getState());
+        assertEquals(2, job.getPublished());
+        assertEquals(Arrays.asList(true), enrichedElevated);
+    }
+}
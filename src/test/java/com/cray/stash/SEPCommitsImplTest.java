@@ -0,0 +1,224 @@
+package com.cray.stash;
+
+import com.atlassian.stash.commit.Commit;
+import com.atlassian.stash.commit.ChangesetsRequest;
+import com.atlassian.stash.commit.CommitService;
+import com.atlassian.stash.commit.CommitsBetweenRequest;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.RefService;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.RepositoryCloneLinksRequest;
+import com.atlassian.stash.repository.RepositoryService;
+import com.atlassian.stash.repository.SimpleRefChange;
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import com.atlassian.stash.util.Page;
+import com.atlassian.stash.util.PageRequest;
+import com.atlassian.stash.util.PageUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SEPCommitsImplTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private CommitService commitService;
+    private Repository repo;
+    private SEPCommitsImpl commits;
+    private Page<Commit> page;
+    private final TestSecurity security = new TestSecurity();
+    private final RepositoryService repoService = mock(RepositoryService.class);
+    private final List<AdaptivePageSizes> pageSizes = new ArrayList<AdaptivePageSizes>();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        ApplicationPropertiesService appService = TestProperties.create(home.getRoot());
+        commitService = mock(CommitService.class);
+        repo = mock(Repository.class);
+        page = mock(Page.class);
+        when(commitService.getCommitsBetween(any(CommitsBetweenRequest.class), any(PageRequest.class))).thenReturn(page);
+
+        commits = create(commitService, appService);
+    }
+
+    @After
+    public void tearDown() {
+        for (AdaptivePageSizes sizes : pageSizes) {
+            sizes.destroy();
+        }
+    }
+
+    @Test
+    public void aRangeExcludesItsStartAndIncludesItsEnd() {
+        PageRequest pageRequest = PageUtils.newRequest(200, 100);
+
+        assertSame(page, commits.findCommitsInRange(repo, "1111111111111111111111111111111111111111",
+                "2222222222222222222222222222222222222222", pageRequest));
+
+        CommitsBetweenRequest request = captureRequest(pageRequest);
+        assertSame(repo, request.getRepository());
+        assertEquals(Collections.singleton("1111111111111111111111111111111111111111"), request.getExcludes());
+        assertEquals(Collections.singleton("2222222222222222222222222222222222222222"), request.getIncludes());
+    }
+
+    @Test
+    public void aRangeFromNothingCoversTheWholeHistory() {
+        PageRequest pageRequest = PageUtils.newRequest(0, 100);
+
+        commits.findCommitsInRange(repo, null, "2222222222222222222222222222222222222222", pageRequest);
+        assertTrue(captureRequest(pageRequest).getExcludes().isEmpty());
+    }
+
+    @Test
+    public void aRangeFromTheNullHashCoversTheWholeHistory() {
+        PageRequest pageRequest = PageUtils.newRequest(0, 100);
+
+        commits.findCommitsInRange(repo, "0000000000000000000000000000000000000000",
+                "2222222222222222222222222222222222222222", pageRequest);
+        assertTrue(captureRequest(pageRequest).getExcludes().isEmpty());
+    }
+
+    @Test
+    public void newCommitsAreListedPastTheFirstPage() {
+        CommitGraph graph = linearHistory();
+        SEPCommitsImpl paged = create(graph.commitService(), smallPages());
+
+        List<Commit> found = paged.findNewCommits(update("c2", "c7"), repo);
+        assertEquals(Arrays.asList("c7", "c6", "c5", "c4", "c3"), ids(found));
+        assertEquals(3, graph.getRequests().size());
+    }
+
+    @Test
+    public void aFastForwardIsListedPastTheFirstPage() {
+        CommitGraph graph = linearHistory();
+        SEPCommitsImpl paged = create(graph.commitService(), smallPages());
+
+        List<Commit> found = paged.findFastForwardCommits(update("c2", "c7"), repo);
+        assertEquals(Arrays.asList("c7", "c6", "c5", "c4", "c3"), ids(found));
+    }
+
+    @Test
+    public void aPushOverTheLimitPublishesTheNewestCommits() {
+        CommitGraph graph = linearHistory();
+        SEPCommitsImpl paged = create(graph.commitService(), smallPages("plugin.fedmsg.push.maxCommits", "3"));
+
+        assertEquals(Arrays.asList("c7", "c6", "c5", "c4"), ids(paged.findNewCommits(update("c1", "c7"), repo)));
+        // the fast path can't confirm a range it didn't list in full
+        assertNull(paged.findFastForwardCommits(update("c1", "c7"), repo));
+    }
+
+    @Test
+    public void stashIsOnlyAskedWithElevatedPermissions() {
+        final CommitService graphService = linearHistory().commitService();
+        CommitService checked = mock(CommitService.class);
+        when(checked.getCommitsBetween(any(CommitsBetweenRequest.class), any(PageRequest.class))).thenAnswer(new Answer<Page<Commit>>() {
+            @Override
+            public Page<Commit> answer(InvocationOnMock invocation) {
+                // the lanes have no user, stash would refuse the call
+                assertTrue(security.isElevated());
+                return graphService.getCommitsBetween((CommitsBetweenRequest) invocation.getArguments()[0],
+                        (PageRequest) invocation.getArguments()[1]);
+            }
+        });
+        SEPCommitsImpl paged = create(checked, smallPages());
+
+        assertEquals(5, paged.findNewCommits(update("c2", "c7"), repo).size());
+        assertEquals(5, paged.findFastForwardCommits(update("c2", "c7"), repo).size());
+    }
+
+    @Test
+    public void aMinimalProfileMakesNoStashCalls() {
+        CommitGraph graph = linearHistory();
+        CommitService checked = mock(CommitService.class);
+        SEPCommitsImpl minimal = create(checked, TestProperties.create(home.getRoot(), "plugin.fedmsg.enrichment.minimal", "KEY/*"));
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("KEY");
+        when(repo.getProject()).thenReturn(project);
+        when(repo.getSlug()).thenReturn("repo");
+        when(graph.get("c6").getRepository()).thenReturn(repo);
+        when(graph.get("c7").getRepository()).thenReturn(repo);
+
+        List<Message> messages = minimal.findCommitInfo(Arrays.asList(graph.get("c7"), graph.get("c6")), update("c5", "c7"), repo);
+
+        assertEquals(2, messages.size());
+        Map<String, Object> content = messages.get(0).getMessage();
+        assertEquals("c7", content.get("revision"));
+        assertFalse(content.containsKey("comments"));
+        assertFalse(content.containsKey("files"));
+        assertFalse(content.containsKey("urls"));
+        assertFalse(content.containsKey("partial"));
+        verify(checked, never()).getChangesets(any(ChangesetsRequest.class), any(PageRequest.class));
+        verify(repoService, never()).getCloneLinks(any(RepositoryCloneLinksRequest.class));
+    }
+
+    private SEPCommitsImpl create(CommitService commitService, ApplicationPropertiesService appService) {
+        AdaptivePageSizes sizes = new AdaptivePageSizes(appService);
+        pageSizes.add(sizes);
+        return new SEPCommitsImpl(mock(RefService.class), commitService, security.service(), repoService,
+                appService, new PublishFilter(appService), mock(PublishedCommitIndex.class), new SlowEventRecorder(appService),
+                new StashCircuitBreakers(appService), new DeferredEnrichment(appService), new EnrichmentProfiles(appService),
+                mock(ForkOrigins.class), sizes);
+    }
+
+    // pages of two commits, so every listing takes several requests
+    private ApplicationPropertiesService smallPages(String... keyValues) {
+        List<String> properties = new ArrayList<String>(Arrays.asList("plugin.fedmsg.pageLimit", "2",
+                "plugin.fedmsg.pageLimit.min", "2", "plugin.fedmsg.pageLimit.max", "2"));
+        properties.addAll(Arrays.asList(keyValues));
+        return TestProperties.create(home.getRoot(), properties.toArray(new String[properties.size()]));
+    }
+
+    private static CommitGraph linearHistory() {
+        CommitGraph graph = new CommitGraph();
+        graph.add("c1", "one");
+        for (int i = 2; i <= 7; i++) {
+            graph.add("c" + i, "commit " + i, "c" + (i - 1));
+        }
+        return graph;
+    }
+
+    private static RefChange update(String from, String to) {
+        return new SimpleRefChange.Builder().refId("refs/heads/master").fromHash(from).toHash(to).type(RefChangeType.UPDATE).build();
+    }
+
+    private static List<String> ids(List<Commit> commits) {
+        List<String> ids = new ArrayList<String>();
+        for (Commit commit : commits) {
+            ids.add(commit.getId());
+        }
+        return ids;
+    }
+
+    private CommitsBetweenRequest captureRequest(PageRequest pageRequest) {
+        ArgumentCaptor<CommitsBetweenRequest> request = ArgumentCaptor.forClass(CommitsBetweenRequest.class);
+        verify(commitService).getCommitsBetween(request.capture(), eq(pageRequest));
+        return request.getValue();
+    }
+}
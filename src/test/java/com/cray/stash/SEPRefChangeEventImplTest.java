@@ -0,0 +1,254 @@
+package com.cray.stash;
+
+import com.atlassian.stash.commit.Commit;
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.RefChange;
+import com.atlassian.stash.repository.RefChangeType;
+import com.atlassian.stash.repository.Repository;
+import com.atlassian.stash.repository.SimpleRefChange;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SEPRefChangeEventImplTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final CommitGraph graph = new CommitGraph();
+    private final Repository repo = repository();
+    private final List<String> published = new ArrayList<String>();
+    private final List<Message> queued = new ArrayList<Message>();
+    private final PublishedTips publishedTips = mock(PublishedTips.class);
+    private SEPCommits sepCommits;
+    private BulkEventPlanner planner;
+    private RewriteDetector rewrites;
+    private HeapPressureGuard heapGuard;
+    private SEPRefChangeEventImpl events;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        sepCommits = mock(SEPCommits.class);
+        when(sepCommits.findCommitInfo(any(Iterable.class), any(RefChange.class), eq(repo), any(HashMap.class))).thenAnswer(new Answer<List<Message>>() {
+            @Override
+            public List<Message> answer(InvocationOnMock invocation) {
+                List<Message> messages = new ArrayList<Message>();
+                for (Commit commit : (Iterable<Commit>) invocation.getArguments()[0]) {
+                    messages.add(new Message(new LinkedHashMap<String, Object>(), "topic", 1, commit.getId()));
+                }
+                return messages;
+            }
+        });
+        SinkDispatcher sinkDispatcher = mock(SinkDispatcher.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                for (Message message : (List<Message>) invocation.getArguments()[0]) {
+                    published.add(message.getCommitId());
+                    queued.add(message);
+                }
+                return null;
+            }
+        }).when(sinkDispatcher).publish(anyListOf(Message.class));
+
+        planner = mock(BulkEventPlanner.class);
+        when(planner.shouldPlan(anyInt())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return (Integer) invocation.getArguments()[0] >= 3;
+            }
+        });
+        rewrites = mock(RewriteDetector.class);
+        heapGuard = mock(HeapPressureGuard.class);
+        when(heapGuard.getChunkSize()).thenReturn(100);
+
+        events = new SEPRefChangeEventImpl(sepCommits, sinkDispatcher, new SlowEventRecorder(TestProperties.create(home.getRoot())),
+                planner, mock(DeferredEnrichment.class), rewrites, mock(PublishedCommitIndex.class), publishedTips,
+                heapGuard);
+
+        graph.add("base", "base");
+        graph.add("shared1", "shared one", "base");
+        graph.add("shared2", "shared two", "shared1");
+        graph.add("feature1", "feature", "shared2");
+    }
+
+    @Test
+    public void commitsTwoRefsShareArePublishedOnce() {
+        // git push origin feature master, where master caught up with part of feature
+        RefChange feature = update("refs/heads/feature", "base", "feature1");
+        RefChange master = update("refs/heads/master", "base", "shared2");
+        when(sepCommits.findFastForwardCommits(feature, repo)).thenReturn(commits("feature1", "shared2", "shared1"));
+        when(sepCommits.findFastForwardCommits(master, repo)).thenReturn(commits("shared2", "shared1"));
+
+        events.processEvent(repo, Arrays.asList(feature, master));
+
+        assertEquals(Arrays.asList("shared1", "shared2", "feature1"), published);
+    }
+
+    @Test
+    public void commitsTwoRefsShareArePublishedOnceThroughTheLanes() {
+        RefChange feature = update("refs/heads/feature", "base", "feature1");
+        RefChange master = update("refs/heads/master", "base", "shared2");
+        when(sepCommits.findFastForwardCommits(feature, repo)).thenReturn(commits("feature1", "shared2", "shared1"));
+        when(sepCommits.findFastForwardCommits(master, repo)).thenReturn(commits("shared2", "shared1"));
+        PublishLanes publishLanes = mock(PublishLanes.class);
+        when(publishLanes.classify(eq(repo), any(RefChange.class), anyInt())).thenReturn(PublishLanes.Lane.INTERACTIVE);
+        // runs the queued work right away, the executor only decides when
+        RefOrderedExecutor refExecutor = mock(RefOrderedExecutor.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((Runnable) invocation.getArguments()[3]).run();
+                return null;
+            }
+        }).when(refExecutor).submit(any(PublishLanes.Lane.class), eq(repo), anyCollectionOf(RefChange.class), any(Runnable.class));
+        EventFactory factory = new EventFactory(events, publishLanes, mock(PublishFilter.class), refExecutor,
+                mock(ClusterShardRouter.class), mock(ClusterHandoff.class));
+
+        factory.receive(repo, Arrays.asList(feature, master), 2);
+
+        assertEquals(Arrays.asList("shared1", "shared2", "feature1"), published);
+    }
+
+    @Test
+    public void theFullPathSkipsCommitsTheFastPathPublished() {
+        RefChange feature = update("refs/heads/feature", "base", "feature1");
+        RefChange master = update("refs/heads/master", "feature1", "shared2");
+        when(sepCommits.findFastForwardCommits(feature, repo)).thenReturn(commits("feature1", "shared2", "shared1"));
+        when(sepCommits.findNewCommits(master, repo)).thenReturn(commits("shared2", "shared1"));
+
+        events.processEvent(repo, Arrays.asList(feature, master));
+
+        assertEquals(Arrays.asList("shared1", "shared2", "feature1"), published);
+    }
+
+    @Test
+    public void plannedEventsSkipThePerRefCalls() {
+        List<RefChange> refChanges = Arrays.asList(
+                update("refs/heads/a", "base", "shared1"),
+                update("refs/heads/b", "base", "shared2"),
+                update("refs/heads/c", "base", "feature1"));
+        Map<RefChange, List<Commit>> plan = new LinkedHashMap<RefChange, List<Commit>>();
+        plan.put(refChanges.get(0), commits("shared1"));
+        plan.put(refChanges.get(1), commits("shared2"));
+        plan.put(refChanges.get(2), commits("feature1"));
+        when(planner.plan(repo, refChanges)).thenReturn(plan);
+
+        events.processEvent(repo, refChanges);
+
+        verify(sepCommits, never()).findFastForwardCommits(any(RefChange.class), any(Repository.class));
+        verify(rewrites, never()).detect(any(Repository.class), any(RefChange.class));
+        assertEquals(Arrays.asList("shared1", "shared2", "feature1"), published);
+    }
+
+    @Test
+    public void smallEventsTakeTheFastPath() {
+        RefChange feature = update("refs/heads/feature", "shared2", "feature1");
+        when(sepCommits.findFastForwardCommits(feature, repo)).thenReturn(commits("feature1"));
+
+        events.processEvent(repo, Collections.singletonList(feature));
+
+        verify(planner, never()).plan(any(Repository.class), anyListOf(RefChange.class));
+        assertEquals(Arrays.asList("feature1"), published);
+    }
+
+    @Test
+    public void aTipIsRecordedOnceItsMessagesAreDelivered() {
+        RefChange feature = update("refs/heads/feature", "base", "feature1");
+        when(sepCommits.findFastForwardCommits(feature, repo)).thenReturn(commits("feature1", "shared2", "shared1"));
+
+        events.processEvent(repo, Collections.singletonList(feature));
+        queued.get(0).getPendingTip().delivered();
+        queued.get(1).getPendingTip().delivered();
+        verify(publishedTips, never()).record(anyInt(), anyString(), anyString());
+
+        queued.get(2).getPendingTip().delivered();
+        verify(publishedTips).record(1, "refs/heads/feature", "feature1");
+    }
+
+    @Test
+    public void aTipIsNotRecordedIfAMessageIsDropped() {
+        RefChange feature = update("refs/heads/feature", "base", "feature1");
+        when(sepCommits.findFastForwardCommits(feature, repo)).thenReturn(commits("feature1", "shared2", "shared1"));
+
+        events.processEvent(repo, Collections.singletonList(feature));
+        queued.get(0).getPendingTip().delivered();
+        queued.get(1).getPendingTip().failed();
+        queued.get(2).getPendingTip().delivered();
+
+        verify(publishedTips, never()).record(anyInt(), anyString(), anyString());
+    }
+
+    @Test
+    public void aTipWithoutNewCommitsIsRecordedRightAway() {
+        RefChange master = update("refs/heads/master", "shared2", "feature1");
+        when(sepCommits.findFastForwardCommits(master, repo)).thenReturn(new ArrayList<Commit>());
+
+        events.processEvent(repo, Collections.singletonList(master));
+
+        verify(publishedTips).record(1, "refs/heads/master", "feature1");
+    }
+
+    @Test
+    public void cloneUrlsAreLookedUpOncePerRef() {
+        HashMap<String, String> urls = new HashMap<String, String>();
+        when(sepCommits.findCloneUrls(repo)).thenReturn(urls);
+        when(heapGuard.getChunkSize()).thenReturn(1);
+        RefChange feature = update("refs/heads/feature", "base", "feature1");
+        when(sepCommits.findFastForwardCommits(feature, repo)).thenReturn(commits("feature1", "shared2", "shared1"));
+
+        events.processEvent(repo, Collections.singletonList(feature));
+
+        verify(sepCommits).findCloneUrls(repo);
+        verify(sepCommits, times(3)).findCommitInfo(anyListOf(Commit.class), eq(feature), eq(repo), eq(urls));
+        assertEquals(Arrays.asList("shared1", "shared2", "feature1"), published);
+    }
+
+    private List<Commit> commits(String... ids) {
+        List<Commit> commits = new ArrayList<Commit>();
+        for (String id : ids) {
+            commits.add(graph.get(id));
+        }
+        return commits;
+    }
+
+    private static RefChange update(String refId, String fromHash, String toHash) {
+        return new SimpleRefChange.Builder().refId(refId).fromHash(fromHash).toHash(toHash).type(RefChangeType.UPDATE).build();
+    }
+
+    private static Repository repository() {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("KEY");
+        Repository repo = mock(Repository.class);
+        when(repo.getId()).thenReturn(1);
+        when(repo.getSlug()).thenReturn("repo");
+        when(repo.getProject()).thenReturn(project);
+        return repo;
+    }
+}
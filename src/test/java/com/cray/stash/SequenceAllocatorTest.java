@@ -0,0 +1,107 @@
+package com.cray.stash;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SequenceAllocatorTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final Set<String> liveNodes = new HashSet<String>();
+    private final LocalNodeMembership nodeA = new LocalNodeMembership("a", liveNodes);
+    private final LocalNodeMembership nodeB = new LocalNodeMembership("b", liveNodes);
+    private final ClusterShardRouter routerA = new ClusterShardRouter(nodeA, 64, 0);
+    private final ClusterShardRouter routerB = new ClusterShardRouter(nodeB, 64, 0);
+
+    @Test
+    public void aCleanRestartContinuesWithTheNextNumber() {
+        int repo = ownedBy(routerA);
+        SequenceAllocator sequences = allocator(routerA);
+        for (long i = 1; i <= 5; i++) {
+            assertEquals(i, sequences.next(repo));
+        }
+        sequences.destroy();
+
+        assertEquals(6, allocator(routerA).next(repo));
+    }
+
+    @Test
+    public void aCrashContinuesAfterTheReservedBlock() {
+        int repo = ownedBy(routerA);
+        SequenceAllocator sequences = allocator(routerA);
+        for (long i = 1; i <= 15; i++) {
+            assertEquals(i, sequences.next(repo));
+        }
+
+        // never destroyed, the second block ends at 21
+        assertEquals(21, allocator(routerA).next(repo));
+    }
+
+    @Test
+    public void numbersKeepGoingUpAcrossAHandoff() {
+        int repo = ownedBy(routerA);
+        SequenceAllocator sequencesA = allocator(routerA);
+        SequenceAllocator sequencesB = allocator(routerB);
+        assertEquals(1, sequencesA.next(repo));
+        assertEquals(2, sequencesA.next(repo));
+
+        // b takes over while a is still running, and continues after a's block; a sees itself go too
+        nodeA.leave();
+        routerA.getEpoch();
+        assertEquals(11, sequencesB.next(repo));
+        assertEquals(12, sequencesB.next(repo));
+
+        // and the repository moves back to a, which drops the rest of its old block
+        nodeA.join();
+        assertEquals(21, sequencesA.next(repo));
+    }
+
+    @Test
+    public void aNodeThatDoesNotOwnTheRepositoryTakesNumbersFromTheSharedFile() {
+        int repo = ownedBy(routerA);
+        SequenceAllocator sequencesA = allocator(routerA);
+        SequenceAllocator sequencesB = allocator(routerB);
+        assertEquals(1, sequencesA.next(repo));
+
+        assertEquals(11, sequencesB.next(repo));
+        assertEquals(12, sequencesB.next(repo));
+        assertEquals(2, sequencesA.next(repo));
+    }
+
+    @Test
+    public void numbersCountedBeforeTheSharedHomeAreContinued() throws Exception {
+        int repo = ownedBy(routerA);
+        File legacy = new File(home.getRoot(), "data/fedmsg/sequences/" + repo + ".seq");
+        assertTrue(legacy.getParentFile().mkdirs());
+        RandomAccessFile raf = new RandomAccessFile(legacy, "rw");
+        try {
+            raf.writeLong(500);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(500, allocator(routerA).next(repo));
+    }
+
+    private SequenceAllocator allocator(ClusterShardRouter router) {
+        return new SequenceAllocator(TestProperties.create(home.getRoot(), "plugin.fedmsg.sequence.block", "10"), router);
+    }
+
+    private static int ownedBy(ClusterShardRouter router) {
+        int repo = 1;
+        while (!router.isLocallyOwned(repo)) {
+            repo++;
+        }
+        return repo;
+    }
+}
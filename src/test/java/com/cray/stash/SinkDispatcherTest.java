@@ -0,0 +1,186 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class SinkDispatcherTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    private final PublishedCommitIndex publishedIndex = mock(PublishedCommitIndex.class);
+    private final PublishedTips publishedTips = mock(PublishedTips.class);
+    private final MessageAuditLog auditLog = mock(MessageAuditLog.class);
+    private ApplicationPropertiesService appService;
+    private HeapPressureGuard heapGuard;
+    private SinkDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        appService = TestProperties.create(home.getRoot(), "plugin.fedmsg.transport.batchSize", "1",
+                "plugin.fedmsg.transport.flushMillis", "0", "plugin.fedmsg.transport.queueSize", "1");
+        heapGuard = new HeapPressureGuard(appService);
+    }
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.destroy();
+        }
+        heapGuard.destroy();
+    }
+
+    @Test
+    public void deliveredMessagesArePublishedAndRecordTheirTip() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        dispatcher = dispatcher(sink);
+        PendingTip tip = new PendingTip(publishedTips, 1, "refs/heads/master", "c2");
+        List<Message> messages = messages(tip, "c1", "c2");
+        tip.seal();
+
+        dispatcher.publish(messages);
+
+        verify(publishedTips, timeout(5000)).record(1, "refs/heads/master", "c2");
+        assertEquals(Arrays.asList("c1", "c2"), sink.commitIds());
+        verify(publishedIndex).markPublished(1, "c1");
+        verify(publishedIndex).markPublished(1, "c2");
+        awaitInFlight(0);
+    }
+
+    @Test
+    public void aSinkThatThrowsFailsTheTipAndReleasesTheBytes() throws Exception {
+        dispatcher = dispatcher(new RecordingSink() {
+            @Override
+            public int deliver(List<Message> batch) {
+                throw new IllegalStateException("broken sink");
+            }
+        });
+        PendingTip tip = new PendingTip(publishedTips, 1, "refs/heads/master", "c1");
+        List<Message> messages = messages(tip, "c1");
+        tip.seal();
+
+        dispatcher.publish(messages);
+
+        awaitInFlight(0);
+        // the sender reuses its batch list, so only the outcome can be checked
+        verify(auditLog, timeout(5000)).record(anyListOf(Message.class), eq("test"), eq(0));
+        verify(publishedIndex, never()).markPublished(anyInt(), anyString());
+        verify(publishedTips, never()).record(anyInt(), anyString(), anyString());
+    }
+
+    @Test
+    public void anInterruptedPublisherDropsTheMessagesItDidNotQueue() throws Exception {
+        final RecordingSink sink = new RecordingSink();
+        sink.blocked = new CountDownLatch(1);
+        dispatcher = dispatcher(sink);
+        PendingTip tip = new PendingTip(publishedTips, 1, "refs/heads/master", "c4");
+        final List<Message> messages = messages(tip, "c1", "c2", "c3", "c4");
+        tip.seal();
+
+        Thread publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.publish(messages);
+            }
+        });
+        publisher.start();
+        // c1 is stuck in the sink and c2 fills the queue, so the publisher waits to queue c3
+        long deadline = System.currentTimeMillis() + 5000;
+        while (publisher.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        publisher.interrupt();
+        publisher.join(5000);
+        sink.blocked.countDown();
+
+        awaitInFlight(0);
+        verify(auditLog).record(messages.get(2), "test", MessageAuditLog.Entry.DROPPED);
+        verify(auditLog).record(messages.get(3), "test", MessageAuditLog.Entry.DROPPED);
+        verify(publishedIndex, timeout(5000)).markPublished(1, "c2");
+        assertEquals(Arrays.asList("c1", "c2"), sink.commitIds());
+        verify(publishedTips, never()).record(anyInt(), anyString(), anyString());
+    }
+
+    private SinkDispatcher dispatcher(MessageSink sink) {
+        Map<String, List<MessageSink>> sinks = new LinkedHashMap<String, List<MessageSink>>();
+        sinks.put("test", Collections.singletonList(sink));
+        return new SinkDispatcher(appService, publishedIndex, mock(SequenceAllocator.class), auditLog, heapGuard,
+                new SlowEventRecorder(appService), sinks);
+    }
+
+    private void awaitInFlight(long bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Long.valueOf(bytes).equals(heapGuard.getStatus().get("inFlightBytes")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(bytes, heapGuard.getStatus().get("inFlightBytes"));
+    }
+
+    private static List<Message> messages(PendingTip tip, String... commitIds) {
+        List<Message> messages = new ArrayList<Message>();
+        for (String commitId : commitIds) {
+            Message message = new Message(new LinkedHashMap<String, Object>(), "topic", 1, commitId);
+            tip.attach(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static class RecordingSink implements MessageSink {
+        private final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        private volatile CountDownLatch blocked;
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public int deliver(List<Message> batch) {
+            if (blocked != null) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+            for (Message message : batch) {
+                delivered.add(message.getCommitId());
+            }
+            return batch.size();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        List<String> commitIds() {
+            synchronized (delivered) {
+                return new ArrayList<String>(delivered);
+            }
+        }
+    }
+}
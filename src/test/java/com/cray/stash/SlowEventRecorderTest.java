@@ -0,0 +1,56 @@
+package com.cray.stash;
+
+import com.atlassian.stash.project.Project;
+import com.atlassian.stash.repository.Repository;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SlowEventRecorderTest {
+
+    @Rule
+    public TemporaryFolder home = new TemporaryFolder();
+
+    @Test
+    public void deliveryStagesAreAddedToTheEventAfterItFinished() {
+        SlowEventRecorder recorder = new SlowEventRecorder(TestProperties.create(home.getRoot()));
+        recorder.begin(repository(), 1);
+        recorder.stage("enqueue", System.nanoTime());
+        EventTrace trace = recorder.current();
+        recorder.end();
+        assertNull(recorder.current());
+
+        // what a sender thread does once the messages go out
+        trace.addStage("connect", 2000000);
+        trace.addStage("send", 1000000);
+        trace.addStage("send", 1000000);
+
+        List<EventTrace> slowest = recorder.getSlowest();
+        assertEquals(1, slowest.size());
+        EventTrace snapshot = slowest.get(0);
+        assertTrue(snapshot.getStageMicros().containsKey("enqueue"));
+        assertEquals(Long.valueOf(2000), snapshot.getStageMicros().get("connect"));
+        assertEquals(Long.valueOf(2000), snapshot.getStageMicros().get("send"));
+
+        trace.addStage("late", 1000);
+        assertFalse(snapshot.getStageMicros().containsKey("late"));
+    }
+
+    private static Repository repository() {
+        Project project = mock(Project.class);
+        when(project.getKey()).thenReturn("KEY");
+        Repository repo = mock(Repository.class);
+        when(repo.getSlug()).thenReturn("repo");
+        when(repo.getProject()).thenReturn(project);
+        return repo;
+    }
+}
@@ -0,0 +1,42 @@
+package com.cray.stash;
+
+import com.atlassian.stash.server.ApplicationPropertiesService;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Plugin properties for tests: an ApplicationPropertiesService answering from a map, with its home directory
+ * wherever the test wants it.
+ */
+class TestProperties {
+
+    private TestProperties() {
+    }
+
+    /*
+    * Takes the properties as key, value, key, value...
+    */
+    static ApplicationPropertiesService create(File home, String... keyValues) {
+        final Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            values.put(keyValues[i], keyValues[i + 1]);
+        }
+        ApplicationPropertiesService appService = mock(ApplicationPropertiesService.class);
+        when(appService.getPluginProperty(anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                return values.get((String) invocation.getArguments()[0]);
+            }
+        });
+        when(appService.getHomeDir()).thenReturn(home);
+        return appService;
+    }
+}
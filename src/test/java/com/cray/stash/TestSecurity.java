@@ -0,0 +1,47 @@
+package com.cray.stash;
+
+import com.atlassian.stash.user.EscalatedSecurityContext;
+import com.atlassian.stash.user.Permission;
+import com.atlassian.stash.user.SecurityService;
+import com.atlassian.stash.util.UncheckedOperation;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A SecurityService that runs elevated operations right away and knows whether one is running, so tests can
+ * check that stash is only asked with elevated permissions.
+ */
+class TestSecurity {
+
+    private final SecurityService service = mock(SecurityService.class);
+    private int elevated;
+
+    TestSecurity() {
+        EscalatedSecurityContext escalated = mock(EscalatedSecurityContext.class);
+        when(escalated.call(any(UncheckedOperation.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                elevated++;
+                try {
+                    return ((UncheckedOperation<?>) invocation.getArguments()[0]).perform();
+                } finally {
+                    elevated--;
+                }
+            }
+        });
+        when(service.withPermission(any(Permission.class), anyString())).thenReturn(escalated);
+    }
+
+    SecurityService service() {
+        return service;
+    }
+
+    boolean isElevated() {
+        return elevated > 0;
+    }
+}
@@ -0,0 +1,108 @@
+package com.cray.stash;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class WebhookSinkTest {
+
+    private final List<String> bodies = new ArrayList<String>();
+    private final List<String> contentTypes = new ArrayList<String>();
+    private final List<String> schemaVersions = new ArrayList<String>();
+    private volatile int status = 200;
+    private HttpServer server;
+    private WebhookSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/hook", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                synchronized (bodies) {
+                    bodies.add(read(exchange.getRequestBody()));
+                    contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+                    schemaVersions.add(exchange.getRequestHeaders().getFirst("X-Fedmsg-Schema-Version"));
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        sink = new WebhookSink(new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/hook"), new JsonPayloadCodec(), 5000);
+    }
+
+    @After
+    public void tearDown() {
+        sink.close();
+        server.stop(0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void aBatchIsPostedAsOneRequest() {
+        assertEquals(2, sink.deliver(Arrays.asList(message("c1"), message("c2"))));
+
+        assertEquals(1, bodies.size());
+        assertEquals("application/json", contentTypes.get(0));
+        assertEquals(Integer.toString(PayloadCodecs.SCHEMA_VERSION), schemaVersions.get(0));
+        Map<String, Object> body = new Gson().fromJson(bodies.get(0), Map.class);
+        List<Map<String, Object>> messages = (List<Map<String, Object>>) body.get("messages");
+        assertEquals(2, messages.size());
+        assertEquals("c2", ((Map<String, Object>) messages.get(1).get("msg")).get("revision"));
+    }
+
+    @Test
+    public void anErrorAnswerDeliversNothing() {
+        status = 503;
+        assertEquals(0, sink.deliver(Arrays.asList(message("c1"))));
+
+        // and the next batch goes through once the webhook is back
+        status = 200;
+        assertEquals(1, sink.deliver(Arrays.asList(message("c2"))));
+        assertEquals(2, bodies.size());
+    }
+
+    @Test
+    public void anUnreachableWebhookDeliversNothing() throws Exception {
+        int port = server.getAddress().getPort();
+        server.stop(0);
+        WebhookSink unreachable = new WebhookSink(new URL("http://127.0.0.1:" + port + "/hook"), new JsonPayloadCodec(), 1000);
+
+        assertEquals(0, unreachable.deliver(Arrays.asList(message("c1"))));
+    }
+
+    private static Message message(String revision) {
+        Map<String, Object> content = new LinkedHashMap<String, Object>();
+        content.put("revision", revision);
+        return new Message(content, "com.cray.dev.stash.KEY.repo.commit", 1, revision);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}